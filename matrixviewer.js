@@ -57,7 +57,14 @@ var superZoomPos = [0, 0];
 //                            ||  |
 // is a sparse representation_||  |
 //                           |||  |
-// uuuuuuuuuuuuuuuuuuuuuuuuuusippnn
+// fixed point_______________|||  |
+// zero filled (sparse)_____||||  |
+// scale (2^n)         ___ |||||  |
+// uuuuuuuuuuuuuuuuuuuueeeezfsippnn
+//
+// fixed point values are ints of the full range of their precision, standing
+// for [-2^scale, 2^scale]; the cells left out of a zero filled sparse file are
+// zeros that are part of the data (as in a dense file)
 var loadBinaryData = function(data, name) {
   ds.ready[name] = false;
   
@@ -75,6 +82,9 @@ var loadBinaryData = function(data, name) {
   var precision = ((headerFlagInt & 12) >> 2) + 1;
   var isInt = (headerFlagInt & 16) > 0;
   var isSparse = (headerFlagInt & 32) > 0;
+  var isFixedPoint = (headerFlagInt & 64) > 0;
+  var isZeroFilled = (headerFlagInt & 128) > 0;
+  var fixedPointScale = (headerFlagInt >> 8) & 15;
   
   // do some function definition here based on the header flags
   var headerSize = 12;
@@ -86,6 +96,13 @@ var loadBinaryData = function(data, name) {
     } else if (precision == 1) {
       getDataVal = function(offset) { return DataView.prototype.getInt8.call(dv, offset); };
     }
+
+    // scale fixed point values back to what they stand for
+    if (isFixedPoint) {
+      var getStoredVal = getDataVal;
+      var unit = Math.pow(2, fixedPointScale) / (Math.pow(2, 8 * precision - 1) - 1);
+      getDataVal = function(offset) { return getStoredVal(offset) * unit; };
+    }
   } else {  
     precision = 4;
   }
@@ -158,6 +175,12 @@ var loadBinaryData = function(data, name) {
     ds.bounds[name][n] = [];
     ds.bounds[name][n][0] = 10000;
     ds.bounds[name][n][1] = -10000;
+    
+    // the cells left out of a zero filled file count as they would in a dense one
+    if (isZeroFilled) {
+      ds.bounds[name][n][0] = 0;
+      ds.bounds[name][n][1] = 0;
+    }
   }
   
   // explode out the sparse representation to a full representation for the GPU
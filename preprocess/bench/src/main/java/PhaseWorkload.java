@@ -0,0 +1,174 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import cooccur.bench.Workload;
+
+/**
+ * The phases of the preprocessor, as the benchmarks (in cooccur.bench) run
+ * them: each calls the code of one phase directly, on one thread, over the
+ * same synthetic data (uniform coverage, from SyntheticData).
+ */
+public class PhaseWorkload implements Workload {
+	int numPos;
+	int windowSize;
+	File dir;
+	File samFile;
+	FileChannel channel;
+	ReadStore reads;
+
+	// the counts every phase after counting starts from
+	CoOccurLibrary library;
+	int[] reference;
+	int maxLength;
+
+	// the stores the counting phases count into again on every run
+	PositionSweep sweep;
+	BandedIntMatrix sweepCounts;
+	BandedIntMatrix sweepVariants;
+	PairAccumulator accumulator;
+	BandedIntMatrix accumulatedBreadth;
+	BandedIntMatrix accumulatedCounts;
+	int[][] accumulatedBaseCounts;
+
+	public void generate(int numPos, int readLength, int depth, long seed, File dir) throws IOException {
+		this.numPos = numPos;
+		this.dir = dir;
+
+		SyntheticData data = new SyntheticData();
+		data.length = numPos;
+		data.readLength = Math.min(readLength, numPos);
+		data.depth = depth;
+		data.seed = seed;
+		data.write(new File(dir, "synthetic").getPath());
+
+		samFile = new File(dir, "synthetic.sam");
+		channel = new RandomAccessFile(samFile, "r").getChannel();
+		reads = new ReadStore();
+		new SamParser(samFile.getPath()).parse(channel, 0, channel.size(), reads);
+	}
+
+	public void count(int windowSize) {
+		this.windowSize = windowSize;
+
+		// the library keeps the window of the run in a static
+		CoOccurLibrary.windowSize = windowSize;
+		library = new CoOccurLibrary(null, dir.getPath() + File.separator, "synthetic");
+		library.numPos = numPos;
+		library.reads = reads;
+		library.getReadBreadth();
+		library.countPairsByPosition();
+		library.getMetricsFromCounts(Arrays.asList(CooccurMetric.DIFF_FROM_EXPECTED));
+
+		reference = library.modalConsensus;
+		maxLength = reads.maxLength();
+
+		sweepCounts = new BandedIntMatrix(numPos, windowSize, 16);
+		sweepVariants = new BandedIntMatrix(numPos, windowSize, 4);
+		sweep = new PositionSweep(reads, reference, library.baseCounts, sweepCounts, sweepVariants);
+
+		accumulatedBreadth = new BandedIntMatrix(numPos, windowSize, 1);
+		accumulatedCounts = new BandedIntMatrix(numPos, windowSize, 16);
+		accumulatedBaseCounts = new int[numPos][4];
+		accumulator = new PairAccumulator(accumulatedBreadth, accumulatedCounts, accumulatedBaseCounts, 0, 1);
+	}
+
+	public int parseSam() throws IOException {
+		SamParser parser = new SamParser(samFile.getPath());
+		ReadStore parsed = new ReadStore();
+		parser.parse(channel, 0, channel.size(), parsed);
+		return parsed.size;
+	}
+
+	public int readBreadth() {
+		library.getReadBreadth();
+		return library.actualReads;
+	}
+
+	public long categorize() {
+		CoveringReads covering = new CoveringReads(reads, maxLength, 0);
+		long categorized = 0;
+		for (int i = 0; i < numPos; i++) {
+			covering.moveTo(i);
+			categorized += covering.total();
+		}
+
+		return categorized;
+	}
+
+	public int countPairsByPosition() {
+		sweepCounts.clear();
+		sweep.countRows(0, numPos);
+		return sweepCounts.data[sweepCounts.index(numPos / 2, numPos / 2)];
+	}
+
+	public int countPairsByRead() {
+		accumulatedBreadth.clear();
+		accumulatedCounts.clear();
+		for (int[] counts : accumulatedBaseCounts)
+			Arrays.fill(counts, 0);
+
+		for (int r = 0; r < reads.size; r++)
+			accumulator.add(reads, r);
+		return accumulatedCounts.data[accumulatedCounts.index(numPos / 2, numPos / 2)];
+	}
+
+	public double evaluateMetric(String cliName) {
+		CooccurMetric metric = CooccurMetric.fromCliName(cliName);
+		if (metric == null)
+			throw new IllegalArgumentException("no metric '" + cliName + "' (expected one of " + CooccurMetric.cliNames() + ")");
+
+		MetricPass pass = new MetricPass(new PairMetric[] { metric }, reference, library.baseCounts, library.variantCounts, library.cooccurCounts);
+		pass.evaluateRows(0, numPos);
+		return pass.values[0].data[pass.values[0].index(numPos / 2, numPos / 2)];
+	}
+
+	public long writeCounts() throws IOException {
+		final BandedIntMatrix breadth = library.readBreadth;
+		final int numWindow = 2 * windowSize + 1;
+		return writeBand(new File(dir, "readBreadth.dat"), new BandEncoding.Rows() {
+			public void fill(int i, float[] row) {
+				int rowOffset = breadth.rowIndex(i);
+				for (int d = 0; d < numWindow; d++) {
+					int j = i + d - windowSize;
+					row[d] = j < 0 || j >= numPos ? 0 : (float)breadth.data[rowOffset + d];
+				}
+			}
+		}, true, 4);
+	}
+
+	public long writeMetric(int precisionBytes) throws IOException {
+		final BandedDoubleMatrix values = library.metricValues[0];
+		final int numWindow = 2 * windowSize + 1;
+		return writeBand(new File(dir, "conjProbDiff.dat"), new BandEncoding.Rows() {
+			public void fill(int i, float[] row) {
+				int rowOffset = i * numWindow;
+				for (int d = 0; d < numWindow; d++) {
+					int j = i + d - windowSize;
+					row[d] = j < 0 || j >= numPos ? 0 : (float)values.data[rowOffset + d];
+				}
+			}
+		}, false, precisionBytes);
+	}
+
+	// writes the band the way OutputStage.writeBand does, on this thread
+	// returns: the size of the file
+	private long writeBand(File file, BandEncoding.Rows rows, boolean counts, int precisionBytes) throws IOException {
+		int numWindow = 2 * windowSize + 1;
+		BandEncoding encoding = BandEncoding.choose(rows, numPos, numWindow, counts, precisionBytes);
+		DatWriter out = new DatWriter(file.getPath(), numWindow, numPos, encoding.headerFlags());
+		try {
+			encoding.write(out, rows);
+		} finally {
+			out.close();
+		}
+
+		return file.length();
+	}
+
+	public void close() throws IOException {
+		if (channel != null) channel.close();
+	}
+}
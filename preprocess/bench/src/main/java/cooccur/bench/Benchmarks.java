@@ -0,0 +1,35 @@
+package cooccur.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like JMH's own main (taking the same options), but
+ * with the GC profiler on unless other profilers are asked for, so every
+ * result comes with its allocation rate (gc.alloc.rate.norm: bytes per
+ * operation).
+ */
+public class Benchmarks {
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions options = new CommandLineOptions(args);
+		if (options.shouldHelp()) {
+			options.showHelp();
+			return;
+		}
+
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+		if (options.getProfilers().isEmpty())
+			builder.addProfiler(GCProfiler.class);
+
+		Runner runner = new Runner(builder.build());
+		if (options.shouldList()) {
+			runner.list();
+			return;
+		}
+
+		runner.run();
+	}
+}
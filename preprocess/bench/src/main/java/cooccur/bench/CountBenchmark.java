@@ -0,0 +1,43 @@
+package cooccur.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The counting phases, each over every position on one thread: the read
+ * breadth sweep, splitting the reads covering each position by their base
+ * there, and counting every pair with either engine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CountBenchmark {
+	@Benchmark
+	public int readBreadth(Counts counts) {
+		return counts.workload.readBreadth();
+	}
+
+	@Benchmark
+	public long categorize(Counts counts) {
+		return counts.workload.categorize();
+	}
+
+	@Benchmark
+	public int countPairsByPosition(Counts counts) {
+		return counts.workload.countPairsByPosition();
+	}
+
+	@Benchmark
+	public int countPairsByRead(Counts counts) {
+		return counts.workload.countPairsByRead();
+	}
+}
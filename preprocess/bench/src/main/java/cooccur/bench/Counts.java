@@ -0,0 +1,21 @@
+package cooccur.bench;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The reads of Reads, counted with a window of windowSize (the read breadth,
+ * the base, co-occurrence and variant counts, and the diff metric), for the
+ * phases that start from counts.
+ */
+@State(Scope.Benchmark)
+public class Counts extends Reads {
+	@Param({ "50", "300" })
+	public int windowSize;
+
+	@Override
+	void prepare() {
+		workload.count(windowSize);
+	}
+}
@@ -0,0 +1,34 @@
+package cooccur.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluates one metric (by its --metrics name) on every pair within the
+ * window (MetricPass.evaluateRows, on one thread).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetricBenchmark {
+	@Param({ "conjprob", "diff", "ratio", "outliers", "gated", "mi", "nmi", "r2", "dprime" })
+	public String metric;
+
+	@Benchmark
+	public double evaluate(Counts counts) {
+		return counts.workload.evaluateMetric(metric);
+	}
+}
@@ -0,0 +1,58 @@
+package cooccur.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A synthetic data set of reads of readLength, about depth deep over
+ * positions, generated (the same for every run) into a temporary directory
+ * once per trial.
+ */
+@State(Scope.Benchmark)
+public class Reads {
+	static final long SEED = 20141031L;
+
+	@Param({ "2000" })
+	public int positions;
+
+	@Param({ "100", "250" })
+	public int readLength;
+
+	@Param({ "100", "1000" })
+	public int depth;
+
+	Workload workload;
+	File dir;
+
+	@Setup(Level.Trial)
+	public void generate() throws Exception {
+		dir = Files.createTempDirectory("cooccur-bench").toFile();
+		workload = (Workload)Class.forName("PhaseWorkload").getDeclaredConstructor().newInstance();
+		workload.generate(positions, readLength, depth, SEED, dir);
+		prepare();
+	}
+
+	// readies whatever else a subclass needs of the reads (JMH runs a subclass's own @Setup before ours)
+	void prepare() {
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws IOException {
+		workload.close();
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files)
+				file.delete();
+		}
+		dir.delete();
+	}
+}
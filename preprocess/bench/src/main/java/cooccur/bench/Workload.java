@@ -0,0 +1,49 @@
+package cooccur.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The phases of the preprocessor, each run once over a synthetic data set.
+ *
+ * The preprocessor's classes are in the default package, which no named
+ * package can refer to (and JMH won't generate benchmarks in the default
+ * package), so the phases are implemented by PhaseWorkload, in the default
+ * package, and the benchmarks only see this interface.  Every phase runs on
+ * the calling thread.
+ */
+public interface Workload {
+	// writes a reference of numPos positions, and reads of readLength covering it about depth deep, to a SAM
+	// file in dir (the same data for the same seed), and keeps the reads in memory for the phases after parsing
+	void generate(int numPos, int readLength, int depth, long seed, File dir) throws IOException;
+
+	// counts the generated reads with the given window, for the phases that start from the counts
+	void count(int windowSize);
+
+	// returns: the number of reads parsed from the SAM file
+	int parseSam() throws IOException;
+
+	// returns: the number of reads swept into the read breadth
+	int readBreadth();
+
+	// splits the reads covering every position by their base there; returns: the reads categorized
+	long categorize();
+
+	// counts every pair row by row (see PositionSweep); returns: a count, to be consumed
+	int countPairsByPosition();
+
+	// counts every pair read by read (see PairAccumulator); returns: a count, to be consumed
+	int countPairsByRead();
+
+	// evaluates the metric of the given --metrics name on every pair; returns: a value, to be consumed
+	double evaluateMetric(String cliName);
+
+	// writes the read breadth as a .dat file; returns: its size in bytes
+	long writeCounts() throws IOException;
+
+	// writes the values of a metric as a .dat file of precisionBytes per value; returns: its size in bytes
+	long writeMetric(int precisionBytes) throws IOException;
+
+	// releases the SAM file
+	void close() throws IOException;
+}
@@ -0,0 +1,44 @@
+package cooccur.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes a band as a .dat file (choosing its encoding, then writing it
+ * through DatWriter, on one thread): the read breadth, as counts, and the
+ * diff metric with 1, 2 or 4 bytes per value.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WriteBenchmark {
+	// (a state of its own, so writeCounts isn't run once for every precision)
+	@State(Scope.Benchmark)
+	public static class Precision {
+		@Param({ "1", "2", "4" })
+		public int bytes;
+	}
+
+	@Benchmark
+	public long writeCounts(Counts counts) throws IOException {
+		return counts.workload.writeCounts();
+	}
+
+	@Benchmark
+	public long writeMetric(Counts counts, Precision precision) throws IOException {
+		return counts.workload.writeMetric(precision.bytes);
+	}
+}
@@ -1 +1 @@
-javac -d bin/ -cp lib/core.jar:lib/commons-math3-3.3.jar:lib/commons-cli-1.2.jar src/CoOccurLibrary.java  
+javac -d bin/ -cp lib/core.jar:lib/commons-math3-3.3.jar:lib/commons-cli-1.2.jar src/*.java  
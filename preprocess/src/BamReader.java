@@ -0,0 +1,392 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the alignments of a BAM file for a SamParser.
+ *
+ * A BAM file is a series of BGZF blocks, each a gzip member of at most 64 KB
+ * that gives its own compressed size (BSIZE) and inflated size (ISIZE).  The
+ * blocks are read a batch at a time and inflated in parallel, each straight to
+ * its place in the batch; the next batch inflates while the records of the
+ * current one are decoded.  The buffers of the two batches, and the window the
+ * records are decoded from, are reused from one batch to the next.
+ *
+ * Records are decoded from their binary fields without going through text:
+ * the CIGAR operations go straight into a SamParser.Cigar and the 4-bit SEQ
+ * straight into the read encoding (see ReadStore.addPacked).
+ */
+class BamReader {
+	static final int BATCH_BLOCKS = 256;  // blocks inflated at once (at most 16 MB)
+	static final int BLOCKS_PER_TASK = 8; // blocks inflated by one task
+	static final int MAX_BLOCK_SIZE = 1 << 16;
+
+	// the CIGAR operation of every 4-bit BAM code
+	static final String CIGAR_OPS = "MIDNSHP=X";
+
+	final SamParser parser; // its contig, counters and contigsSeen are used
+	final String fileName;
+	final int numThreads;
+
+	int[] refIndex; // refIndex[refID + 1]: the RNAME index of every reference sequence (refID -1 is '*')
+	String[] refNames;
+
+	private DataInputStream in;
+	private ForkJoinPool pool;
+	private boolean endOfFile = false;
+	private ForkJoinTask<Batch> pending; // the batch inflating in the background
+	private Batch spare; // the batch last copied to the window, to read the next one into
+
+	// the inflated bytes not decoded yet are window[at, limit)
+	private byte[] window = new byte[0];
+	private int at = 0, limit = 0;
+
+	private final SamParser.Cigar cigar = new SamParser.Cigar();
+
+	BamReader(SamParser parser, int numThreads) {
+		this.parser = parser;
+		this.fileName = parser.fileName;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	// returns: the length of every reference sequence in the header, in the order given
+	static Map<String, Integer> readSequenceLengths(String fileName) throws IOException {
+		BamReader reader = new BamReader(new SamParser(fileName), 1);
+		Map<String, Integer> lengths = new LinkedHashMap<String, Integer>();
+		reader.open();
+		try {
+			int[] refLengths = reader.readHeader();
+			for (int r = 0; r < refLengths.length; r++)
+				lengths.put(reader.refNames[r], refLengths[r]);
+		} finally {
+			reader.close();
+		}
+
+		return lengths;
+	}
+
+	// reads every record into reads (or, if the parser is finding contigs, into its contigsSeen)
+	void read(SamParser.ReadSink reads) throws IOException {
+		open();
+		try {
+			readHeader();
+			readRecords(reads);
+			parser.bytesRead += new File(fileName).length();
+		} finally {
+			close();
+		}
+	}
+
+	private void open() throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), MAX_BLOCK_SIZE));
+		pool = new ForkJoinPool(numThreads);
+	}
+
+	private void close() throws IOException {
+		pool.shutdownNow();
+		in.close();
+	}
+
+	// reads the magic number, the SAM header text and the reference sequences
+	// returns: the length of every reference sequence
+	private int[] readHeader() throws IOException {
+		if (!ensure(8) || window[at] != 'B' || window[at + 1] != 'A' || window[at + 2] != 'M' || window[at + 3] != 1)
+			throw new IOException(fileName + " is not a BAM file");
+
+		int textLength = int32(at + 4);
+		at += 8;
+		if (!ensure(textLength + 4)) throw new EOFException("truncated header in " + fileName);
+		at += textLength;
+
+		int numRefs = int32(at);
+		at += 4;
+
+		refNames = new String[numRefs];
+		refIndex = new int[numRefs + 1];
+		refIndex[0] = CoOccurLibrary.getHashIndex("*");
+		int[] refLengths = new int[numRefs];
+		for (int r = 0; r < numRefs; r++) {
+			if (!ensure(4)) throw new EOFException("truncated header in " + fileName);
+			int nameLength = int32(at);
+			if (!ensure(4 + nameLength + 4)) throw new EOFException("truncated header in " + fileName);
+
+			// (the name is NUL-terminated)
+			refNames[r] = new String(window, at + 4, nameLength - 1, StandardCharsets.US_ASCII);
+			refLengths[r] = int32(at + 4 + nameLength);
+			refIndex[r + 1] = CoOccurLibrary.getHashIndex(refNames[r]);
+			at += 4 + nameLength + 4;
+		}
+
+		return refLengths;
+	}
+
+	private void readRecords(SamParser.ReadSink reads) throws IOException {
+		int contigIndex = parser.contigIndex;
+		long recordNum = 0;
+
+		while (ensure(4)) {
+			int blockSize = int32(at);
+			if (!ensure(4 + blockSize)) throw new EOFException("truncated record at the end of " + fileName);
+
+			// refID, pos, l_read_name, mapq, bin, n_cigar_op, flag, l_seq, next_refID, next_pos, tlen, then the
+			// read name, CIGAR, SEQ, QUAL and tags
+			int r = at + 4;
+			at += 4 + blockSize;
+			recordNum++;
+
+			int refID = int32(r);
+			int startPos = int32(r + 4) + 1; // as SAM's 1-based POS (0 if unmapped)
+			int nameLength = window[r + 8] & 0xff;
+			int numOps = uint16(r + 12);
+			int seqLength = int32(r + 16);
+
+			// skip records without a stored sequence
+			if (seqLength <= 0) continue;
+
+			int nameIndex = refID >= 0 && refID < refNames.length ? refIndex[refID + 1] : refIndex[0];
+			if (contigIndex != -1 && nameIndex != contigIndex)
+				continue;
+
+			// (the unmapped reads a sorted BAM file ends with have no place on the reference)
+			if (parser.contigsSeen == null && (refID < 0 || startPos <= 0)) {
+				parser.readsUnmapped++;
+				continue;
+			}
+
+			int c = r + 32 + nameLength;
+			int seqStart = c + 4 * numOps;
+
+			cigar.clear();
+			for (int op = 0; op < numOps; op++) {
+				// (an unknown operation makes the record be skipped below)
+				int v = int32(c + 4 * op);
+				cigar.add((v & 0xf) < CIGAR_OPS.length() ? (byte)CIGAR_OPS.charAt(v & 0xf) : (byte)'?', v >>> 4);
+			}
+
+			// (a CIGAR of more than 65535 operations is stored as seqLength S + N in the CG tag)
+			if (numOps == 2 && cigar.ops[0] == 'S' && cigar.lengths[0] == seqLength && cigar.ops[1] == 'N') {
+				System.err.println("skipping BAM record " + recordNum + " whose CIGAR is only in its CG tag");
+				continue;
+			}
+
+			int refLength = seqLength;
+			boolean project = cigar.needsProjection(seqLength);
+			if (project) {
+				if (!cigar.project(seqLength)) {
+					System.err.println("skipping BAM record " + recordNum + " whose CIGAR doesn't match its SEQ");
+					continue;
+				}
+
+				refLength = cigar.refLength;
+				if (refLength == 0) continue;
+			}
+
+			if (parser.contigsSeen != null) {
+				parser.addToContig(nameIndex, refID >= 0 && refID < refNames.length ? refNames[refID] : "*", 0, 0, Math.max(startPos, 1) - 1 + refLength);
+				continue;
+			}
+
+			reads.addPacked(startPos, window, seqStart, seqLength, project ? cigar : null);
+			if (project) parser.readsProjected++;
+			parser.readsParsed++;
+		}
+	}
+
+	// makes sure n bytes are inflated at window[at...], moving the bytes left over to the front of the next batch
+	// returns: false if the file ends first
+	private boolean ensure(int n) throws IOException {
+		while (limit - at < n) {
+			Batch batch = nextBatch();
+			if (batch == null) return false;
+
+			// (the window grows with room for a block's worth left over, so it hardly ever grows again)
+			int left = limit - at;
+			int size = batch.inflatedStart[batch.numBlocks];
+			if (window.length < left + size) {
+				byte[] grown = new byte[left + size + MAX_BLOCK_SIZE];
+				System.arraycopy(window, at, grown, 0, left);
+				window = grown;
+			} else {
+				System.arraycopy(window, at, window, 0, left);
+			}
+			System.arraycopy(batch.inflated, 0, window, left, size);
+
+			at = 0;
+			limit = left + size;
+			spare = batch;
+		}
+
+		return true;
+	}
+
+	// returns: the next batch, inflated, after starting the one after it; null at the end of the file
+	private Batch nextBatch() throws IOException {
+		if (pending == null) pending = startBatch();
+		if (pending == null) return null;
+
+		Batch batch;
+		try {
+			batch = pending.join();
+		} catch (RuntimeException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw e;
+		}
+
+		pending = startBatch();
+		return batch;
+	}
+
+	// reads the next batch of blocks and starts inflating them in the background
+	// returns: the inflating batch, or null at the end of the file
+	private ForkJoinTask<Batch> startBatch() throws IOException {
+		final Batch batch = readBatch();
+		if (batch == null) return null;
+
+		return pool.submit(new RecursiveTask<Batch>() {
+			protected Batch compute() {
+				new InflateBlocks(batch, 0, batch.numBlocks).invoke();
+				return batch;
+			}
+		});
+	}
+
+	// the compressed blocks of a batch, and where each one inflates to (inflated may be longer)
+	static class Batch {
+		byte[] compressed = new byte[BATCH_BLOCKS * MAX_BLOCK_SIZE];
+		int[] dataStart = new int[BATCH_BLOCKS];    // the deflated data of every block in compressed
+		int[] dataLength = new int[BATCH_BLOCKS];
+		int[] crc = new int[BATCH_BLOCKS];          // the CRC32 of the inflated data
+		int[] inflatedStart = new int[BATCH_BLOCKS + 1];
+		int numBlocks = 0;
+
+		byte[] inflated;
+	}
+
+	// returns: the next (up to) BATCH_BLOCKS blocks, read but not inflated, or null at the end of the file
+	private Batch readBatch() throws IOException {
+		if (endOfFile) return null;
+
+		Batch batch = spare != null ? spare : new Batch();
+		spare = null;
+		batch.numBlocks = 0;
+		byte[] b = batch.compressed;
+		int c = 0;
+		while (batch.numBlocks < BATCH_BLOCKS) {
+			// ID1 ID2 CM FLG MTIME XFL OS XLEN, then XLEN bytes of subfields, one of them BC (BSIZE)
+			int first = in.read();
+			if (first == -1) {
+				endOfFile = true;
+				break;
+			}
+
+			b[c] = (byte)first;
+			in.readFully(b, c + 1, 11);
+			if ((b[c] & 0xff) != 31 || (b[c + 1] & 0xff) != 139 || b[c + 2] != 8 || (b[c + 3] & 4) == 0)
+				throw new IOException(fileName + " is not BGZF compressed (bad block header)");
+
+			int extraLength = (b[c + 10] & 0xff) | (b[c + 11] & 0xff) << 8;
+			in.readFully(b, c + 12, extraLength);
+
+			int blockSize = -1;
+			for (int x = c + 12; x + 4 <= c + 12 + extraLength; ) {
+				int subfieldLength = (b[x + 2] & 0xff) | (b[x + 3] & 0xff) << 8;
+				if (b[x] == 'B' && b[x + 1] == 'C' && subfieldLength == 2)
+					blockSize = ((b[x + 4] & 0xff) | (b[x + 5] & 0xff) << 8) + 1;
+				x += 4 + subfieldLength;
+			}
+
+			if (blockSize < 12 + extraLength + 8)
+				throw new IOException(fileName + " is not BGZF compressed (no block size)");
+
+			int dataStart = c + 12 + extraLength;
+			in.readFully(b, dataStart, blockSize - 12 - extraLength);
+
+			int n = batch.numBlocks++;
+			batch.dataStart[n] = dataStart;
+			batch.dataLength[n] = blockSize - 12 - extraLength - 8;
+			batch.crc[n] = int32(b, c + blockSize - 8);
+			batch.inflatedStart[n + 1] = batch.inflatedStart[n] + int32(b, c + blockSize - 4);
+			c += blockSize;
+		}
+
+		if (batch.numBlocks == 0) return null;
+
+		if (batch.inflated == null || batch.inflated.length < batch.inflatedStart[batch.numBlocks])
+			batch.inflated = new byte[batch.inflatedStart[batch.numBlocks]];
+		return batch;
+	}
+
+	// inflates the blocks [lo, hi) of a batch
+	static class InflateBlocks extends RecursiveAction {
+		final Batch batch;
+		final int lo, hi;
+
+		InflateBlocks(Batch batch, int lo, int hi) {
+			this.batch = batch;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo > BLOCKS_PER_TASK) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new InflateBlocks(batch, lo, mid), new InflateBlocks(batch, mid, hi));
+				return;
+			}
+
+			Inflater inflater = new Inflater(true);
+			CRC32 crc = new CRC32();
+			try {
+				for (int n = lo; n < hi; n++) {
+					int start = batch.inflatedStart[n];
+					int size = batch.inflatedStart[n + 1] - start;
+
+					inflater.reset();
+					inflater.setInput(batch.compressed, batch.dataStart[n], batch.dataLength[n]);
+					int got = 0;
+					while (got < size) {
+						int k = inflater.inflate(batch.inflated, start + got, size - got);
+						if (k == 0 && (inflater.finished() || inflater.needsInput())) break;
+						got += k;
+					}
+
+					crc.reset();
+					crc.update(batch.inflated, start, size);
+					if (got != size || (int)crc.getValue() != batch.crc[n])
+						throw new RuntimeException(new IOException("corrupt BGZF block (its size or CRC doesn't match)"));
+				}
+			} catch (DataFormatException e) {
+				throw new RuntimeException(new IOException("corrupt BGZF block: " + e.getMessage()));
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+
+	private int int32(int p) {
+		return int32(window, p);
+	}
+
+	private int uint16(int p) {
+		return (window[p] & 0xff) | (window[p + 1] & 0xff) << 8;
+	}
+
+	// returns: the little-endian int at data[p]
+	static int int32(byte[] data, int p) {
+		return (data[p] & 0xff) | (data[p + 1] & 0xff) << 8 | (data[p + 2] & 0xff) << 16 | data[p + 3] << 24;
+	}
+}
@@ -0,0 +1,149 @@
+import java.io.IOException;
+
+/**
+ * How a band of values (numWindow around each of numPos positions, row by
+ * row, 0 outside of the positions) is written to a .dat file, chosen per file
+ * from its values:
+ *
+ *  - counts are written as ints of the fewest bytes (1, 2 or 4) that hold
+ *    the largest of them exactly;
+ *  - other values are written as fixed point ints of precisionBytes (floats
+ *    if that is 4): value = stored / (2^(8 * precision - 1) - 1) * 2^scale,
+ *    2^scale being the smallest power of two covering the largest magnitude
+ *    (a metric in [-1, 1] has scale 0);
+ *  - the cells are listed sparsely (an int index, then the value) when that
+ *    takes fewer bytes than writing every cell.
+ *
+ * The header flags are those of setHeaderFlags plus FIXED_POINT (with the
+ * scale at SCALE_SHIFT) and, on sparse files, ZERO_FILLED: the cells left out
+ * are zeros that are part of the data (as opposed to cells with no data).
+ */
+class BandEncoding {
+	static final int FIXED_POINT = 1 << 6;
+	static final int ZERO_FILLED = 1 << 7;
+	static final int SCALE_SHIFT = 8; // 4 bits
+	static final int MAX_SCALE = 15;
+
+	// fills in row i of the band
+	interface Rows {
+		void fill(int i, float[] row);
+	}
+
+	final int numPos;
+	final int numWindow;
+	final boolean sparse;
+	final boolean isInt;      // counts, written as they are
+	final boolean fixedPoint;
+	final int precisionBytes; // bytes per value (4 for floats)
+	final int scale;
+
+	private final double multiplier; // stored = round(value * multiplier), for fixed point
+
+	private BandEncoding(int numPos, int numWindow, boolean sparse, boolean isInt, boolean fixedPoint, int precisionBytes, int scale) {
+		this.numPos = numPos;
+		this.numWindow = numWindow;
+		this.sparse = sparse;
+		this.isInt = isInt;
+		this.fixedPoint = fixedPoint;
+		this.precisionBytes = precisionBytes;
+		this.scale = scale;
+		this.multiplier = maxStored(precisionBytes) / Math.scalb(1.0, scale);
+	}
+
+	// returns: the encoding of the band, from a pass over its values; counts are kept exact, other values
+	// take precisionBytes (1, 2 or 4)
+	static BandEncoding choose(Rows rows, int numPos, int numWindow, boolean counts, int precisionBytes) {
+		float[] row = new float[numWindow];
+		long nonZero = 0;
+		double maxAbs = 0.0;
+		for (int i = 0; i < numPos; i++) {
+			rows.fill(i, row);
+			for (int d = 0; d < numWindow; d++) {
+				if (row[d] == 0) continue;
+
+				nonZero++;
+				if (Math.abs(row[d]) > maxAbs && !Float.isInfinite(row[d])) maxAbs = Math.abs(row[d]);
+			}
+		}
+
+		int scale = 0;
+		if (counts) {
+			precisionBytes = 1;
+			while (precisionBytes < 4 && maxAbs > maxStored(precisionBytes))
+				precisionBytes <<= 1;
+		} else if (precisionBytes < 4) {
+			while (scale < MAX_SCALE && Math.scalb(1.0, scale) < maxAbs)
+				scale++;
+		}
+
+		boolean sparse = nonZero * (4 + precisionBytes) < (long)numPos * numWindow * precisionBytes;
+		return new BandEncoding(numPos, numWindow, sparse, counts, !counts && precisionBytes < 4, precisionBytes, scale);
+	}
+
+	// returns: the largest magnitude stored in an int of the given number of bytes
+	static int maxStored(int precisionBytes) {
+		return precisionBytes >= 4 ? Integer.MAX_VALUE : (1 << (8 * precisionBytes - 1)) - 1;
+	}
+
+	int headerFlags() {
+		boolean ints = isInt || fixedPoint;
+		int flags = CoOccurLibrary.setHeaderFlags(sparse, ints, ints ? precisionBytes : 1, 1);
+		if (fixedPoint) flags |= FIXED_POINT | scale << SCALE_SHIFT;
+		if (sparse) flags |= ZERO_FILLED;
+
+		return flags;
+	}
+
+	// writes every row (after the header)
+	void write(DatWriter out, Rows rows) throws IOException {
+		float[] row = new float[numWindow];
+		for (int i = 0; i < numPos; i++) {
+			rows.fill(i, row);
+
+			if (!sparse && !isInt && !fixedPoint) {
+				out.writeFloats(row, 0, numWindow);
+				out.cells += numWindow;
+				continue;
+			}
+
+			for (int d = 0; d < numWindow; d++) {
+				if (sparse) {
+					if (row[d] == 0) continue;
+					out.writeInt(i * numWindow + d);
+				}
+
+				writeValue(out, row[d]);
+				out.cells++;
+			}
+		}
+	}
+
+	private void writeValue(DatWriter out, float value) throws IOException {
+		if (!isInt && !fixedPoint) {
+			out.writeFloat(value);
+			return;
+		}
+
+		int stored;
+		if (isInt) {
+			stored = (int)value;
+		} else {
+			// (NaN is stored as 0, and values beyond the scale at its ends)
+			long max = maxStored(precisionBytes);
+			stored = (int)Math.max(-max, Math.min(max, Math.round(value * multiplier)));
+		}
+
+		if (precisionBytes == 1)
+			out.writeByte(stored);
+		else if (precisionBytes == 2)
+			out.writeShort(stored);
+		else
+			out.writeInt(stored);
+	}
+
+	public String toString() {
+		String values = isInt ? 8 * precisionBytes + "-bit counts" :
+				fixedPoint ? 8 * precisionBytes + "-bit fixed point in [-2^" + scale + ", 2^" + scale + "]" : "floats";
+		return (sparse ? "sparse " : "dense ") + values;
+	}
+}
@@ -0,0 +1,44 @@
+/**
+ * A banded (diagonal) matrix of doubles covering every pair (i, j) with
+ * |j - i| <= windowSize; see BandedIntMatrix for the layout.
+ */
+class BandedDoubleMatrix {
+	final int numPos;
+	final int windowSize;
+	final int numWindow;
+
+	final double[] data;
+
+	BandedDoubleMatrix(int numPos, int windowSize) {
+		this.numPos = numPos;
+		this.windowSize = windowSize;
+		this.numWindow = 2 * windowSize + 1;
+
+		long cells = (long)numPos * numWindow;
+		if (cells > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("band of " + numPos + " positions with a window of " + windowSize +
+					" is too large to allocate");
+
+		this.data = new double[(int)cells];
+	}
+
+	// returns: if (i, j) is inside the matrix and within the window of each other
+	boolean inBand(int i, int j) {
+		int dj = j - i;
+		return i >= 0 && i < numPos && j >= 0 && j < numPos && dj >= -windowSize && dj <= windowSize;
+	}
+
+	// returns: the offset in data of cell (i, j); assumes inBand(i, j)
+	int index(int i, int j) {
+		return i * numWindow + (j - i + windowSize);
+	}
+
+	// returns: the value at (i, j), or 0 if the pair lies outside of the band
+	double get(int i, int j) {
+		return inBand(i, j) ? data[index(i, j)] : 0.0;
+	}
+
+	void set(int i, int j, double value) {
+		data[index(i, j)] = value;
+	}
+}
@@ -0,0 +1,102 @@
+import java.util.Arrays;
+
+/**
+ * A banded (diagonal) matrix of ints covering every pair (i, j) with
+ * |j - i| <= windowSize.  Cells are stored row-major by (i, dj), so the
+ * +/- window around a position is one contiguous run of the backing array
+ * and the memory footprint is numPos * (2 * windowSize + 1) * spacing.
+ *
+ * Each cell holds <spacing> consecutive values (e.g. 4 for the 2x2 variant
+ * counts), matching the spacing field written by setHeaderFlags().
+ */
+class BandedIntMatrix {
+	final int numPos;
+	final int windowSize;
+	final int numWindow;
+	final int spacing;
+
+	final int[] data;
+
+	BandedIntMatrix(int numPos, int windowSize, int spacing) {
+		this.numPos = numPos;
+		this.windowSize = windowSize;
+		this.numWindow = 2 * windowSize + 1;
+		this.spacing = spacing;
+
+		long cells = (long)numPos * numWindow * spacing;
+		if (cells > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("band of " + numPos + " positions with a window of " + windowSize +
+					" (x" + spacing + ") is too large to allocate");
+
+		this.data = new int[(int)cells];
+	}
+
+	// returns: if (i, j) is inside the matrix and within the window of each other
+	boolean inBand(int i, int j) {
+		int dj = j - i;
+		return i >= 0 && i < numPos && j >= 0 && j < numPos && dj >= -windowSize && dj <= windowSize;
+	}
+
+	// returns: the offset in data of the first value of cell (i, j); assumes inBand(i, j)
+	int index(int i, int j) {
+		return (i * numWindow + (j - i + windowSize)) * spacing;
+	}
+
+	// returns: the offset in data of the first cell of row i (dj = -windowSize)
+	int rowIndex(int i) {
+		return i * numWindow * spacing;
+	}
+
+	// returns: the first value at (i, j), or 0 if the pair lies outside of the band
+	int get(int i, int j) {
+		return inBand(i, j) ? data[index(i, j)] : 0;
+	}
+
+	// returns: the n-th value at (i, j), or 0 if the pair lies outside of the band
+	int get(int i, int j, int n) {
+		return inBand(i, j) ? data[index(i, j) + n] : 0;
+	}
+
+	void set(int i, int j, int n, int value) {
+		data[index(i, j) + n] = value;
+	}
+
+	// returns: the sum of all values at cell (i, j)
+	int sum(int i, int j) {
+		if (!inBand(i, j)) return 0;
+
+		int offset = index(i, j);
+		int total = 0;
+		for (int n = 0; n < spacing; n++)
+			total += data[offset + n];
+
+		return total;
+	}
+
+	// fills the lower half of the band (j < i) from the upper half, for counts that are symmetric: 
+	// a cell of k x k values (spacing = k * k, e.g. 4x4 base pairs) is transposed, so value 
+	// [a][b] of (i, j) is value [b][a] of (j, i); any other spacing is copied as is
+	void mirrorUpperHalf() {
+		int k = (int)Math.sqrt(spacing);
+		boolean transpose = k * k == spacing && k > 1;
+
+		for (int i = 1; i < numPos; i++) {
+			for (int j = Math.max(0, i - windowSize); j < i; j++) {
+				int to = index(i, j), from = index(j, i);
+				if (!transpose) {
+					System.arraycopy(data, from, data, to, spacing);
+					continue;
+				}
+
+				for (int a = 0; a < k; a++) {
+					for (int b = 0; b < k; b++)
+						data[to + a * k + b] = data[from + b * k + a];
+				}
+			}
+		}
+	}
+
+	void clear() {
+		Arrays.fill(data, 0);
+	}
+}
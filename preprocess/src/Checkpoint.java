@@ -0,0 +1,431 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Checkpoints of a long run in its output directory, so a run that dies
+ * (out of memory, or a preempted job) can be resumed with --resume:
+ *
+ *  - READS_FILE: the parsed reads, written once parsing is done.  Written to
+ *    a temporary file first, so it is either complete or not there at all.
+ *  - ROWS_FILE: the rows of the 4x4 and 2x2 counts, appended one range of
+ *    rows at a time as PositionSweep finishes them.  Only the non-zero counts
+ *    are written (most are zero), each as the gap to the one before it and
+ *    its value, both as varints (mostly a byte or two each).  A range that was only partly written when the run died is
+ *    dropped on resuming.
+ *
+ * Everything is written on one background thread while the run goes on, and
+ * compressed (deflate, fastest level).  The arrays handed over are read as
+ * they are; the run doesn't change them once they are checkpointed.
+ *
+ * A checkpoint only resumes the same input (its name, size and modification
+ * time), and the rows only the same reads, reference and window.  finish()
+ * removes both files once the run is done.
+ */
+class Checkpoint implements PositionSweep.RowsDone {
+	static final int MAGIC = 0x43504b31; // "CPK1"
+	static final int VERSION = 2;
+	static final int CHUNK_BYTES = 1 << 20;
+	static final int END_OF_ROWS = 0; // ends the non-zero counts of a band in a range of rows (no gap is 0)
+
+	static final String READS_FILE = "reads.checkpoint";
+	static final String ROWS_FILE = "rows.checkpoint";
+
+	final String readsFile;
+	final String rowsFile;
+	final String inputKey; // the input file, as name:size:modified
+
+	// (a daemon, so a run that dies doesn't hang on it)
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "checkpoint");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private final List<Future<?>> pending = new ArrayList<Future<?>>();
+
+	private RandomAccessFile rows; // open while rows are checkpointed
+	private BandedIntMatrix cooccurCounts, variantCounts;
+
+	Checkpoint(String directory, String inputFile) {
+		readsFile = directory + READS_FILE;
+		rowsFile = directory + ROWS_FILE;
+
+		File input = new File(inputFile);
+		inputKey = input.getName() + ":" + input.length() + ":" + input.lastModified();
+	}
+
+	// starts writing the reads to READS_FILE
+	void saveReads(final ReadStore reads) {
+		submit(new IOTask() {
+			public void run() throws IOException {
+				String tempName = readsFile + ".tmp";
+				Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+				DataOutputStream out = new DataOutputStream(deflating(new FileOutputStream(tempName), deflater));
+				try {
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					out.writeUTF(inputKey);
+					out.writeInt(reads.size);
+					out.writeInt(reads.numWords);
+
+					writeInts(out, reads.startPos, 0, reads.size, null);
+					writeInts(out, reads.length, 0, reads.size, null);
+					writeLongs(out, reads.words, reads.numWords);
+					writeInts(out, reads.nMask, 0, reads.numWords, null);
+				} finally {
+					out.close();
+					deflater.end();
+				}
+
+				Files.move(Paths.get(tempName), Paths.get(readsFile), StandardCopyOption.REPLACE_EXISTING);
+			}
+		});
+	}
+
+	// returns: the reads of READS_FILE, or null if there are none (of this input) to resume
+	ReadStore loadReads() {
+		if (!new File(readsFile).isFile()) return null;
+
+		Inflater inflater = new Inflater(true);
+		try {
+			DataInputStream in = new DataInputStream(new InflaterInputStream(new BufferedInputStream(new FileInputStream(readsFile),
+					CHUNK_BYTES), inflater, CHUNK_BYTES));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(inputKey)) {
+					System.out.println("\t" + readsFile + " is of other input; parsing again");
+					return null;
+				}
+
+				int size = in.readInt(), numWords = in.readInt();
+				ReadStore reads = new ReadStore(size, numWords);
+				readInts(in, reads.startPos, 0, size, null);
+				readInts(in, reads.length, 0, size, null);
+				for (int r = 0; r < size; r++)
+					reads.reserveRead(reads.startPos[r], reads.length[r]);
+				readLongs(in, reads.words, numWords);
+				readInts(in, reads.nMask, 0, numWords, null);
+
+				return reads;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.out.println("\tcan't read " + readsFile + " (" + e + "); parsing again");
+			return null;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	// returns: the first row still to count; rows before it are restored from ROWS_FILE into the (empty) counts
+	// when resuming, if they are of the same reads, reference and window (key: see rowsKey()).  The rows
+	// counted from then on are appended to ROWS_FILE through rowsDone()
+	int resumeRows(boolean resume, long key, BandedIntMatrix cooccurCounts, BandedIntMatrix variantCounts) throws IOException {
+		this.cooccurCounts = cooccurCounts;
+		this.variantCounts = variantCounts;
+
+		int nextRow = 0;
+		long end = 16;
+		if (resume && new File(rowsFile).isFile()) {
+			rows = new RandomAccessFile(rowsFile, "rw");
+			if (rows.length() >= 16 && rows.readInt() == MAGIC && rows.readInt() == VERSION && rows.readLong() == key) {
+				// every complete range of rows, in order
+				FileChannel channel = rows.getChannel();
+				while (end + 20 <= rows.length()) {
+					rows.seek(end);
+					int lo = rows.readInt(), hi = rows.readInt();
+					long length = rows.readLong();
+					int crc = rows.readInt();
+					if (lo != nextRow || hi <= lo || length <= 0 || end + 20 + length > rows.length()) break;
+
+					if (!readRows(channel.position(end + 20), lo, hi, crc)) {
+						clearRows(lo, hi);
+						break;
+					}
+
+					nextRow = hi;
+					end += 20 + length;
+				}
+
+				if (nextRow > 0)
+					System.out.println("\tresumed the counts of rows [0, " + nextRow + ") from " + rowsFile);
+			} else {
+				System.out.println("\t" + rowsFile + " is of other reads; counting every row again");
+				end = 16;
+			}
+		} else {
+			rows = new RandomAccessFile(rowsFile, "rw");
+		}
+
+		rows.setLength(end);
+		if (end == 16) {
+			rows.seek(0);
+			rows.writeInt(MAGIC);
+			rows.writeInt(VERSION);
+			rows.writeLong(key);
+		}
+
+		return nextRow;
+	}
+
+	// returns: a key for the rows counted from the given reads and reference with the given window
+	long rowsKey(ReadStore reads, int[] reference, int windowSize) {
+		long key = inputKey.hashCode();
+		key = key * 31 + reads.size;
+		key = key * 31 + reads.numWords;
+		key = key * 31 + windowSize;
+		key = key * 31 + reference.length;
+		return key * 31 + Arrays.hashCode(reference);
+	}
+
+	// starts appending the rows [lo, hi) to ROWS_FILE
+	public void rowsDone(final int lo, final int hi) {
+		submit(new IOTask() {
+			public void run() throws IOException {
+				long start = rows.length();
+				FileChannel channel = rows.getChannel().position(start + 20);
+
+				CRC32 crc = new CRC32();
+				Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+				try {
+					DeflaterOutputStream out = deflating(Channels.newOutputStream(channel), deflater);
+					writeNonZero(out, cooccurCounts.data, cooccurCounts.rowIndex(lo), cooccurCounts.rowIndex(hi), crc);
+					writeNonZero(out, variantCounts.data, variantCounts.rowIndex(lo), variantCounts.rowIndex(hi), crc);
+					out.finish();
+					out.flush();
+				} finally {
+					deflater.end();
+				}
+
+				// the range only counts once its length is there
+				long length = channel.position() - (start + 20);
+				rows.seek(start);
+				rows.writeInt(lo);
+				rows.writeInt(hi);
+				rows.writeLong(length);
+				rows.writeInt((int)crc.getValue());
+			}
+		});
+	}
+
+	// waits for everything to be written; once the run is done, removes the checkpoints
+	void finish(boolean done) {
+		try {
+			for (Future<?> f : pending) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pending.clear();
+			writer.shutdown();
+		}
+
+		try {
+			if (rows != null) rows.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		if (done) {
+			new File(readsFile).delete();
+			new File(rowsFile).delete();
+		}
+	}
+
+	private interface IOTask {
+		void run() throws IOException;
+	}
+
+	private void submit(final IOTask task) {
+		pending.add(writer.submit(new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} catch (IOException e) {
+					// the run goes on; it just can't be resumed from here
+					System.err.println("couldn't write a checkpoint: " + e);
+				}
+			}
+		}));
+	}
+
+	// returns: if the range of rows starting at the channel's position could be read (and matched its crc)
+	private boolean readRows(FileChannel channel, int lo, int hi, int crc) {
+		CRC32 check = new CRC32();
+		Inflater inflater = new Inflater(true);
+		try {
+			InputStream in = new BufferedInputStream(new InflaterInputStream(new BufferedInputStream(Channels.newInputStream(channel), 
+					CHUNK_BYTES), inflater, CHUNK_BYTES), CHUNK_BYTES);
+			readNonZero(in, cooccurCounts.data, cooccurCounts.rowIndex(lo), cooccurCounts.rowIndex(hi), check);
+			readNonZero(in, variantCounts.data, variantCounts.rowIndex(lo), variantCounts.rowIndex(hi), check);
+		} catch (IOException e) {
+			return false;
+		} finally {
+			inflater.end();
+		}
+
+		return (int)check.getValue() == crc;
+	}
+
+	private void clearRows(int lo, int hi) {
+		Arrays.fill(cooccurCounts.data, cooccurCounts.rowIndex(lo), cooccurCounts.rowIndex(hi), 0);
+		Arrays.fill(variantCounts.data, variantCounts.rowIndex(lo), variantCounts.rowIndex(hi), 0);
+	}
+
+	private static DeflaterOutputStream deflating(OutputStream out, Deflater deflater) {
+		return new DeflaterOutputStream(new BufferedOutputStream(out, CHUNK_BYTES), deflater, CHUNK_BYTES);
+	}
+
+	// writes values[from, to) big-endian (adding their bytes to crc, if not null)
+	private static void writeInts(OutputStream out, int[] values, int from, int to, CRC32 crc) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(CHUNK_BYTES);
+		while (from < to) {
+			int n = Math.min(to - from, CHUNK_BYTES >>> 2);
+			buf.clear();
+			buf.asIntBuffer().put(values, from, n);
+			if (crc != null) crc.update(buf.array(), 0, n << 2);
+			out.write(buf.array(), 0, n << 2);
+			from += n;
+		}
+	}
+
+	// writes the non-zero values of values[from, to), each as the gap to the one before it (the first: to from - 1)
+	// and its value, both as varints, then END_OF_ROWS (adding their bytes to crc)
+	private static void writeNonZero(OutputStream out, int[] values, int from, int to, CRC32 crc) throws IOException {
+		byte[] buf = new byte[CHUNK_BYTES];
+		int length = 0, last = from - 1;
+		for (int n = from; n < to; n++) {
+			if (values[n] == 0) continue;
+
+			if (length > CHUNK_BYTES - 10) {
+				crc.update(buf, 0, length);
+				out.write(buf, 0, length);
+				length = 0;
+			}
+			length = putVarint(buf, length, n - last);
+			length = putVarint(buf, length, values[n]);
+			last = n;
+		}
+
+		if (length > CHUNK_BYTES - 5) {
+			crc.update(buf, 0, length);
+			out.write(buf, 0, length);
+			length = 0;
+		}
+		length = putVarint(buf, length, END_OF_ROWS);
+		crc.update(buf, 0, length);
+		out.write(buf, 0, length);
+	}
+
+	// reads the non-zero values of values[from, to) written by writeNonZero (adding their bytes to crc)
+	private static void readNonZero(InputStream in, int[] values, int from, int to, CRC32 crc) throws IOException {
+		int n = from - 1;
+		while (true) {
+			int gap = readVarint(in, crc);
+			if (gap == END_OF_ROWS) return;
+			if (gap < 0 || gap > to - 1 - n)
+				throw new IOException("a count outside of its rows");
+
+			n += gap;
+			values[n] = readVarint(in, crc);
+		}
+	}
+
+	// returns: where the varint of value (7 bits a byte, lowest first) written at buf[at] ends
+	private static int putVarint(byte[] buf, int at, int value) {
+		while ((value & ~0x7f) != 0) {
+			buf[at++] = (byte)(value & 0x7f | 0x80);
+			value >>>= 7;
+		}
+		buf[at++] = (byte)value;
+		return at;
+	}
+
+	private static int readVarint(InputStream in, CRC32 crc) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.read();
+			if (b < 0) throw new EOFException();
+			crc.update(b);
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("a varint too long");
+	}
+
+	private static void writeLongs(OutputStream out, long[] values, int count) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(CHUNK_BYTES);
+		for (int from = 0; from < count; ) {
+			int n = Math.min(count - from, CHUNK_BYTES >>> 3);
+			buf.clear();
+			buf.asLongBuffer().put(values, from, n);
+			out.write(buf.array(), 0, n << 3);
+			from += n;
+		}
+	}
+
+	// reads values[from, to) (adding their bytes to crc, if not null)
+	private static void readInts(InputStream in, int[] values, int from, int to, CRC32 crc) throws IOException {
+		byte[] bytes = new byte[CHUNK_BYTES];
+		while (from < to) {
+			int n = Math.min(to - from, CHUNK_BYTES >>> 2);
+			readFully(in, bytes, n << 2);
+			if (crc != null) crc.update(bytes, 0, n << 2);
+			ByteBuffer.wrap(bytes, 0, n << 2).asIntBuffer().get(values, from, n);
+			from += n;
+		}
+	}
+
+	private static void readLongs(InputStream in, long[] values, int count) throws IOException {
+		byte[] bytes = new byte[CHUNK_BYTES];
+		for (int from = 0; from < count; ) {
+			int n = Math.min(count - from, CHUNK_BYTES >>> 3);
+			readFully(in, bytes, n << 3);
+			ByteBuffer.wrap(bytes, 0, n << 3).asLongBuffer().get(values, from, n);
+			from += n;
+		}
+	}
+
+	private static void readFully(InputStream in, byte[] bytes, int length) throws IOException {
+		for (int got = 0; got < length; ) {
+			int n = in.read(bytes, got, length - got);
+			if (n < 0) throw new EOFException();
+			got += n;
+		}
+	}
+}
@@ -1,18 +1,19 @@
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.*;
-import org.apache.commons.math3.stat.inference.*;
 
 public class CoOccurLibrary {
 
@@ -42,46 +43,318 @@ public class CoOccurLibrary {
 	static String REFERENCE_FA_FILE = ""; // the reference file to use (if blank, use modal sequence)
 	static int refOffset = 0; // the offset with which to modify the reference relative to the given SAM file
 
-	static int numPos = 2500; // maximum number of positions to keep track of (SHFV has 16000, SHIV has 12000)
-	static int numReads = 258000; // maximum number of reads to keep track of (SHFV has 122890, SHIV has 973000)
+	static int requestedNumPos = -1; // number of positions to keep track of, as given to -p (-1 if not given)
 	static int windowSize = 300; // window size around (+/-) position of interest to track co-occurences
+	static boolean windowGiven = false; // whether -w was given (an appended run otherwise takes the window of its counts)
+	static int numThreads = Runtime.getRuntime().availableProcessors(); // number of threads to parse/compute with
+	static boolean usePipeline = false; // accumulate counts while parsing (reads are never all held in memory)
+	static boolean useReadEngine = false; // count pairs read by read (PairAccumulator) rather than position by position
+	static boolean compareEngines = false; // also count with the other engine and check that the counts agree
+	static boolean computeDiversity = false; // also compute the per-position read diversity (readDiversity.dat)
+	static int metricPrecision = 2; // bytes per value of the metric files (4: exact floats, 1 or 2: fixed point)
+	static boolean keepState = false; // keep the counts in counts.state in the output directory (see CountState)
+	static boolean appendToState = false; // add the reads to the counts kept in counts.state instead of counting from scratch
+	static int shard = 0; // with --shard k/N: the shard (k - 1) of the input to count
+	static int numShards = 0; // with --shard k/N: N (0 if the whole input is processed)
+	static List<String> mergeDirs = null; // the output directories of the shards to add up (--merge), or null
+	static boolean checkpointing = false; // keep checkpoints of the reads and of the counted rows (see Checkpoint)
+	static boolean resuming = false; // go on from the checkpoints of an earlier run instead of starting over
+	static int tileSize = 0; // positions per tile of the tiled copies of the .dat files (0: no tiled copies)
+	static int contigsAtOnce = 1; // number of contigs (reference sequences) to process at the same time
+	static volatile boolean failed = false; // set when any run fails, so the program exits with -1 once every run is done
 
 	static char bases[] = {'A', 'T', 'C', 'G'};
 
 	static HashMap<String, Integer> names = new HashMap<String, Integer>(); 
 	static int nextAvailIndex = 0;
 	
-	static enum CooccurMetric { CONJ_PROB, DIFF_FROM_EXPECTED, RATIO_OF_OBSERVED_TO_EXPECTED, 
-			OUTLIER_DIFF_FROM_EXPECTED, GATED_DIFF_FROM_EXPECTED, MUTUAL_INFORMATION };
+	static List<CooccurMetric> metrics = Arrays.asList(CooccurMetric.DIFF_FROM_EXPECTED); // the metrics to compute (and write)
 	
-	static int[] givenConsensus; // hold the specified consensus.
-	static int[] modalConsensus; // holds the modal consensus.
-	static double[] variantProbabilities; // holds the variant probabilities at each position i
-	static double[][] readConjProbabilities; // holds the cooccurence variants at j given variants at i
+	// everything below belongs to one contig (or to the whole file, when it only has one)
+	final SamParser.Contig contig; // the contig to process, or null for every read of the file
+	final String outputDirectory;  // where the output files of the contig go
+	final String datasetName;      // its entry in definedData.json (the viewer looks in data/<datasetName>/)
 	
-	static int[][][] variantCounts; // for every overlapping i,j, counts in the 2x2 matrix (mm, mv, vm, vv)
-	static int[][] baseCounts;       // for every position, count the bases (A, T, C, G)
+	int numPos = -1; // number of positions to keep track of (-1 until known: -p, @SQ LN, the reference, or the reads)
 	
-	static Map<PosPair, Map<CooccuringBases, Integer>> cooccurCounts; // for every overlapping i,j, count the 4x4 matrix (A,C,T,G for each pos)
+	int[] givenConsensus; // hold the specified consensus.
+	int[] modalConsensus; // holds the modal consensus.
+	double[] variantProbabilities; // holds the variant probabilities at each position i
+	BandedDoubleMatrix readConjProbabilities; // holds the cooccurence variants at j given variants at i (within the window)
+	BandedDoubleMatrix[] metricValues; // the values of each of the metrics (readConjProbabilities is the first)
+	
+	BandedIntMatrix variantCounts; // for every overlapping i,j, counts in the 2x2 matrix (mm, mv, vm, vv)
+	int[][] baseCounts;       // for every position, count the bases (A, T, C, G)
+	
+	BandedIntMatrix cooccurCounts; // for every overlapping i,j, count the 4x4 matrix (A,T,C,G for each pos; [4 * base_i + base_j])
+
+	double[] cooccurenceMetric; // holds the 1D metric of cooccurence
+	double maxCooccurMetric; // holds the maximum value of above
+	double minCooccurMetric; // holds the minimum value of above
+	
+	BandedIntMatrix readBreadth; // the count of how many reads span from pos i to pos j (within the window)
+	int maxValue;
+	int maxPosition;
 
-	static double[] cooccurenceMetric; // holds the 1D metric of cooccurence
-	static double maxCooccurMetric; // holds the maximum value of above
-	static double minCooccurMetric; // holds the minimum value of above
+	ReadStore reads; // every parsed read, ordered by start position
+	Checkpoint checkpoint; // the checkpoints of the run, or null if it isn't checkpointed
+	List<CountState> partials; // when merging, the partial counts of every shard
 	
-	static float[][] readDistribution; // the distribution of reads at each position
-	static int[] readDepth; // the read depth at every position
-	static double[][] readCounts; // the counts of each base for every position (readCounts[i][n] / readDepth[i] = distribution) 
-	static int[][] readBreadth; // the count of how many reads span from pos i to pos j
-	static int maxValue;
-	static int maxPosition;
-
-	static List<SingleRead> reads;
+	boolean[] newCoverage;                // when appending, whether the new reads cover each position
+	int[] storedReference;                // when appending, the reference the stored variant counts are relative to
+	BandedIntMatrix storedVariantCounts;  // when appending, the stored variant counts
+	OutputStage output; // writes the .dat files in the background
+	RunReport report;      // what the run did and what it cost, phase by phase
+	RunReport.Phase phase; // the phase being run, or null
 	
-	static int actualReads = 0;
+	int actualReads = 0;
+	boolean done = false; // set once every file of the run is written
+
+	CoOccurLibrary(SamParser.Contig contig, String outputDirectory, String datasetName) {
+		this.contig = contig;
+		this.outputDirectory = outputDirectory;
+		this.datasetName = datasetName;
+		this.numPos = requestedNumPos;
+	}
 
 	public static void main(String[] args) {
 		parseArgs(args);
-		setup();
+		
+		List<CoOccurLibrary> runs = new ArrayList<CoOccurLibrary>();
+		String baseName = Paths.get(OUTPUT_DIRECTORY).toAbsolutePath().normalize().getFileName().toString();
+		List<SamParser.Contig> contigs = mergeDirs == null ? findContigs() : null;
+		
+		if (mergeDirs != null) {
+			runs = findMergeRuns(baseName);
+		} else if (contigs.isEmpty()) {
+			// one reference sequence (or none declared): every read goes into the output directory itself
+			runs.add(new CoOccurLibrary(null, OUTPUT_DIRECTORY, baseName));
+		} else {
+			// every contig is processed on its own, into its own subdirectory
+			Set<String> dirNames = new HashSet<String>();
+			for (SamParser.Contig contig : contigs) {
+				String dirName = contig.name.replaceAll("[^A-Za-z0-9._-]", "_");
+				for (int n = 2; !dirNames.add(dirName); n++)
+					dirName = contig.name.replaceAll("[^A-Za-z0-9._-]", "_") + "_" + n;
+				
+				File dir = new File(OUTPUT_DIRECTORY + dirName);
+				if (!dir.isDirectory() && !dir.mkdirs()) {
+					System.err.println("could not create " + dir + "; skipping contig " + contig.name);
+					continue;
+				}
+				
+				runs.add(new CoOccurLibrary(contig, OUTPUT_DIRECTORY + dirName + "/", baseName + "/" + dirName));
+			}
+		}
+		
+		// an appended run goes on in the window of the counts it appends to (setup checks that every contig's agree)
+		if (appendToState && !windowGiven) {
+			for (CoOccurLibrary run : runs) {
+				try {
+					windowSize = CountState.open(run.outputDirectory + CountState.FILE_NAME).windowSize;
+					break;
+				} catch (IOException e) {
+					// (setup reports it)
+				}
+			}
+		}
+		
+		// (nothing to merge, or no contig could be written; why was printed)
+		if (runs.isEmpty())
+			System.exit(-1);
+		
+		runAll(runs);
+		
+		// a shard's counts are only part of the dataset; merging them writes its definedData.json
+		if (numShards == 0)
+			writeDefinedData(runs);
+		
+		if (failed)
+			System.exit(-1);
+	}
+	
+	// returns: a run for every set of counts in the first directory to merge (in it, or in its subdirectories, 
+	// as a run per contig leaves them), each adding up the counts of the same name in every directory
+	static List<CoOccurLibrary> findMergeRuns(String baseName) {
+		List<CoOccurLibrary> runs = new ArrayList<CoOccurLibrary>();
+		List<String> subdirs = new ArrayList<String>();
+		
+		File first = new File(mergeDirs.get(0));
+		if (new File(first, CountState.FILE_NAME).isFile()) {
+			subdirs.add("");
+		} else if (first.listFiles() != null) {
+			File[] children = first.listFiles();
+			Arrays.sort(children);
+			for (File child : children) {
+				if (new File(child, CountState.FILE_NAME).isFile())
+					subdirs.add(child.getName() + "/");
+			}
+		}
+		
+		if (subdirs.isEmpty()) {
+			System.err.println("found no " + CountState.FILE_NAME + " in " + first + " (or its subdirectories) to merge");
+			failed = true;
+		}
+		
+		for (String subdir : subdirs) {
+			List<CountState> partials = new ArrayList<CountState>();
+			String problem;
+			try {
+				for (String dir : mergeDirs)
+					partials.add(CountState.open(dir + subdir + CountState.FILE_NAME));
+				
+				// every shard has to be there, once
+				problem = CountState.checkShards(partials);
+			} catch (IOException e) {
+				problem = e.getMessage();
+			}
+			
+			if (problem != null) {
+				System.err.println("can't merge " + (subdir.isEmpty() ? "the counts" : subdir) + ": " + problem);
+				failed = true;
+				continue;
+			}
+			
+			File dir = new File(OUTPUT_DIRECTORY + subdir);
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				System.err.println("could not create " + dir + "; skipping " + subdir);
+				failed = true;
+				continue;
+			}
+			
+			// (every shard was counted with the same window)
+			windowSize = partials.get(0).windowSize;
+			
+			String name = subdir.isEmpty() ? baseName : baseName + "/" + subdir.substring(0, subdir.length() - 1);
+			CoOccurLibrary run = new CoOccurLibrary(null, OUTPUT_DIRECTORY + subdir, name);
+			run.partials = partials;
+			runs.add(run);
+		}
+		
+		return runs;
+	}
+	
+	// returns: the contigs to process one by one, ordered as in the @SQ header; empty if the whole file is 
+	// processed at once (the header names at most one reference sequence, or fewer than two have reads)
+	static List<SamParser.Contig> findContigs() {
+		List<SamParser.Contig> contigs = new ArrayList<SamParser.Contig>();
+		try {
+			final List<String> declared = new ArrayList<String>(SamParser.readSequenceLengths(INPUT_SAM_FILE).keySet());
+			if (declared.size() <= 1)
+				return contigs;
+			
+			System.out.println("finding the contigs of " + INPUT_SAM_FILE + " (" + declared.size() + " @SQ headers)");
+			for (SamParser.Contig contig : SamParser.findContigs(INPUT_SAM_FILE, numThreads)) {
+				// unmapped reads don't belong to any contig
+				if (!contig.name.equals("*"))
+					contigs.add(contig);
+			}
+			
+			// those not declared in the header go last, in file order
+			Collections.sort(contigs, new Comparator<SamParser.Contig>() {
+				public int compare(SamParser.Contig a, SamParser.Contig b) {
+					int ia = declared.indexOf(a.name), ib = declared.indexOf(b.name);
+					return Integer.compare(ia == -1 ? Integer.MAX_VALUE : ia, ib == -1 ? Integer.MAX_VALUE : ib);
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+			contigs.clear();
+		}
+		
+		for (SamParser.Contig contig : contigs)
+			System.out.println("	" + contig.name + ": " + contig.numReads + " reads");
+		
+		return contigs.size() > 1 ? contigs : new ArrayList<SamParser.Contig>();
+	}
+	
+	// processes every run, contigsAtOnce of them at the same time (each with numThreads threads)
+	static void runAll(List<CoOccurLibrary> runs) {
+		if (runs.size() == 1 || contigsAtOnce == 1) {
+			for (CoOccurLibrary run : runs)
+				run.setup();
+			return;
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(contigsAtOnce, runs.size()));
+		try {
+			List<Future<?>> done = new ArrayList<Future<?>>();
+			for (final CoOccurLibrary run : runs) {
+				done.add(pool.submit(new Runnable() {
+					public void run() {
+						run.setup();
+					}
+				}));
+			}
+			
+			for (Future<?> f : done) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					// (as it would end the program if the runs were processed one by one)
+					e.getCause().printStackTrace();
+					failed = true;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	// writes definedData.json into the output directory, with an entry for every run that wrote all of its
+	// files (to be merged into the viewer's own definedData.json)
+	static void writeDefinedData(List<CoOccurLibrary> allRuns) {
+		List<CoOccurLibrary> runs = new ArrayList<CoOccurLibrary>();
+		for (CoOccurLibrary run : allRuns) {
+			if (run.done) runs.add(run);
+		}
+		
+		String outputFile = OUTPUT_DIRECTORY + "definedData.json";
+		System.out.println("writing to " + outputFile + " ...");
+		
+		try {
+			PrintWriter writer = new PrintWriter(outputFile);
+			writer.println("{");
+			writer.println("  \"datasets\": {");
+			for (int r = 0; r < runs.size(); r++) {
+				CoOccurLibrary run = runs.get(r);
+				
+				StringBuilder metricFiles = new StringBuilder();
+				for (CooccurMetric metric : metrics) {
+					if (metricFiles.length() > 0) metricFiles.append(", ");
+					metricFiles.append(toJson(metric.fileName + ".dat"));
+				}
+				
+				writer.println("    " + toJson(run.datasetName) + ": {");
+				if (run.contig != null)
+					writer.println("      \"contig\": " + toJson(run.contig.name) + ",");
+				writer.println("      \"attenuation\": \"readBreadth.dat\",");
+				writer.println("      \"metrics\": [" + metricFiles + "],");
+				writer.println("      \"fullcounts\": \"fullCounts.dat\",");
+				writer.println("      \"refdata\": \"reference.dat\",");
+				writer.println("      \"variantCounts\": \"variantCounts.dat\",");
+				writer.println("      \"numPos\": " + run.numPos + ",");
+				writer.println("      \"numReads\": " + run.actualReads + ",");
+				if (REFERENCE_FA_FILE != "")
+					writer.println("      \"reference\": " + toJson(Paths.get(REFERENCE_FA_FILE).getFileName().toString()) + ",");
+				writer.println("      \"origData\": " + toJson(INPUT_SAM_FILE == null ? "" : Paths.get(INPUT_SAM_FILE).getFileName().toString()));
+				writer.println("    }" + (r < runs.size() - 1 ? "," : ""));
+			}
+			writer.println("  }");
+			writer.println("}");
+			
+			writer.flush();
+			writer.close();
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	// returns: the given string as a JSON string literal
+	static String toJson(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
 	}
 
 	// use apache commons CLI
@@ -98,10 +371,9 @@ public class CoOccurLibrary {
 					.create('h'));
 
 		options.addOption(OptionBuilder.withLongOpt("inputSAM")
-					.withDescription("The SAM file to process")
+					.withDescription("The SAM, gzipped SAM or BAM file to process (required, unless merging with --merge)")
 					.hasArg()
 					.withArgName("FILE.sam")
-					.isRequired()
 					.create('f'));
 		
 		options.addOption(OptionBuilder.withLongOpt("outputDir")
@@ -111,25 +383,100 @@ public class CoOccurLibrary {
 					.create('d'));
 
 		options.addOption(OptionBuilder.withLongOpt("numReads")
-					.withDescription("The number of reads to expect (run `wc -l <FILE.sam>` to estimate; necessary for memory allocation)")
+					.withDescription("Ignored; the read store grows as the SAM file is parsed (kept so older command lines still work)")
 					.hasArg()
 					.withArgName("reads")
-					.isRequired()
 					.create('n'));
 		
 		options.addOption(OptionBuilder.withLongOpt("numPositions")
-					.withDescription("The number of positions to expect (overestimate by reading number of lines in FILE.sam)")
+					.withDescription("The number of positions to keep (default: the longest @SQ LN of FILE.sam, else the length of the reference, else where the last read ends)")
 					.hasArg()
 					.withArgName("positions")
-					.isRequired()
 					.create('p'));
 
 		options.addOption(OptionBuilder.withLongOpt("windowSize")
-					.withDescription("The number of positions around every positions to check for correlation (default 300)")
+					.withDescription("The number of positions around every positions to check for correlation (default 300, or with --append, that of the counts appended to)")
 					.hasArg()
 					.withArgName("window")
 					.create('w'));
 		
+		options.addOption(OptionBuilder.withLongOpt("threads")
+					.withDescription("The number of threads to use (default: number of available processors)")
+					.hasArg()
+					.withArgName("threads")
+					.create('t'));
+		
+		options.addOption(OptionBuilder.withLongOpt("contigs")
+					.withDescription("The number of contigs (@SQ reference sequences, each written to its own subdirectory) to process at the same time, each with -t threads (default 1)")
+					.hasArg()
+					.withArgName("contigs")
+					.create());
+		
+		options.addOption(OptionBuilder.withLongOpt("pipeline")
+					.withDescription("Accumulate counts while the SAM file is being parsed instead of holding every read in memory")
+					.create());
+		
+		options.addOption(OptionBuilder.withLongOpt("metrics")
+					.withDescription("The metrics to compute from the counts, separated by commas, each written to its own file (default: diff; any of " + 
+							CooccurMetric.cliNames() + ")")
+					.hasArg()
+					.withArgName("metric,...")
+					.create('m'));
+		
+		options.addOption(OptionBuilder.withLongOpt("precision")
+					.withDescription("The bytes per value of the metric files: 2 (16-bit fixed point, default), 1 (8-bit fixed point) or 4 (exact floats)")
+					.hasArg()
+					.withArgName("bytes")
+					.create());
+		
+		options.addOption(OptionBuilder.withLongOpt("state")
+					.withDescription("Also keep the counts in counts.state in the output directory, for later runs to --append to")
+					.create());
+		
+		options.addOption(OptionBuilder.withLongOpt("append")
+					.withDescription("Add the reads of FILE.sam to the counts kept in counts.state (see --state), update it and write every file again, with the positions and window of the counts; counts as --pipeline does")
+					.create());
+		
+		options.addOption(OptionBuilder.withLongOpt("shard")
+					.withDescription("Only count shard k of N (1 to N) of the input, keeping the counts in counts.state for --merge: a stretch of the lines of a SAM file, every N-th read of a compressed one")
+					.hasArg()
+					.withArgName("k/N")
+					.create());
+		
+		options.addOption(OptionBuilder.withLongOpt("merge")
+					.withDescription("Add up the counts that the shard runs (--shard) left in the given output directories and write every file from them, instead of parsing -f")
+					.hasArg()
+					.withArgName("dir,...")
+					.create());
+		
+		options.addOption(OptionBuilder.withLongOpt("checkpoint")
+					.withDescription("Keep checkpoints of the parsed reads and of the counted rows in the output directory while running (removed once done), for --resume")
+					.create());
+		
+		options.addOption(OptionBuilder.withLongOpt("resume")
+					.withDescription("Go on from the checkpoints an interrupted run with --checkpoint left in the output directory (and keep checkpointing)")
+					.create());
+		
+		options.addOption(OptionBuilder.withLongOpt("tiles")
+					.withDescription("Also write every .dat file as a .tiled container of independently compressed tiles of this many positions, for loading any range of positions at once")
+					.hasArg()
+					.withArgName("positions")
+					.create());
+		
+		options.addOption(OptionBuilder.withLongOpt("engine")
+					.withDescription("How to count the pairs of held reads: 'position' (every position i, default) or 'read' (every read once)")
+					.hasArg()
+					.withArgName("position|read")
+					.create());
+		
+		options.addOption(OptionBuilder.withLongOpt("compareEngines")
+					.withDescription("Also count with the other engine and report whether the counts are identical")
+					.create());
+		
+		options.addOption(OptionBuilder.withLongOpt("diversity")
+					.withDescription("Also compute the read diversity of every position (readDiversity.dat); needs the reads held in memory")
+					.create());
+		
 		options.addOption(OptionBuilder.withLongOpt("inputReference")
 					.withDescription("Sets the reference to the sequence found in the given file.")
 					.hasArg()
@@ -152,8 +499,28 @@ public class CoOccurLibrary {
 
 			cl = parser.parse(opts, args);
 
-			// set required properties
-			INPUT_SAM_FILE = cl.getOptionValue('f');
+			// set required properties (the shards to merge stand in for the input file)
+			if (cl.hasOption("merge")) {
+				if (cl.hasOption('f') || !cl.hasOption('d'))
+					throw new ParseException("--merge reads the counts of the shards instead of -f, and writes to the directory given to -d");
+				if (cl.hasOption('p') || cl.hasOption('w'))
+					throw new ParseException("-p and -w don't apply to --merge, which takes the positions and the window of the shards");
+				
+				mergeDirs = new ArrayList<String>();
+				for (String dir : cl.getOptionValue("merge").split(",")) {
+					dir = dir.trim();
+					if (!dir.endsWith("/")) dir += "/";
+					if (!Files.isDirectory(Paths.get(dir)))
+						throw new ParseException("Given directory to merge '" + dir + "' does not exist");
+					mergeDirs.add(dir);
+				}
+				INPUT_SAM_FILE = null;
+			} else if (!cl.hasOption('f')) {
+				throw new ParseException("Missing required option: f");
+			} else {
+				INPUT_SAM_FILE = cl.getOptionValue('f');
+			}
+			
 			if (cl.hasOption('d')) {
 				OUTPUT_DIRECTORY = cl.getOptionValue('d');
 				if (OUTPUT_DIRECTORY.charAt(OUTPUT_DIRECTORY.length() - 1) != '/')
@@ -178,25 +545,28 @@ public class CoOccurLibrary {
 			if (!Files.isDirectory(Paths.get(OUTPUT_DIRECTORY)))
 				throw new ParseException("Given output directory '" + OUTPUT_DIRECTORY + "' does not exist");
 
-			if (Files.notExists(Paths.get(INPUT_SAM_FILE)))
+			if (INPUT_SAM_FILE != null && Files.notExists(Paths.get(INPUT_SAM_FILE)))
 				throw new ParseException("Given input SAM file '" + INPUT_SAM_FILE + "' does not exist");
 
 			// check that -n and -p are integers
-			try {
-				numPos = Integer.parseInt(cl.getOptionValue('p'));
-			} catch (NumberFormatException e) {
-				throw new ParseException("-p was passed a non-integer value: " + cl.getOptionValue('p'));
-			}	
-
-			try {
-				numReads = Integer.parseInt(cl.getOptionValue('n'));
-			} catch (NumberFormatException e) {
-				throw new ParseException("-n was passed a non-integer value: " + cl.getOptionValue('n'));
+			if (cl.hasOption('p')) {
+				try {
+					requestedNumPos = Integer.parseInt(cl.getOptionValue('p'));
+				} catch (NumberFormatException e) {
+					throw new ParseException("-p was passed a non-integer value: " + cl.getOptionValue('p'));
+				}
+				
+				if (requestedNumPos <= 0)
+					throw new ParseException("-p needs at least one position: " + requestedNumPos);
 			}
 
-			// now actually parse the reference (now that we know how many positions there are)
-			if (cl.hasOption('r')) 
-				parseFAReferenceFile();
+			if (cl.hasOption('n')) {
+				try {
+					Integer.parseInt(cl.getOptionValue('n'));
+				} catch (NumberFormatException e) {
+					throw new ParseException("-n was passed a non-integer value: " + cl.getOptionValue('n'));
+				}
+			}
 
 			// handle -w
 			if (cl.hasOption('w')) {
@@ -205,6 +575,112 @@ public class CoOccurLibrary {
 				} catch (NumberFormatException e) {
 					throw new ParseException("-w was passed a non-integer value: " + cl.getOptionValue('w'));
 				}
+				windowGiven = true;
+			}
+
+			// handle --shard
+			if (cl.hasOption("shard")) {
+				String[] shardOf = cl.getOptionValue("shard").split("/");
+				try {
+					if (shardOf.length != 2) throw new NumberFormatException();
+					shard = Integer.parseInt(shardOf[0].trim()) - 1;
+					numShards = Integer.parseInt(shardOf[1].trim());
+				} catch (NumberFormatException e) {
+					throw new ParseException("--shard needs k/N (shard k of N, e.g. 2/8): " + cl.getOptionValue("shard"));
+				}
+				
+				if (numShards < 1 || shard < 0 || shard >= numShards)
+					throw new ParseException("--shard needs 1 <= k <= N: " + cl.getOptionValue("shard"));
+			}
+			
+			// appending, sharding and merging only add up counts, so they accumulate them as the pipeline does
+			appendToState = cl.hasOption("append");
+			keepState = appendToState || cl.hasOption("state");
+			boolean countsOnly = appendToState || numShards > 0 || mergeDirs != null;
+			usePipeline = countsOnly || cl.hasOption("pipeline");
+			if (numShards > 0 && (appendToState || mergeDirs != null))
+				throw new ParseException("--shard can't be combined with --append or --merge");
+
+			// handle -m
+			if (cl.hasOption('m')) {
+				metrics = new ArrayList<CooccurMetric>();
+				for (String name : cl.getOptionValue('m').split(",")) {
+					CooccurMetric metric = CooccurMetric.fromCliName(name.trim());
+					if (metric == null)
+						throw new ParseException("-m was passed an unknown metric: " + name);
+					if (!metrics.contains(metric))
+						metrics.add(metric);
+				}
+			}
+			
+			// handle --engine
+			if (cl.hasOption("engine")) {
+				String engine = cl.getOptionValue("engine");
+				if (engine.equals("read"))
+					useReadEngine = true;
+				else if (!engine.equals("position"))
+					throw new ParseException("--engine must be 'position' or 'read': " + engine);
+			}
+			
+			compareEngines = cl.hasOption("compareEngines");
+			computeDiversity = cl.hasOption("diversity");
+			if (countsOnly && (computeDiversity || cl.hasOption("engine") || compareEngines))
+				throw new ParseException("--append, --shard and --merge only keep counts, so --diversity, --engine and --compareEngines don't apply to them");
+			resuming = cl.hasOption("resume");
+			checkpointing = resuming || cl.hasOption("checkpoint");
+			if (usePipeline && checkpointing)
+				throw new ParseException("--checkpoint and --resume need the reads held in memory, which --pipeline (and --append, --shard and --merge) don't do");
+			if (usePipeline && computeDiversity)
+				throw new ParseException("--diversity needs the reads held in memory, which --pipeline doesn't do");
+			if (usePipeline && (cl.hasOption("engine") || compareEngines))
+				throw new ParseException("--engine and --compareEngines don't apply to --pipeline, which always counts read by read");
+
+			// handle -t
+			if (cl.hasOption('t')) {
+				try {
+					numThreads = Integer.parseInt(cl.getOptionValue('t'));
+				} catch (NumberFormatException e) {
+					throw new ParseException("-t was passed a non-integer value: " + cl.getOptionValue('t'));
+				}
+				
+				if (numThreads <= 0)
+					throw new ParseException("-t needs at least one thread: " + numThreads);
+			}
+			
+			// handle --precision
+			if (cl.hasOption("precision")) {
+				try {
+					metricPrecision = Integer.parseInt(cl.getOptionValue("precision"));
+				} catch (NumberFormatException e) {
+					throw new ParseException("--precision was passed a non-integer value: " + cl.getOptionValue("precision"));
+				}
+				
+				if (metricPrecision != 1 && metricPrecision != 2 && metricPrecision != 4)
+					throw new ParseException("--precision needs 1, 2 or 4 bytes: " + metricPrecision);
+			}
+			
+			// handle --tiles
+			if (cl.hasOption("tiles")) {
+				try {
+					tileSize = Integer.parseInt(cl.getOptionValue("tiles"));
+				} catch (NumberFormatException e) {
+					throw new ParseException("--tiles was passed a non-integer value: " + cl.getOptionValue("tiles"));
+				}
+				
+				if (tileSize <= 0)
+					throw new ParseException("--tiles needs at least one position per tile: " + tileSize);
+			}
+			
+			// handle --contigs
+			if (cl.hasOption("contigs")) {
+				try {
+					contigsAtOnce = Integer.parseInt(cl.getOptionValue("contigs"));
+				} catch (NumberFormatException e) {
+					throw new ParseException("--contigs was passed a non-integer value: " + cl.getOptionValue("contigs"));
+				}
+				
+				if (contigsAtOnce <= 0)
+					throw new ParseException("--contigs needs at least one contig at a time: " + contigsAtOnce);
 			}
 
 		} catch (ParseException exp) {
@@ -223,75 +699,309 @@ public class CoOccurLibrary {
 		formatter.printHelp("CoOccurLibrary", header, opts, footer, true);
 	}
 
-	public static void setup() {
-		// defaults to filling with zeros; see 
-		// http://docs.oracle.com/javase/specs/jls/se7/html/jls-4.html#jls-4.12.5
-		reads = new ArrayList<SingleRead>(numReads);
+	public void setup() {
+		// stays empty when the pipeline accumulates the counts instead
+		reads = new ReadStore();
+		report = new RunReport(datasetName);
 
 		// print out information
-		System.out.println("parsing input file " + INPUT_SAM_FILE + " to " + OUTPUT_DIRECTORY);
+		if (partials != null)
+			System.out.println("merging the counts of " + partials.size() + " shards to " + outputDirectory);
+		else
+			System.out.println("parsing input file " + INPUT_SAM_FILE + (contig == null ? "" : " (contig " + contig.name + ")") + 
+					(numShards == 0 ? "" : " (shard " + (shard + 1) + " of " + numShards + ")") + " to " + outputDirectory);
 		
 		if (REFERENCE_FA_FILE == "")
 			System.out.println("\tusing no reference file (falling back to modal consensus!)");
-		else
+		else {
 			System.out.println("\tusing reference file " + REFERENCE_FA_FILE);
+			parseFAReferenceFile();
+		}
 		
-		System.out.println("parsing approx " + numReads + " reads to " + numPos + " positions with a window of " + windowSize + " around each position");
-
-		DecimalFormat df = new DecimalFormat("0.00");
-		long startTime, endTime;
-		System.out.print("parsing SAM file took ... ");
-		startTime = System.nanoTime();
-		parseSAM();
-		endTime = System.nanoTime();
-		System.out.println(df.format((endTime - startTime) / 1e9) + " seconds");
+		// an appended run goes on from the stored counts, which fix the positions and the window
+		CountState previous = null;
+		if (appendToState) {
+			try {
+				previous = CountState.open(outputDirectory + CountState.FILE_NAME);
+			} catch (IOException e) {
+				System.err.println("can't append to the counts in " + outputDirectory + " (run with --state first): " + e.getMessage());
+				failed = true;
+				return;
+			}
+			
+			if (previous.windowSize != windowSize || (numPos != -1 && numPos != previous.numPos)) {
+				System.err.println("the counts in " + outputDirectory + " are of " + previous.numPos + " positions with a window of " + 
+						previous.windowSize + "; can't append to them with " + (numPos == -1 ? "" : numPos + " positions and ") + 
+						"a window of " + windowSize);
+				failed = true;
+				return;
+			}
+			
+			numPos = previous.numPos;
+			System.out.println("	appending to the counts of " + previous.numReads + " reads in " + previous.fileName);
+		}
+		
+		// so does a merged one, from those of the shards
+		if (partials != null) {
+			for (CountState partial : partials) {
+				if (partial.windowSize != windowSize || partial.numPos != partials.get(0).numPos) {
+					System.err.println(partial.fileName + " holds counts of " + partial.numPos + " positions with a window of " + partial.windowSize + 
+							"; can't merge them with those of " + partials.get(0).numPos + " positions with a window of " + windowSize);
+					failed = true;
+					return;
+				}
+			}
+			
+			numPos = partials.get(0).numPos;
+		}
+		
+		// size everything from the headers (or the reference) when -p isn't given
+		if (numPos == -1)
+			numPos = getGenomeLength();
+		
+		// (finding the contigs already found where their reads end)
+		if (numPos == -1 && contig != null)
+			numPos = Math.max(1, contig.endPos);
 		
-		// unused right now..
-		// populateAllReads();
+		if (numPos == -1 && usePipeline) {
+			System.out.println("no @SQ LN header or reference to size from; scanning " + INPUT_SAM_FILE + " for the last position first");
+			try {
+				numPos = new SamParser(INPUT_SAM_FILE).scanLength();
+			} catch (IOException e) {
+				e.printStackTrace();
+				failed = true;
+				return;
+			}
+		}
+		
+		if (numPos == -1)
+			System.out.println("parsing reads (sized by where the last one ends) with a window of " + windowSize + " around each position");
+		else
+			System.out.println("parsing reads to " + numPos + " positions with a window of " + windowSize + " around each position");
+		System.out.println("\tusing " + numThreads + " thread(s)");
 
+		if (partials != null) {
+			beginPhase("merge", "adding up the counts of the shards");
+			boolean merged = mergePartialCounts();
+			endPhase();
+			
+			if (!merged) {
+				failed = true;
+				return;
+			}
+		} else if (usePipeline) {
+			beginPhase("parse", "parsing and accumulating SAM file");
+			ParsePipeline pipeline = runPipeline();
+			endPhase();
+			
+			// (nothing is written from reads that couldn't be parsed)
+			if (pipeline == null) return;
+			pipeline.printThroughput();
+			
+			if (previous != null) {
+				beginPhase("addStored", "adding the stored counts");
+				boolean added = addStoredCounts(previous);
+				endPhase();
+				
+				if (!added) {
+					failed = true;
+					return;
+				}
+			}
+			
+			// a shard only keeps its counts, to be merged with those of the other shards
+			if (numShards > 0) {
+				beginPhase("saveState", "keeping the counts of the shard in " + outputDirectory + CountState.FILE_NAME);
+				saveCounts(true);
+				endPhase();
+				
+				report.write(outputDirectory + RunReport.FILE_NAME, numThreads, numPos, windowSize);
+				return;
+			}
+		} else {
+			if (checkpointing)
+				checkpoint = new Checkpoint(outputDirectory, INPUT_SAM_FILE);
+			
+			ReadStore resumed = resuming ? checkpoint.loadReads() : null;
+			if (resumed != null) {
+				reads = resumed;
+				System.out.println("\tresumed the " + reads.size + " reads of " + checkpoint.readsFile);
+			} else {
+				beginPhase("parse", "parsing SAM file");
+				SamParser parser = parseSAM();
+				endPhase();
+				
+				// (nothing is written from reads that couldn't be parsed)
+				if (parser == null) {
+					if (checkpoint != null)
+						checkpoint.finish(false);
+					return;
+				}
+				
+				parser.printThroughput();
+				if (checkpoint != null)
+					checkpoint.saveReads(reads);
+			}
+		}
+		
+		if (numPos == -1) {
+			numPos = Math.max(1, reads.endPos());
+			System.out.println("\tsized to " + numPos + " positions");
+		}
+		
+		if (givenConsensus != null)
+			givenConsensus = fitReference(givenConsensus, numPos);
+		
+		// the files are written in the background while the rest is computed
+		output = new OutputStage(numThreads, report);
+		
 		doReadBreadth();
 		// do a test run; just calculate read depth at every position
-		dumpConjProbabilities(CooccurMetric.DIFF_FROM_EXPECTED, true);
-		//dumpConjProbabilities(CooccurMetric.RATIO_OF_OBSERVED_TO_EXPECTED, true);
-		//dumpConjProbabilities(CooccurMetric.OUTLIER_DIFF_FROM_EXPECTED, true);
-		//dumpConjProbabilities(CooccurMetric.GATED_DIFF_FROM_EXPECTED, true);
+		dumpConjProbabilities(metrics, true);
 		//drawConjProbabilities();
 		
 		//getReadDepth();
-		// doReadDiversity();
+		if (computeDiversity)
+			doReadDiversity(true);
+		
+		if (keepState) {
+			beginPhase("saveState", "keeping the counts in " + outputDirectory + CountState.FILE_NAME);
+			saveCounts(false);
+			endPhase();
+		}
+		
+		// (the files are the "write" phase of the report)
+		phase = report.beginWaiting("finish", "finishing the output files");
+		boolean written = output.finish();
+		endPhase();
+		output.printEncodings();
+		
+		// everything is written; nothing is left to resume
+		if (checkpoint != null)
+			checkpoint.finish(true);
+		
+		if (tileSize > 0) {
+			System.out.println("tiling the output files ...");
+			RunReport.Phase tiling = beginPhase("tile", null);
+			if (!TiledDat.convertAll(output.written(), tileSize, numThreads, busy()))
+				written = false;
+			endPhase();
+			System.out.println("tiling took " + new DecimalFormat("0.00").format(tiling.nanos / 1e9) + " seconds");
+		}
+		
+		report.write(outputDirectory + RunReport.FILE_NAME, numThreads, numPos, windowSize);
+		
+		if (!written)
+			failed = true;
+		done = written;
+	}
+	
+	// starts timing the next phase of the run, printing "<what> took ... " (unless what is null)
+	RunReport.Phase beginPhase(String name, String what) {
+		phase = what == null ? report.begin(name) : report.begin(name, what);
+		return phase;
+	}
+	
+	void endPhase() {
+		phase.end();
+		phase = null;
+	}
+	
+	// returns: what the threads working on the phase being run tell how long they work, or null if no phase is
+	RunReport.Busy busy() {
+		return phase == null ? null : phase.busy;
 	}
 
-	static void parseFAReferenceFile() {
+	// reads the bases of the reference into givenConsensus, as long as the reference is; when processing 
+	// one contig, only the record of that name is read (every record is concatenated otherwise)
+	void parseFAReferenceFile() {
 		String line = "";
 		int counter = 0;
+		boolean inRecord = contig == null, found = contig == null;
 
-		givenConsensus = new int[numPos];
-
-		// fill with -1 to signify those positions that have no data attached
-		// (0 already has a special meaning)
-		Arrays.fill(givenConsensus, -1);
+		givenConsensus = new int[1 << 16];
 
 		try {
 			BufferedReader reader = new BufferedReader(new FileReader(new File(REFERENCE_FA_FILE)));
 			while (line != null) {
 				line = reader.readLine();
 				if (line != null) {
-					if (line.startsWith(">"))
+					if (line.startsWith(">")) {
+						if (contig != null) {
+							// the name of a record is the first word of its header
+							String[] header = line.substring(1).trim().split("\\s+", 2);
+							inRecord = header[0].equals(contig.name);
+							found |= inRecord;
+						}
+						continue;
+					}
+					
+					if (!inRecord)
 						continue;
 
 					line = line.trim();
+					if (counter + line.length() > givenConsensus.length)
+						givenConsensus = Arrays.copyOf(givenConsensus, Math.max(counter + line.length(), 2 * givenConsensus.length));
+					
 					for (int i = 0; i < line.length(); i++) {
-						givenConsensus[counter] = SingleRead.bpToIndex(line.charAt(i));
+						givenConsensus[counter] = ReadStore.bpToIndex(line.charAt(i));
 						counter++;
 					}
 				}
 			}
+			
+			reader.close();
 		} catch (IOException e) { 
 			e.printStackTrace();
 		}
 
+		if (!found) {
+			System.out.println("\tno record named " + contig.name + " in the reference (falling back to modal consensus!)");
+			givenConsensus = null;
+			return;
+		}
+
+		givenConsensus = Arrays.copyOf(givenConsensus, counter);
 		System.out.println("successfully parsed " + counter + " positions of reference.");
 	}
+	
+	// returns: the reference cut or padded to the given number of positions; positions past the 
+	// end of the reference are -1 (no data attached, as 0 already has a special meaning)
+	static int[] fitReference(int[] reference, int length) {
+		int[] fitted = Arrays.copyOf(reference, length);
+		if (length > reference.length)
+			Arrays.fill(fitted, reference.length, length, -1);
+		
+		return fitted;
+	}
+	
+	// returns: the number of positions given by the @SQ LN header of the contig (the longest one for the 
+	// whole file), else the length of the reference, else -1
+	int getGenomeLength() {
+		try {
+			Map<String, Integer> lengths = SamParser.readSequenceLengths(INPUT_SAM_FILE);
+			if (contig != null) {
+				if (lengths.containsKey(contig.name)) {
+					System.out.println("\tsized to " + lengths.get(contig.name) + " positions from the @SQ header");
+					return lengths.get(contig.name);
+				}
+			} else if (!lengths.isEmpty()) {
+				int length = Collections.max(lengths.values());
+				System.out.println("\tsized to " + length + " positions from the @SQ header" + (lengths.size() > 1 ? "s" : ""));
+				return length;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		if (givenConsensus != null && givenConsensus.length > 0) {
+			System.out.println("\tsized to " + givenConsensus.length + " positions from the reference");
+			return givenConsensus.length;
+		}
+		
+		return -1;
+	}
+
 
 	static int setHeaderFlags(boolean isSparse, boolean isInt, int precisionBytes, int spacing) {
 		// do some bounds checking
@@ -313,83 +1023,123 @@ public class CoOccurLibrary {
 		return base;
 	} 
 	
-	static void doReadDiversity() {
-		DecimalFormat df = new DecimalFormat("0.00");
-		long startTime, endTime;
-		
-		System.out.print("getting read counts took ... ");
-		startTime = System.nanoTime();
-		getReadCounts();
-		endTime = System.nanoTime();
-		System.out.println(df.format((endTime - startTime) / 1e9) + " seconds");
-		
-		System.out.print("getting every co-occurrence statistic took ... ");
-		startTime = System.nanoTime();
+	void doReadDiversity(boolean writeBinary) {
+		beginPhase("diversity", "getting every co-occurrence statistic");
 		getReadDiversity();
-		endTime = System.nanoTime();
-		System.out.println(df.format((endTime - startTime) / 1e9) + " seconds");
+		endPhase();
+		
+		// dump to file
+		if (writeBinary) {
+			// one value per position
+			output.write(outputDirectory + "readDiversity.dat", 1, numPos, setHeaderFlags(false, false, 4, 1), new OutputStage.Body() {
+				public void write(DatWriter out) throws IOException {
+					for (int i = 0; i < numPos; i++)
+						out.writeFloat((float)cooccurenceMetric[i]);
+					out.cells += numPos;
+				}
+			});
+		}
 	}
 	
-	static void doReadBreadth() {
+	void doReadBreadth() {
 		doReadBreadth(true);
 	}
 
-	static void getReadBreadth() {
-		readBreadth = new int[numPos][numPos];
+	// computes, for every pair (i, j) within the window, the number of reads that span both i and j.
+	// 
+	// a read [s, e] spans (i, i + d) for every i in [s, e - d], so along each diagonal d the count 
+	// is a running sum of +1 events (at s) and -1 events (at e - d + 1).  the +1 events of a read 
+	// cover d = 0..L-1 of row s (L = min(length, windowSize + 1)), and its -1 events lie on the 
+	// anti-diagonal from (e - L + 2, L - 1) to (e + 1, 0); both are expanded with a sweep over d, so 
+	// the whole band costs O(reads + numPos * windowSize) rather than O(reads * length^2).
+	void getReadBreadth() {
+		readBreadth = new BandedIntMatrix(numPos, windowSize, 1);
+		int[] breadth = readBreadth.data;
+		int numWindow = 2 * windowSize + 1;
 		actualReads = 0;
 		
-		for (int i = 0; i < reads.size(); i++) {
-			SingleRead curRead = reads.get(i);
-			if (curRead == null) break;
+		int numSweepReads = reads.size;
+		
+		// bucket every read by the row where it starts leaving the band (reads are sorted by startPos, 
+		// so the +1 events can be consumed in order)
+		int[] exitHead = new int[numPos];
+		int[] exitNext = new int[numSweepReads];
+		int[] exitDiagonal = new int[numSweepReads];
+		Arrays.fill(exitHead, -1);
+		
+		for (int n = 0; n < numSweepReads; n++) {
+			int lastPos = Math.min(reads.lastPos(n), numPos - 1);
+			int spanned = Math.min(lastPos - reads.startPos[n] + 1, windowSize + 1);
 			
-			for (int k = curRead.startPos; k < (curRead.startPos + curRead.length); k++) {
-				for (int n = curRead.startPos; n < (curRead.startPos + curRead.length); n++) {
-					if (++readBreadth[k][n] > maxValue) {
-						maxValue = readBreadth[k][n];
-					}
-				}
-				
-				if (k > maxPosition) maxPosition = k;
+			if (lastPos > maxPosition) maxPosition = lastPos;
+			actualReads++;
+			
+			exitDiagonal[n] = spanned - 1;
+			int exitRow = lastPos - exitDiagonal[n] + 1;
+			if (exitRow < numPos) {
+				exitNext[n] = exitHead[exitRow];
+				exitHead[exitRow] = n;
+			}
+		}
+		
+		int[] entering = new int[windowSize + 2]; // +1 events of this row, differenced over d
+		int[] leaving = new int[windowSize + 2];  // -1 events of this row, carried along the anti-diagonal
+		int[] spanning = new int[windowSize + 1]; // reads spanning (i, i + d) for the current row i
+		int nextRead = 0;
+		
+		for (int i = 0; i < numPos; i++) {
+			Arrays.fill(entering, 0);
+			for (; nextRead < numSweepReads && reads.startPos[nextRead] <= i; nextRead++) {
+				entering[0]++;
+				entering[exitDiagonal[nextRead] + 1]--;
 			}
 			
-			actualReads++;
+			System.arraycopy(leaving, 1, leaving, 0, windowSize + 1);
+			for (int n = exitHead[i]; n != -1; n = exitNext[n])
+				leaving[exitDiagonal[n]]++;
+			
+			int entered = 0;
+			int rowOffset = i * numWindow + windowSize;
+			for (int d = 0; d <= windowSize; d++) {
+				entered += entering[d];
+				spanning[d] += entered - leaving[d];
+				breadth[rowOffset + d] = spanning[d];
+			}
+			
+			// the deepest pair of any row is its own depth (d = 0)
+			if (spanning[0] > maxValue) maxValue = spanning[0];
+		}
+		
+		// the band is symmetric; mirror (i - d, i) into (i, i - d)
+		for (int i = 0; i < numPos; i++) {
+			int rowOffset = i * numWindow + windowSize;
+			for (int d = 1; d <= Math.min(i, windowSize); d++) {
+				breadth[rowOffset - d] = breadth[(i - d) * numWindow + windowSize + d];
+			}
 		}
 	}
 	
-	static void doReadBreadth(boolean writeBinary) {
-		getReadBreadth();
+	void doReadBreadth(boolean writeBinary) {
+		// the pipeline has already accumulated the read breadth
+		if (!usePipeline) {
+			beginPhase("readBreadth", "sweeping the read breadth");
+			getReadBreadth();
+			endPhase();
+		}
 		
 		// dump to file
 		if (writeBinary) {
-			try {
-				String outputFile = OUTPUT_DIRECTORY + "readBreadth.dat";
-				System.out.print("writing to " + outputFile + " ...");
-				
-				DataOutputStream os = new DataOutputStream(new FileOutputStream(outputFile));
-				os.writeInt(2 * windowSize + 1); // number of items around a position (numWindow)
-				os.writeInt(numPos);             // number of positions captured
-				os.writeInt(setHeaderFlags(false, false, 0, 1));
-				
-				for (int i = 0; i < numPos; i++) {
-					for (int dj = -windowSize; dj <= windowSize; dj++) {
-						int j = i + dj;
-						if (j < 0 || j >= numPos) {
-							os.writeFloat(0);
-						} else {
-							os.writeFloat((float)readBreadth[i][j]);
-						}
+			final int numWindow = 2 * windowSize + 1; // number of items around a position
+			output.writeBand(outputDirectory + "readBreadth.dat", numWindow, numPos, new BandEncoding.Rows() {
+				public void fill(int i, float[] row) {
+					// pairs outside of the positions are 0
+					int rowOffset = readBreadth.rowIndex(i);
+					for (int d = 0; d < numWindow; d++) {
+						int j = i + d - windowSize;
+						row[d] = j < 0 || j >= numPos ? 0 : (float)readBreadth.data[rowOffset + d];
 					}
 				}
-				
-				os.flush();
-				os.close();
-				
-				System.out.println(" finished.");
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			}, true, 4);
 		} else {
 			try {
 				PrintWriter file = new PrintWriter("../../data/readBreadth.csv");
@@ -399,10 +1149,10 @@ public class CoOccurLibrary {
 						if (reqIndex < 0) {
 							file.print("0,");
 						} else {
-							file.print(readBreadth[i][reqIndex] + ",");
+							file.print(readBreadth.get(i, reqIndex) + ",");
 						}
 					}
-					file.print(readBreadth[i][i+150]);
+					file.print(readBreadth.get(i, i+150));
 					file.println();
 				}
 			
@@ -414,140 +1164,21 @@ public class CoOccurLibrary {
 		}
 	}
 	
-	static void getReadDiversity() {
-		// hold the minimum read that starts at the current position i
-		int minReadPos = 0;
-		cooccurenceMetric = new double[numPos];
+	// computes the read diversity (see ReadDiversity) at every position from the held reads and baseCounts
+	void getReadDiversity() {
+		ReadDiversity diversity = new ReadDiversity(reads, baseCounts, numPos, windowSize);
+		diversity.busy = busy();
+		diversity.run(numThreads);
+		cooccurenceMetric = diversity.diversity;
 		
 		minCooccurMetric = Double.MAX_VALUE;
-		maxCooccurMetric = Double.MIN_VALUE;
-		
-		// for each position i, separate into four categories
+		maxCooccurMetric = -Double.MAX_VALUE;
 		for (int i = 0; i < numPos; i++) {
-			int numReadsAtThisPos = 0;
-			Map<Character, ArrayList<SingleRead>> categories = new HashMap<Character, ArrayList<SingleRead>>();
-			
-			for (int n = minReadPos; n < reads.size(); n++) {
-				SingleRead curRead = reads.get(n);
-				
-				// if we're out of reads, break out of this collection loop
-				if (curRead == null) break;
-				
-				// if the current read doesn't even start at the current i, break and continue 
-				// (instead of iterating through all reads)
-				if (curRead.startPos > i) break;
-				
-				// if the current read doesn't even reach the current i with its lastpos + window, 
-				// increase minReadPos for subsequent iterations of i
-				if (curRead.lastPos() + windowSize < i) 
-					minReadPos = n;
-				
-				// if the current read doesn't span to i with its lastpos, continue
-				if (curRead.lastPos() < i) continue;
-				
-				char thisReadBase = curRead.getReadAtAbsolutePos(i);
-				if (!categories.containsKey(thisReadBase)) {
-					ArrayList<SingleRead> newList = new ArrayList<SingleRead>();
-					categories.put(thisReadBase, newList);
-				}
-				
-				categories.get(thisReadBase).add(curRead);
-				numReadsAtThisPos++;
-			}
-			
-			// no more read positions to do!
-			if (numReadsAtThisPos == 0) return;
-			
-			// now that we've categorized-up each read at i, 
-			// start stepping through each subsequent read j (within read-length window)
-			int numSamples = 0;
-			for (int j = Math.max(0, i - windowSize); j < (i + windowSize); j++) {
-				
-				// iterate through each i-category
-				for (Map.Entry<Character, ArrayList<SingleRead>> category : categories.entrySet()) {
-					int catIndex = SingleRead.bpToIndex(category.getKey());
-					
-					int coverage = 0;
-					long[] baseCoverage = new long[4];
-					
-					// iterate through each read that matches this i-category
-					for (SingleRead curRead : category.getValue()) {
-						// skip over those entries that don't span this j-th entry
-						if (!curRead.overlaps(j)) continue;
-						
-						baseCoverage[SingleRead.bpToIndex(curRead.getReadAtAbsolutePos(j))]++;
-						coverage++;
-					}
-					
-					// if there is no overlap between the specific read at i and j, continue
-					if (baseCoverage[0] == 0 && baseCoverage[1] == 0 && 
-							baseCoverage[2] == 0 && baseCoverage[3] == 0) 
-						continue;
-				
-					System.out.format("Comparing pos %3d to pos %3d; ", i, j);
-					cooccurenceMetric[i] += getChiSquaredDiff(readCounts[j], baseCoverage);
-					numSamples++;
-				}
-			}
-			
-			// normalize by the 4 * number of j-s that we encountered (logical?)
-			assert(numSamples != 0);
-			cooccurenceMetric[i] /= numSamples;
-			
 			maxCooccurMetric = Math.max(maxCooccurMetric, cooccurenceMetric[i]);
 			minCooccurMetric = Math.min(minCooccurMetric, cooccurenceMetric[i]);
 		}
 	}
 
-	static private double getChiSquaredDiff(double[] pop, long[] sample) {
-		// if there is any count that is zero, remove it 
-		// (as it removes a useless DOF, and chiSquareTest() wants positive counts for the population)
-		List<Integer> indicesToRemove = new ArrayList<Integer>();
-		for (int i = 0; i < pop.length; i++) {
-			if (pop[i] == 0) {
-				indicesToRemove.add(i);
-			}
-		}
-		
-		if (!indicesToRemove.isEmpty()) {
-			double[] tempPop = new double[pop.length - indicesToRemove.size()];
-			long[] tempSample = new long[sample.length - indicesToRemove.size()];
-			
-			int tempCounter = 0;
-			for (int i = 0; i < pop.length; i++) {
-				if (indicesToRemove.contains(i)) continue;
-				
-				tempPop[tempCounter] = pop[i];
-				tempSample[tempCounter] = sample[i];
-				tempCounter++;
-			}
-			
-			pop = tempPop;
-			sample = tempSample;
-		}
-		
-		assert(pop.length != 0);
-		
-		// if only one base is ever seen at this position, a chi-square test doesn't make sense.
-		// return 0 as the p-value
-		if (pop.length == 1) {
-			System.out.println("only one read ever seen at this position j, skipping..");
-			return 0.0;
-		}
-		
-		ChiSquareTest test = new ChiSquareTest();
-		double pvalue = test.chiSquareTest(pop, sample);
-		System.out.format("p-value: %7.6g \n", pvalue);
-		
-		// try doing something silly, like counting the number of p < 0.05
-		double ret = 0.0;
-		if (pvalue <= 0.05) {
-			ret = 1.0;
-		}
-		
-		return ret;
-	}
-	
 	static private float getChiSquaredDistOld(float[][] pop, float[][] sample) {
 		assert(pop.length == sample.length);
 		
@@ -570,231 +1201,305 @@ public class CoOccurLibrary {
 		return dist / 2.f;
 	}
 	
-	private static int getRefAtPos(int pos) {
-		return REFERENCE_FA_FILE == "" ? modalConsensus[pos] : givenConsensus[pos];
+	private int getRefAtPos(int pos) {
+		return givenConsensus == null ? modalConsensus[pos] : givenConsensus[pos];
 	}
 	
-	static void getConjProbabilityFromModalConcensus(CooccurMetric metric) {
-		modalConsensus = new int[numPos];
-		variantProbabilities = new double[numPos];
-		readConjProbabilities = new double[numPos][numPos];
-
-		variantCounts = new int[numPos][numPos][4];
+	void getConjProbabilityFromModalConcensus(List<CooccurMetric> metrics) {
+		if (compareEngines) {
+			// count with the other engine first, and keep its counts to check against
+			if (useReadEngine) countPairsByPosition(); else countPairsByRead();
+			int[][] otherBaseCounts = baseCounts;
+			BandedIntMatrix otherCooccurCounts = cooccurCounts, otherVariantCounts = variantCounts;
+			
+			if (useReadEngine) countPairsByRead(); else countPairsByPosition();
+			printEngineComparison(otherBaseCounts, otherCooccurCounts, otherVariantCounts);
+		} else if (useReadEngine) {
+			countPairsByRead();
+		} else {
+			countPairsByPosition();
+		}
+		
+		getMetricsFromCounts(metrics);
+		printRandomPairCheck();
+	}
+	
+	// fills baseCounts, cooccurCounts and variantCounts by walking the reads that cover each position 
+	// i (in parallel; see PositionSweep)
+	void countPairsByPosition() {
+		variantCounts = new BandedIntMatrix(numPos, windowSize, 4);
 		baseCounts = new int[numPos][4];
 
-		cooccurCounts = new HashMap<PosPair, Map<CooccuringBases, Integer>>();
+		cooccurCounts = new BandedIntMatrix(numPos, windowSize, 16);
+		
+		// count the bases at every position (N and other ambiguous bases aren't counted)
+		int[] codes = new int[512];
+		for (int r = 0; r < reads.size; r++) {
+			codes = reads.getCodes(r, codes);
+			int last = Math.min(reads.lastPos(r), numPos - 1);
+			for (int i = reads.startPos[r]; i <= last; i++) {
+				int base = codes[i - reads.startPos[r]];
+				if (base < ReadStore.BASE_N) baseCounts[i][base]++;
+			}
+		}
 		
-		Map<Integer, Map<Character, ArrayList<SingleRead>>> readCategories = new HashMap<Integer, Map<Character, ArrayList<SingleRead>>>();
-		int minReadPos = 0;
+		// discover what is the consensus read at each position
+		getModalConsensusFromBaseCounts();
 		
-		// get the consensus sequence and collect reads at the same time
-		for (int i = 0; i < numPos; i++) {
-			int numReadsAtThisPos = 0;
-			int[] readCounts = new int[4];
-			Map<Character, ArrayList<SingleRead>> curCategories = new HashMap<Character, ArrayList<SingleRead>>();
+		int[] reference = new int[numPos];
+		for (int i = 0; i < numPos; i++)
+			reference[i] = getRefAtPos(i);
+		
+		// now actually do some calculations, one row at a time (in parallel)
+		PositionSweep sweep = new PositionSweep(reads, reference, baseCounts, cooccurCounts, variantCounts);
+		sweep.busy = busy();
+		if (checkpoint == null) {
+			sweep.run(numThreads);
+			return;
+		}
+		
+		int from;
+		try {
+			from = checkpoint.resumeRows(resuming, checkpoint.rowsKey(reads, reference, windowSize), cooccurCounts, variantCounts);
+		} catch (IOException e) {
+			// count without checkpoints
+			e.printStackTrace();
+			cooccurCounts.clear();
+			variantCounts.clear();
+			sweep.run(numThreads);
+			return;
+		}
+		
+		sweep.run(numThreads, from, checkpoint);
+	}
+	
+	// fills baseCounts, cooccurCounts and variantCounts by adding every read once to its pairs: 
+	// each of numThreads PairAccumulators owns an interleaved share of the rows
+	void countPairsByRead() {
+		baseCounts = new int[numPos][4];
+		cooccurCounts = new BandedIntMatrix(numPos, windowSize, 16);
+		
+		// readBreadth has already been swept
+		final PairAccumulator[] accumulators = new PairAccumulator[numThreads];
+		final RunReport.Busy busy = busy();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int n = 0; n < numThreads; n++) {
+			final PairAccumulator accumulator = new PairAccumulator(null, cooccurCounts, baseCounts, n, numThreads);
+			accumulators[n] = accumulator;
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					long startTime = System.nanoTime();
+					for (int r = 0; r < reads.size; r++)
+						accumulator.add(reads, r);
+					if (busy != null) busy.add(System.nanoTime() - startTime);
+				}
+			}));
+		}
+		
+		for (Thread t : threads) t.start();
+		try {
+			for (Thread t : threads) t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while counting pairs", e);
+		}
+		
+		cooccurCounts.mirrorUpperHalf();
+		
+		getModalConsensusFromBaseCounts();
+		getVariantCountsFromCooccurCounts();
+	}
+	
+	// prints whether the counts of the engine just run match the other engine's
+	void printEngineComparison(int[][] otherBaseCounts, BandedIntMatrix otherCooccurCounts, BandedIntMatrix otherVariantCounts) {
+		String other = useReadEngine ? "position" : "read";
+		String mismatch = null;
+		
+		for (int i = 0; i < numPos && mismatch == null; i++) {
+			if (!Arrays.equals(baseCounts[i], otherBaseCounts[i]))
+				mismatch = "baseCounts at " + i;
+		}
+		
+		if (mismatch == null)
+			mismatch = findMismatch("cooccurCounts", cooccurCounts, otherCooccurCounts);
+		if (mismatch == null)
+			mismatch = findMismatch("variantCounts", variantCounts, otherVariantCounts);
+		
+		if (mismatch == null)
+			System.out.println("	counts match the " + other + " engine");
+		else
+			System.err.println("	counts differ from the " + other + " engine: " + mismatch);
+	}
+	
+	// returns: where the two bands first differ, or null if they are identical
+	private String findMismatch(String name, BandedIntMatrix a, BandedIntMatrix b) {
+		for (int n = 0; n < a.data.length; n++) {
+			if (a.data[n] == b.data[n]) continue;
 			
-			// collect reads for this position
-			for (int n = minReadPos; n < reads.size(); n++) {
-				SingleRead curRead = reads.get(n);
-				
-				if (curRead == null) break;
-				if (curRead.startPos > i) break; // TODO: this line assumes that the reads are ordered by startPos
-				
-				if (curRead.lastPos() + windowSize < i)
-					minReadPos = n;
-				
-				if (curRead.lastPos() < i) continue;
-				
-				char thisReadBase = curRead.getReadAtAbsolutePos(i);
-				if (!curCategories.containsKey(thisReadBase)) {
-					ArrayList<SingleRead> newList = new ArrayList<SingleRead>();
-					curCategories.put(thisReadBase, newList);
+			int cell = n / a.spacing;
+			int i = cell / a.numWindow;
+			int j = i + cell % a.numWindow - windowSize;
+			return name + " at (" + i + ", " + j + ")[" + n % a.spacing + "]: " + a.data[n] + " vs. " + b.data[n];
+		}
+		
+		return null;
+	}
+	
+	// derives the modal consensus (and the probability of a variant) at every position from baseCounts
+	void getModalConsensusFromBaseCounts() {
+		modalConsensus = new int[numPos];
+		variantProbabilities = new double[numPos];
+		
+		for (int i = 0; i < numPos; i++) {
+			int maxCounts = 0; int maxRead = -1; int totalCounts = 0;
+			for (int b = 0; b < 4; b++) {
+				totalCounts += baseCounts[i][b];
+				if (baseCounts[i][b] > maxCounts) {
+					maxRead = b;
+					maxCounts = baseCounts[i][b];
 				}
-				
-				curCategories.get(thisReadBase).add(curRead);
-				numReadsAtThisPos++;
-				
-				readCounts[SingleRead.bpToIndex(thisReadBase)]++;
 			}
 			
-			// discover what is the consensus read at this position
-			if (numReadsAtThisPos == 0)
-				modalConsensus[i] = -1;
-			else {
-				readCategories.put(i, curCategories);
-				
-				int maxCounts = 0; int maxRead = -1; int totalCounts = 0;
-				for (int b = 0; b < 4; b++) {
-					baseCounts[i][b] = (short)readCounts[b];
-					totalCounts += readCounts[b];
-					if (readCounts[b] > maxCounts) {
-						maxRead = b;
-						maxCounts = readCounts[b];
-					}
-				}
-				
-				modalConsensus[i] = maxRead;
-				
-				// calculate the variant probability at this position i
+			modalConsensus[i] = maxRead;
+			
+			// calculate the variant probability at this position i
+			if (totalCounts != 0)
 				variantProbabilities[i] = ((double)(totalCounts - maxCounts)) / totalCounts;
-			}
 		}
+	}
+	
+	// collapses the 4x4 cooccurCounts of every pair into the 2x2 variantCounts (mm, mv, vm, vv) 
+	// relative to the reference at i and j
+	void getVariantCountsFromCooccurCounts() {
+		variantCounts = new BandedIntMatrix(numPos, windowSize, 4);
+		
+		for (int i = 0; i < numPos; i++)
+			countVariantsOfRow(i);
+	}
+	
+	// same as getVariantCountsFromCooccurCounts(), but starting from the variant counts stored by the run 
+	// appended to: a row keeps them unless the new reads cover it or the reference changed within its window
+	void getVariantCountsFromStoredCounts() {
+		variantCounts = storedVariantCounts;
+		storedVariantCounts = null;
 		
-		// now actually do some calculations
+		// the number of positions before each one whose reference changed
+		int[] changedBefore = new int[numPos + 1];
+		for (int i = 0; i < numPos; i++)
+			changedBefore[i + 1] = changedBefore[i] + (getRefAtPos(i) == storedReference[i] ? 0 : 1);
+		
+		int recounted = 0;
 		for (int i = 0; i < numPos; i++) {
-			// what's the modal read here?
-			// int modalRead = REFERENCE_FA_FILE == "" ? modalConsensus[i] : givenConsensus[i];
-			int modalRead = getRefAtPos(i);
-			
-			// keep track of avg 
-			int numOverlaps = 0;
-			double sumVals = 0.0;
+			int lo = Math.max(0, i - windowSize), hi = Math.min(numPos - 1, i + windowSize);
+			if (!newCoverage[i] && changedBefore[hi + 1] == changedBefore[lo]) continue;
 			
-			Map<Character, ArrayList<SingleRead>> thisCategories = readCategories.get(i);
-
-			// skip if no reads at this location
-			if (modalRead == -1 || thisCategories == null || thisCategories.isEmpty()) continue;
-						
-			// now go through every other read j that spans around this i
-			for (int j = Math.max(0, i - windowSize); j <= (i + windowSize); j++) {
-				int modalReadJ = getRefAtPos(j);
-				if (modalReadJ == -1) {
-					//System.err.println("no reference found at position " + j);
-					continue;
-				}
-				
-				int[][] pairCooccurCounts = new int[4][4];
-
-				// iterate through each i-category (as long as it's not the modal one)
-				// double variantsi = 0, variantsij = 0, modals = 0;
-				double vari_varj = 0, vari_modalj = 0, modali_varj = 0, modali_modalj = 0; 
-				for (Map.Entry<Character, ArrayList<SingleRead>> category : thisCategories.entrySet()) {
-					char i_base = category.getKey();
-
-					// check for modality of i; if so, count all reads that span j
-					if (bases[modalRead] == i_base) {
-						for (SingleRead curRead : category.getValue()) {
-							if (!curRead.overlaps(j)) continue;
-							
-							char j_base = curRead.getReadAtAbsolutePos(j);
-							pairCooccurCounts[SingleRead.bpToIndex(i_base)][SingleRead.bpToIndex(j_base)]++;
-							if (j_base == bases[getRefAtPos(j)])
-								modali_modalj++;
-							else
-								modali_varj++;
-						}
-					} else {
-						for (SingleRead curRead : category.getValue()) {
-							// skip those that don't span j
-							if (!curRead.overlaps(j)) continue;
-							
-							// add to counter based on modality of the jth read
-							char j_base = curRead.getReadAtAbsolutePos(j);
-							pairCooccurCounts[SingleRead.bpToIndex(i_base)][SingleRead.bpToIndex(j_base)]++;
-							if (j_base == bases[getRefAtPos(j)])
-								vari_modalj++;
-							else
-								vari_varj++;
-						}
-					}
-				}
-
-				cooccurCounts.put(new PosPair(i,j), CooccuringBases.createFrom4x4array(pairCooccurCounts));
-				
-				// add some counts for the 2x2 conjunction matrix
-				variantCounts[i][j][0] = (int)modali_modalj;
-				variantCounts[i][j][1] = (int)modali_varj;
-				variantCounts[i][j][2] = (int)vari_modalj;
-				variantCounts[i][j][3] = (int)vari_varj;
-
-				double totalCounts = vari_varj + vari_modalj + modali_varj + modali_modalj;
-				
-				switch (metric) {
-					case DIFF_FROM_EXPECTED:
-				    case GATED_DIFF_FROM_EXPECTED:
-					case OUTLIER_DIFF_FROM_EXPECTED:
-						double vari = vari_modalj + vari_varj;
-						double modali = modali_modalj + modali_varj;
-						
-						if (metric == CooccurMetric.GATED_DIFF_FROM_EXPECTED && 
-							vari / (double)totalCounts < 0.05) {
-							readConjProbabilities[i][j] = 0.0;
-							break;
-						}
-
-						double prob_varj_cond_vari = vari == 0.0 ? 0.0 : vari_varj / vari;
-						double prob_varj_cond_modali = modali == 0.0 ? 0.0 : modali_varj / modali;
-						
-						readConjProbabilities[i][j] = prob_varj_cond_vari - prob_varj_cond_modali;
-						
-						if (metric == CooccurMetric.OUTLIER_DIFF_FROM_EXPECTED) {
-							sumVals += readConjProbabilities[i][j];
-							numOverlaps++;
-						}
-						
-						break;
-					
-					case CONJ_PROB:
-						double probVariantsI = (vari_modalj + vari_varj) / 1.0 / Math.max(1, totalCounts);
-						double probVariantsIJ = vari_varj / 1.0 / Math.max(1, totalCounts);
-						
-						if (probVariantsI == 0.0) 
-							readConjProbabilities[i][j] = 0.0;
-						else
-							readConjProbabilities[i][j] = probVariantsIJ / probVariantsI;
-						break;
-
-					// Mike's metric
-					case RATIO_OF_OBSERVED_TO_EXPECTED:
-						double probVarIJ = vari_varj / 1.0 / Math.max(1, totalCounts);
-						double probVarI = (vari_varj + vari_modalj) / 1.0 / Math.max(1, totalCounts);
-						double probVarJ = (vari_varj + modali_varj) / 1.0 / Math.max(1, totalCounts);
-
-						if (probVarI * probVarJ <= 0.0)
-							readConjProbabilities[i][j] = 0.0;
-						else {
-						    double val = Math.log(probVarIJ / (probVarI*probVarJ));
-							readConjProbabilities[i][j] = Math.max(-5, Math.min(5, val));
-						}
-						break;
-						
-					case MUTUAL_INFORMATION:
-						readConjProbabilities[i][j] = 0.0;
-						break;
-				}
-			}
+			Arrays.fill(variantCounts.data, variantCounts.rowIndex(i), variantCounts.rowIndex(i + 1), 0);
+			countVariantsOfRow(i);
+			recounted++;
+		}
+		
+		System.out.print("(recounted the variants of " + recounted + " of " + numPos + " rows; " + 
+				changedBefore[numPos] + " changed reference) ");
+	}
+	
+	// adds up the 2x2 variantCounts of row i (which are 0) from its cooccurCounts
+	private void countVariantsOfRow(int i) {
+		int modalRead = getRefAtPos(i);
+		if (modalRead == -1) return;
+		
+		int[] pairCounts = cooccurCounts.data;
+		for (int j = Math.max(0, i - windowSize); j <= Math.min(numPos - 1, i + windowSize); j++) {
+			int modalReadJ = getRefAtPos(j);
+			if (modalReadJ == -1) continue;
 			
-			if (metric == CooccurMetric.OUTLIER_DIFF_FROM_EXPECTED) {
-				double avg = sumVals / (double)numOverlaps;
-				for (int j = Math.max(0, i - windowSize); j < (i + windowSize); j++) {
-					if (readConjProbabilities[i][j] != 0.0)
-						readConjProbabilities[i][j] = avg - readConjProbabilities[i][j];
+			int pairIndex = cooccurCounts.index(i, j);
+			int countsIndex = variantCounts.index(i, j);
+			for (int bi = 0; bi < 4; bi++) {
+				for (int bj = 0; bj < 4; bj++) {
+					int n = (bi == modalRead ? 0 : 2) + (bj == modalReadJ ? 0 : 1);
+					variantCounts.data[countsIndex + n] += pairCounts[pairIndex + (bi << 2 | bj)];
 				}
 			}
 		}
-
-		// try doing a little verification here.  
-		// the counts at any two positions should be symmetrical.
+	}
+	
+	// same as getConjProbabilityFromModalConcensus(), but for counts that have already been 
+	// accumulated (cooccurCounts and baseCounts)
+	void getConjProbabilityFromCounts(List<CooccurMetric> metrics) {
+		getModalConsensusFromBaseCounts();
+		if (storedVariantCounts != null)
+			getVariantCountsFromStoredCounts();
+		else
+			getVariantCountsFromCooccurCounts();
+		getMetricsFromCounts(metrics);
+		printRandomPairCheck();
+	}
+	
+	// returns: the Shannon entropy (in bits) of the bases counted at a position
+	static double getEntropy(int[] counts) {
+		double terms = 0.0;
+		int total = 0;
+		for (int b = 0; b < 4; b++) {
+			terms += NLogN.of(counts[b]);
+			total += counts[b];
+		}
+		
+		return NLogN.entropy(terms, total);
+	}
+	
+	// evaluates every given metric on the counts of every pair within the window (in one pass)
+	void getMetricsFromCounts(List<CooccurMetric> metrics) {
+		int[] reference = new int[numPos];
+		for (int i = 0; i < numPos; i++)
+			reference[i] = getRefAtPos(i);
+		
+		MetricPass pass = new MetricPass(metrics.toArray(new PairMetric[metrics.size()]), reference, baseCounts, variantCounts, cooccurCounts);
+		pass.busy = busy();
+		pass.run(numThreads);
+		
+		if (report != null)
+			report.pairsEvaluated.addAndGet(pass.pairsEvaluated.get());
+		
+		metricValues = pass.values;
+		readConjProbabilities = metricValues[0];
+	}
+	
+	// try doing a little verification here.  
+	// the counts at any two positions should be symmetrical.
+	void printRandomPairCheck() {
+		// (only pairs within the window are kept, so pick j relative to i)
+		if (maxValue == 0) return;
+		
+		// reads can cover positions without any pair of bases being counted (every base N or deleted)
+		boolean counted = false;
+		for (int n = 0; n < cooccurCounts.data.length && !counted; n++)
+			counted = cooccurCounts.data[n] != 0;
+		if (!counted) return;
+		
 		Random r = new Random();
 		int r_i = r.nextInt(numPos);
-		int r_j = r.nextInt(numPos);
+		int r_j = r_i + r.nextInt(2 * windowSize + 1) - windowSize;
 		
-		while (readBreadth[r_i][r_j] == 0) {
+		while (readBreadth.get(r_i, r_j) == 0 || cooccurCounts.sum(r_i, r_j) == 0) {
 			r_i = r.nextInt(numPos);
-			r_j = r.nextInt(numPos);
+			r_j = r_i + r.nextInt(2 * windowSize + 1) - windowSize;
 		}
 
-		int[] m_ij = variantCounts[r_i][r_j];
-		int[] m_ji = variantCounts[r_j][r_i];
+		int[] m_ij = new int[4];
+		int[] m_ji = new int[4];
+		for (int n = 0; n < 4; n++) {
+			m_ij[n] = variantCounts.get(r_i, r_j, n);
+			m_ji[n] = variantCounts.get(r_j, r_i, n);
+		}
 
 		System.out.printf("\nComparison of position %d to %d\n", r_i, r_j);
 		
 		System.out.printf("%4d: %5d, %5d, %5d, %5d --> %6d (depth: %6d)\n", r_i, m_ij[0], m_ij[1], m_ij[2], 
 						  m_ij[3], m_ij[0] + m_ij[1] + m_ij[2] + m_ij[3],
-						  readBreadth[r_i][r_j]);
+						  readBreadth.get(r_i, r_j));
 		System.out.printf("%4d: %5d, %5d, %5d, %5d --> %6d (depth: %6d)\n", r_j, m_ji[0], m_ji[1], m_ji[2], 
 						  m_ji[3], m_ji[0] + m_ji[1] + m_ji[2] + m_ji[3],
-						  readBreadth[r_j][r_i]);
+						  readBreadth.get(r_j, r_i));
 
 		System.out.printf("co-occur counts (%d to %d):\n", r_i, r_j);
 //		int[][] pairCounts = cooccurCounts.get(new PosPair(r_i, r_j));
@@ -804,251 +1509,184 @@ public class CoOccurLibrary {
 //			}
 //		}
 		
-		Map<CooccuringBases, Integer> pairCounts = cooccurCounts.get(new PosPair(r_i, r_j));
-		for (Map.Entry<CooccuringBases, Integer> entry : pairCounts.entrySet()) {
-			CooccuringBases b = entry.getKey();
-			int n = entry.getValue();
-			System.out.printf("\t%c (i) -> %c (j): %6d (%5.2f%%)\n", bases[b.i], bases[b.j], n, n / 1.0 / readBreadth[r_i][r_j] * 100);
+		for (int b = 0; b < 16; b++) {
+			int n = cooccurCounts.get(r_i, r_j, b);
+			if (n == 0) continue;
+			
+			System.out.printf("\t%c (i) -> %c (j): %6d (%5.2f%%)\n", bases[b >> 2], bases[b & 3], n, n / 1.0 / readBreadth.get(r_i, r_j) * 100);
 		}
 	}
 	
-	static void dumpConjProbabilities(CooccurMetric metric) {
-		dumpConjProbabilities(metric, true);
+	void dumpConjProbabilities(List<CooccurMetric> metrics) {
+		dumpConjProbabilities(metrics, true);
 	}
 	
-	static void dumpConjProbabilities(CooccurMetric metric, boolean writeBinary) {
-		DecimalFormat df = new DecimalFormat("0.00");
-		long startTime, endTime;
-		System.out.print("creating conjugate probabilities took ... ");
-		startTime = System.nanoTime();
-		
-		
-		getConjProbabilityFromModalConcensus(metric);
-		
-		endTime = System.nanoTime();
-		System.out.println(df.format((endTime - startTime) / 1e9) + " seconds");
-		
-		startTime = System.nanoTime();
+	void dumpConjProbabilities(List<CooccurMetric> metrics, boolean writeBinary) {
+		beginPhase("count", "creating conjugate probabilities");
+		if (usePipeline)
+			getConjProbabilityFromCounts(metrics);
+		else
+			getConjProbabilityFromModalConcensus(metrics);
+		endPhase();
 		
 		if (writeBinary) {
-			try {
-				String outputFile = OUTPUT_DIRECTORY;
-				switch (metric) {
-					case DIFF_FROM_EXPECTED:
-						outputFile += "conjProbDiff.dat";
-						break;
-					case OUTLIER_DIFF_FROM_EXPECTED:
-						outputFile += "conjProbDiff-outliers.dat";
-						break;
-				    case GATED_DIFF_FROM_EXPECTED:
-						outputFile += "conjProbDiff-gated05.dat";
-						break;
-					case RATIO_OF_OBSERVED_TO_EXPECTED: 
-						outputFile += "conjProbDiff-ratio.dat";
-						break;
-					case MUTUAL_INFORMATION:
-						outputFile += "mutualInfo.dat";
-						break;
-					default:
-						System.err.println("no file specified, dumping to data.dat");
-						break;
-				}
-				
-				System.out.print("writing to " + outputFile + " ...");
-				DataOutputStream os = new DataOutputStream(new FileOutputStream(outputFile));
-				// write dimensions (two ints, windowSize, numPos)
-				os.writeInt(2 * windowSize + 1); // window size (numWindow)
-				os.writeInt(numPos);             // number of positions (numPos)
-				os.writeInt(setHeaderFlags(false, false, 0, 1));
-				
-				for (int i = 0; i < numPos; i++) {
-					for (int dj = -windowSize; dj <= windowSize; dj++) {
-						int j = i + dj;
-						if (j < 0 || j >= numPos) {
-							os.writeFloat(0);
-						} else {
-							os.writeFloat((float)readConjProbabilities[i][j]);
+			final int numWindow = 2 * windowSize + 1;
+
+			// one file per metric, with metricPrecision bytes per value (pairs outside of the positions are 0)
+			for (int m = 0; m < metrics.size(); m++) {
+				final BandedDoubleMatrix values = metricValues[m];
+				output.writeBand(outputDirectory + metrics.get(m).fileName + ".dat", numWindow, numPos, new BandEncoding.Rows() {
+					public void fill(int i, float[] row) {
+						int rowOffset = i * numWindow;
+						for (int d = 0; d < numWindow; d++) {
+							int j = i + d - windowSize;
+							row[d] = j < 0 || j >= numPos ? 0 : (float)values.data[rowOffset + d];
 						}
 					}
-				}
-				
-				os.flush();
-				os.close();
-
-				outputFile = OUTPUT_DIRECTORY + "variantCounts.dat";
-				System.out.print("writing to " + outputFile + " ...\n");
-				os = new DataOutputStream(new FileOutputStream(outputFile));
-				
-				// write dimensions
-				os.writeInt(2 * windowSize + 1);
-				os.writeInt(numPos);
-				os.writeInt(setHeaderFlags(true, true, 4, 4));
+				}, false, metricPrecision);
+			}
 
-				for (int i = 0; i < numPos; i++) {
-					for (int dj = -windowSize; dj <= windowSize; dj++) {
-						int j = i + dj;
-						
-						if (j < 0 || j >= numPos)
-							continue;
-						
-						// if there's no information here, skip it
-						int[] curVal = variantCounts[i][j];
-						if (curVal[0] + curVal[1] + curVal[2] + curVal[3] == 0) 
-							continue;
+			// the mutual information comes with the entropy of every position
+			if (metrics.contains(CooccurMetric.MUTUAL_INFORMATION) || metrics.contains(CooccurMetric.NORMALIZED_MUTUAL_INFORMATION)) {
+				output.write(outputDirectory + "entropy.dat", 1, numPos, setHeaderFlags(false, false, 4, 1), new OutputStage.Body() {
+					public void write(DatWriter out) throws IOException {
+						for (int i = 0; i < numPos; i++)
+							out.writeFloat((float)getEntropy(baseCounts[i]));
+						out.cells += numPos;
+					}
+				});
+			}
 
-						// dump the absolute index so we can store a sparse representation
-						os.writeInt(i * (windowSize * 2 + 1) + (dj + windowSize));
-						
-						for (int n = 0; n < 4; n++) {
-							os.writeInt(curVal[n]);
+			output.write(outputDirectory + "variantCounts.dat", numWindow, numPos, setHeaderFlags(true, true, 4, 4), new OutputStage.Body() {
+				public void write(DatWriter out) throws IOException {
+					for (int i = 0; i < numPos; i++) {
+						for (int dj = -windowSize; dj <= windowSize; dj++) {
+							int j = i + dj;
+							
+							if (j < 0 || j >= numPos)
+								continue;
+							
+							// if there's no information here, skip it
+							if (variantCounts.sum(i, j) == 0) 
+								continue;
+
+							// dump the absolute index so we can store a sparse representation
+							out.writeInt(i * numWindow + (dj + windowSize));
+							out.writeInts(variantCounts.data, variantCounts.index(i, j), 4);
+							out.cells++;
 						}
 					}
 				}
+			});
 
-				os.flush();
-				os.close();
-
-				outputFile = OUTPUT_DIRECTORY + "baseCounts.dat";
-				System.out.print("writing to " + outputFile + " ... \n");
-				os = new DataOutputStream(new FileOutputStream(outputFile));
+			output.write(outputDirectory + "baseCounts.dat", 1, numPos, setHeaderFlags(true, true, 4, 1), new OutputStage.Body() {
+				public void write(DatWriter out) throws IOException {
+					for (int i = 0; i < numPos; i++) {
+						int[] curVal = baseCounts[i];
 
-				// write dimensions
-				os.writeInt(1);
-				os.writeInt(numPos);
-				os.writeInt(setHeaderFlags(true, true, 4, 1));
-
-				for (int i = 0; i < numPos; i++) {
-					int[] curVal = baseCounts[i];
-
-					if (curVal[0] + curVal[1] + curVal[2] + curVal[3] == 0) 
-						continue;
-					
-					// dump the absolute index so we can store a sparse representation
-					os.writeInt(i);
-					
-					for (int n = 0; n < 4; n++) {
-						os.writeInt(curVal[n]);
+						if (curVal[0] + curVal[1] + curVal[2] + curVal[3] == 0) 
+							continue;
+						
+						// dump the absolute index so we can store a sparse representation
+						out.writeInt(i);
+						out.writeInts(curVal, 0, 4);
+						out.cells++;
 					}
 				}
-
-				os.flush();
-				os.close();
-				
-				// dump 4x4 matrix as well (??)
-				outputFile = OUTPUT_DIRECTORY + "fullCounts.dat";
-				System.out.print("writing to " + outputFile + " ... \n");
-				os = new DataOutputStream(new FileOutputStream(outputFile));
-				
-				// write dimensions
-				os.writeInt(2 * windowSize + 1);
-				os.writeInt(numPos);
-				os.writeInt(setHeaderFlags(true, true, 4, 4));
-				
-				// ... we'll see how this works
-				for (Map.Entry<PosPair, Map<CooccuringBases, Integer>> pos : cooccurCounts.entrySet()) {
-					int i = pos.getKey().i;
-					int j = pos.getKey().j;
-					int absIndex = i * (windowSize * 2 + 1) + (j - i + windowSize);
-					os.writeInt(absIndex);
-					
-					os.writeByte(pos.getValue().size());
-					for (Map.Entry<CooccuringBases, Integer> counts : pos.getValue().entrySet()) {
-						os.writeByte(counts.getKey().baseByte());
-						os.writeInt(counts.getValue());
+			});
+			
+			// dump 4x4 matrix as well (??)
+			output.write(outputDirectory + "fullCounts.dat", numWindow, numPos, setHeaderFlags(true, true, 4, 4), new OutputStage.Body() {
+				public void write(DatWriter out) throws IOException {
+					// stream the band in position order; each cell lists only its non-zero 
+					// (base_i << 2 | base_j) entries, and empty cells are skipped entirely
+					int[] pairCounts = cooccurCounts.data;
+					for (int i = 0; i < numPos; i++) {
+						int rowOffset = cooccurCounts.rowIndex(i);
+						for (int dj = 0; dj < numWindow; dj++) {
+							int offset = rowOffset + dj * 16;
+							
+							int numEntries = 0;
+							for (int b = 0; b < 16; b++) {
+								if (pairCounts[offset + b] != 0) numEntries++;
+							}
+							
+							if (numEntries == 0) continue;
+							
+							out.writeInt(i * numWindow + dj);
+							out.writeByte(numEntries);
+							for (int b = 0; b < 16; b++) {
+								if (pairCounts[offset + b] == 0) continue;
+								
+								out.writeByte(b);
+								out.writeInt(pairCounts[offset + b]);
+							}
+							out.cells++;
+						}
 					}
 				}
+			});
+
+			// dump consensus/reference sequence as well (stuff 4 positions into one integer)
+			output.write(outputDirectory + "reference.dat", numWindow, numPos, setHeaderFlags(true, true, 4, 4), new OutputStage.Body() {
+				public void write(DatWriter out) throws IOException {
+					int curByte = 0;
+					int numInByte = 0;
+					for (int n = 0; n < numPos; n++) {
+						if (++numInByte > 4) {
+							out.writeByte(curByte);
+							curByte = 0;
+							numInByte = 1;
+						}
 
-				os.flush();
-				os.close();
-
-				// dump consensus/reference sequence as well (stuff 4 positions into one integer)
-				outputFile = OUTPUT_DIRECTORY + "reference.dat";
-				System.out.print("writing to " + outputFile + " ... \n");
-				os = new DataOutputStream(new FileOutputStream(outputFile));
-				
-				// write dimensions
-				os.writeInt(2 * windowSize + 1);
-				os.writeInt(numPos);
-				os.writeInt(setHeaderFlags(true, true, 4, 4));
-				
-				int curByte = 0;
-				int numInByte = 0;
-				for (int n = 0; n < numPos; n++) {
-					if (++numInByte > 4) {
-						os.writeByte(curByte);
-						curByte = 0;
-						numInByte = 1;
+						int thisBase = getRefAtPos(n);
+						if (thisBase == -1) thisBase = 0; // default to A if no read exists here
+						curByte = curByte << 2 | thisBase;
 					}
 
-					int thisBase = getRefAtPos(n);
-					if (thisBase == -1) thisBase = 0; // default to A if no read exists here
-					curByte = curByte << 2 | thisBase;
-				}
-
-				// write out last byte
-				for (int n = numInByte; n < 4; n++) {
-					curByte <<= 2;
+					// write out last byte
+					for (int n = numInByte; n < 4; n++) {
+						curByte <<= 2;
+					}
+					out.writeByte(curByte);
+					out.cells += numPos;
 				}
-				os.writeByte(curByte);
-				
-				os.flush();
-				os.close();
-
-			 } catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			});
 		} else {
+			DecimalFormat df = new DecimalFormat("0.00");
+			long startTime = System.nanoTime();
 			try {
-				String outputFile = OUTPUT_DIRECTORY;
-				switch (metric) {
-					case DIFF_FROM_EXPECTED:
-						outputFile += "conjProbDiff.csv";
-						break;
-					case OUTLIER_DIFF_FROM_EXPECTED:
-						outputFile += "conjProbDiff-outliers.csv";
-						break;
-				    case GATED_DIFF_FROM_EXPECTED:
-						outputFile += "conjProbDiff-gated10.csv";
-						break;
-					case RATIO_OF_OBSERVED_TO_EXPECTED: 
-						outputFile += "conjProbDiff-ratio.csv";
-						break;
-					case MUTUAL_INFORMATION:
-						outputFile += "mutualInfo.csv";
-						break;
-					default:
-						System.err.println("no file specified, dumping to data.dat");
-						break;
-				}
-
-				System.out.print("writing to " + outputFile + " ...");
-				PrintWriter file = new PrintWriter(outputFile);
-				for (int i = 0; i < numPos; i++) {
-					for (int dj = -windowSize; dj < windowSize; dj++) {
-						int j = i + dj;
-						if (j < 0 || j >= numPos) {
-							file.print("0,");
+				PrintWriter file;
+				for (int m = 0; m < metrics.size(); m++) {
+					BandedDoubleMatrix values = metricValues[m];
+					String outputFile = outputDirectory + metrics.get(m).csvName + ".csv";
+
+					System.out.print("writing to " + outputFile + " ...");
+					file = new PrintWriter(outputFile);
+					for (int i = 0; i < numPos; i++) {
+						for (int dj = -windowSize; dj < windowSize; dj++) {
+							int j = i + dj;
+							if (j < 0 || j >= numPos) {
+								file.print("0,");
+							} else {
+								file.print(values.get(i, j) + ",");
+							}
+						}
+					
+						if (i + windowSize >= numPos) {
+							file.print("0");
 						} else {
-							file.print(readConjProbabilities[i][j] + ",");
+							file.print(values.get(i, i + windowSize));
 						}
+					
+						file.println();
 					}
 				
-					if (i + windowSize >= numPos) {
-						file.print("0");
-					} else {
-						file.print(readConjProbabilities[i][i + windowSize]);
-					}
-				
-					file.println();
+					file.flush();
+					file.close();
 				}
-			
-				file.flush();
-				file.close();
 				
-				
-				outputFile = OUTPUT_DIRECTORY + "variantCounts.csv";
+				String outputFile = outputDirectory + "variantCounts.csv";
 				System.out.print("writing to " + outputFile + " ... ");
 				file = new PrintWriter(outputFile);
 				for (int i = 0; i < numPos; i++) {
@@ -1059,18 +1697,17 @@ public class CoOccurLibrary {
 							continue;
 						
 						file.print("(" + i + "," + j + "):");
-						int[] curVal = variantCounts[i][j];
 						for (int n = 0; n < 3; n++)
-							file.print(curVal[n] + ",");
+							file.print(variantCounts.get(i, j, n) + ",");
 						
-						file.println(curVal[3]);
+						file.println(variantCounts.get(i, j, 3));
 					}
 				}
 				
 				file.flush();
 				file.close();
 				
-				outputFile = OUTPUT_DIRECTORY + "baseCounts.csv";
+				outputFile = outputDirectory + "baseCounts.csv";
 				System.out.print("writing to " + outputFile + " ... ");
 				file = new PrintWriter(outputFile);
 				for (int i = 0; i < numPos; i++) {
@@ -1086,11 +1723,11 @@ public class CoOccurLibrary {
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
+			
+			long endTime = System.nanoTime();
+			System.out.println(df.format((endTime - startTime) / 1e9) + " seconds");
 		}
 		
-		endTime = System.nanoTime();
-		System.out.println(df.format((endTime - startTime) / 1e9) + " seconds");
-		
 		//drawCooccurrenceMetric();
 	}
 	
@@ -1149,83 +1786,11 @@ public class CoOccurLibrary {
 	}
 	*/
 
-	static void getReadCounts() {
-		actualReads = 0;
-		readDepth = new int[numPos];
-		readCounts = new double[numPos][4];
-		
-		// add up counts
-		for (int i = 0; i < reads.size(); i++) {
-			SingleRead thisRead = reads.get(i);
-			if (thisRead == null) break;
-
-			char[] reads = thisRead.reads;
-			for (int n = 0; n < reads.length; n++) {
-				int curPos = thisRead.startPos + n;
-				readDepth[curPos]++;
-				readCounts[curPos][SingleRead.bpToIndex(reads[n])]++;
-			}
-			
-			actualReads++;
-		}
-	}
-	
-	static void getReadDistribution() {
-		int[] depth = new int[numPos];
-		readDistribution = new float[numPos][4];
-		
-		// based on the current read position, this variable holds the index of the first read that could overlap
-		for (int i = 0; i < reads.size(); i++) {
-			SingleRead curRead = reads.get(i);
-			if (curRead == null) break;
-			
-			char[] curReads = curRead.reads;
-			for (int n = 0; n < curReads.length; n++) {
-				int curPos = curRead.startPos + n;
-				readDistribution[curPos][SingleRead.bpToIndex(curReads[n])] += 1.f;
-				depth[curPos]++;
-			}
-		}
-		
-		for (int i = 0; i < numPos; i++) {
-			// if the depth is none, we've reached the end position
-			if (depth[i] == 0) break;
-			
-			for (int j = 0; j < 4; j++) {
-				readDistribution[i][j] /= depth[i];
-			}
-		}
-	}
-
-	static void populateAllReads() {
-		int maxReadLength = 300;
-		for (int i = 0; i < reads.size(); i++) {
-			SingleRead curRead = reads.get(i);
-
-			// break if no more reads to read
-			if (curRead == null) 
-				break;
-
-			int maxStartIndex = curRead.startPos + maxReadLength;
-
-			for (int j = i + 1; j < reads.size(); j++) {
-				SingleRead otherRead = reads.get(j);
-
-				// break out of this curRead if there's nothing else that overlaps
-				// ... or if no more reads to compare to
-				if (otherRead == null || otherRead.startPos > maxStartIndex) 
-					break;
-
-				curRead.addNeighbor(otherRead);
-			}
-		}
-	}
-
 	static boolean isHeaderLine(String header) {
 		return header.startsWith("@");
 	}
 
-	static int getHashIndex(String rname) {
+	static synchronized int getHashIndex(String rname) {
 		if (!names.containsKey(rname)) {
 			names.put(rname, nextAvailIndex);
 			nextAvailIndex++;
@@ -1234,282 +1799,122 @@ public class CoOccurLibrary {
 		return ((Integer)names.get(rname)).intValue();
 	}
 
-	static void parseSAM() {
-		int index = 0;
-		int startPos = 0;
-		int curRead = 0;
-		int readLength;
-
-		String line = "";
-		String[] tokens;
-
-		//BufferedReader reader = createReader("../data/SHFVkrc1_RC06 mapping.sam");
+	// parses the SAM file and accumulates readBreadth, baseCounts and cooccurCounts as it goes
+	// returns: the pipeline used (for its throughput statistics), or null if parsing failed
+	ParsePipeline runPipeline() {
+		readBreadth = new BandedIntMatrix(numPos, windowSize, 1);
+		cooccurCounts = new BandedIntMatrix(numPos, windowSize, 16);
+		baseCounts = new int[numPos][4];
+		
 		try {
-			//BufferedReader reader = new BufferedReader(new FileReader(new File("../data/SHFVkrc1_RC06 mapping.sam")));
-			BufferedReader reader = new BufferedReader(new FileReader(new File(INPUT_SAM_FILE)));
-			//int i = 0;
-			while (line != null) {
-				line = reader.readLine();
-				if (line != null) {
-					tokens = line.split("\t");
-					if (tokens != null && tokens.length > 0 && !isHeaderLine(tokens[0])) {
-						index = getHashIndex(tokens[RNAME]);
-						startPos = Integer.parseInt(tokens[POS]);
-						readLength = tokens[SEQ].length();
-
-						if (readLength > 0) {
-							reads.add(new SingleRead(tokens[SEQ], startPos));
-						}
-					}
-				} 
-
-				// TODO: uncomment to limit number of reads processed
-				//if (++i > 10) break;
+			ParsePipeline pipeline = new ParsePipeline(INPUT_SAM_FILE, contig, numThreads, readBreadth, cooccurCounts, baseCounts);
+			if (numShards > 0) {
+				pipeline.shard = shard;
+				pipeline.numShards = numShards;
 			}
+			pipeline.busy = busy();
+			pipeline.run();
 			
-			reader.close();
-			
-			// sort the collection by the start position
-			Collections.sort(reads);
+			report.readsParsed.addAndGet(pipeline.readsParsed);
+			report.bytesRead.addAndGet(pipeline.bytesRead);
+			actualReads = pipeline.readsParsed;
+			findDepthExtent();
 			
+			return pipeline;
 		} catch (IOException e) {
 			e.printStackTrace();
+			failed = true;
+			return null;
 		}
 	}
-}
-
-class PosPair {
-	public int i;
-	public int j;
-	
-	public PosPair(int i, int j) {
-		this.i = i;
-		this.j = j;
-	}
-
-	public int first() {
-		return i;
-	}
-
-	public int second() {
-		return j;
-	}
 	
-	public int hashCode() {
-		return i * j;
+	// sets maxValue and maxPosition from the depths (the diagonal of readBreadth)
+	void findDepthExtent() {
+		for (int i = 0; i < numPos; i++) {
+			int depth = readBreadth.get(i, i);
+			if (depth > maxValue) maxValue = depth;
+			if (depth > 0 && i > maxPosition) maxPosition = i;
+		}
 	}
 	
-	public boolean equals(Object obj) {
-		if (this == obj) return true;
-		if (obj == null) return false;
-		if (getClass() != obj.getClass()) return false;
+	// adds the counts of the run appended to (see CountState) to those of the new reads, and keeps what the 
+	// variant counts need to be brought up to date; returns: whether the stored counts could be read
+	boolean addStoredCounts(CountState previous) {
+		newCoverage = new boolean[numPos];
+		for (int i = 0; i < numPos; i++)
+			newCoverage[i] = readBreadth.get(i, i) > 0;
 		
-		PosPair other = (PosPair)obj;
-		return other.i == this.i && other.j == this.j;		
-	}
-}
-
-class CooccuringBases {
-	public int i;
-	public int j;
-	static char bases[] = {'A', 'T', 'C', 'G'}; 
-	
-	static Map<CooccuringBases, Integer> createFrom4x4array(int[][] counts) {
-		assert(counts.length == 4 && counts[0].length == 4);
-		
-		Map<CooccuringBases, Integer> theseCounts = new HashMap<CooccuringBases, Integer>();
-		for (int n = 0; n < bases.length; n++) {
-			for (int m = 0; m < bases.length; m++) {
-				int thisCount = counts[n][m];
-				if (thisCount != 0) {
-					theseCounts.put(new CooccuringBases(n, m), thisCount);
-				}
+		try {
+			previous.addTo(baseCounts, readBreadth, cooccurCounts);
+			
+			// (partial counts have no variant counts to start from)
+			if (!previous.partial) {
+				storedReference = previous.reference();
+				storedVariantCounts = previous.variantCounts();
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
 		}
 		
-		return theseCounts;
-	}
-	
-	public CooccuringBases(int i, int j) {
-		this.i = i;
-		this.j = j;
-	}
-	
-	public char firstBase() {
-		return bases[this.i];
-	}
-	
-	public char secondBase() {
-		return bases[this.j];
-	}
-	
-	public int baseByte() {
-		return i << 2 | j;
-	}
-	
-	public int hashCode() {
-		return i * bases.length + j;
+		actualReads += previous.numReads;
+		findDepthExtent();
+		return true;
 	}
 	
-	public boolean equals(Object obj) {
-		if (this == obj) return true;
-		if (obj == null) return false;
-		if (getClass() != obj.getClass()) return false;
-		
-		CooccuringBases other = (CooccuringBases)obj;
-		return other.i == this.i && other.j == this.j;
-	}
-}
-
-class SingleRead implements Comparable<SingleRead> {
-	// PApplet p; // hold the processing parent applet to make processing-specific calls
-
-	char[] reads;
-	int startPos;
-	int length;
-
-	boolean[] variantsToThis;
-	int[][] neighborCounts;
-
-	//SingleRead(String reads, int startPos, PApplet p) {
-	SingleRead(String reads, int startPos) {
-		this.reads = reads.toCharArray();
-		this.length = reads.length(); 
-		//this.p = p;
-		
-		if (startPos <= 0) { 
-			System.err.println("got 0 for 1-based start index: " + startPos);
-			startPos = 1;
+	// writes the counts (and, unless they are partial, the reference the variant counts are relative to, and 
+	// those) to counts.state
+	void saveCounts(boolean partial) {
+		int[] reference = null;
+		if (!partial) {
+			reference = new int[numPos];
+			for (int i = 0; i < numPos; i++)
+				reference[i] = getRefAtPos(i);
 		}
 		
-		// convert 1-based SAM POS to 0-based
-		this.startPos = startPos - 1;
-
-		variantsToThis = new boolean[this.length];
-		neighborCounts = new int[this.length][4];
-		// System.out.println("sequence: " + this.startPos + " to " + (this.startPos + this.length));
-	}
-	
-	// helps sort reads by their starting position
-	public int compareTo(SingleRead o) {
-		return this.startPos - o.startPos;
-	}
-
-	// returns: the position of the last read of this object
-	int lastPos() {
-		return this.startPos + this.length - 1;
-	}
-
-	// returns: if the other read overlaps any reads with this one
-	boolean overlaps(SingleRead other) {
-		return 
-				((other.startPos <= this.lastPos()) && (other.startPos >= this.startPos)) ||
-				((other.lastPos() >= this.startPos) && (other.lastPos() <= this.lastPos()));
-	}
-	
-	// returns: if the given absolute position is covered by this read
-	boolean overlaps(int absPos) {
-		return (this.startPos <= absPos && this.lastPos() >= absPos);
-	}
-
-	// stub method: addNeighbor()
-	// functionality: adds the neighbors reads *that overlap*, 
-	//   so each read is aware of all other overlapping reads
-	void addNeighbor(SingleRead other) {
-
-		// don't do anything if these reads don't overlap
-		if (overlaps(other)) {
-			if (other.startPos >= this.startPos) {
-				int thisLastPos = other.lastPos() > this.lastPos() ? this.lastPos() : other.lastPos();
-				int thisCurPos = other.startPos - this.startPos;
-				for (int otherCurPos = 0; otherCurPos < (thisLastPos - other.startPos); otherCurPos++) {
-					// get the integer representation of the reads
-					int otherRead = bpToIndex(other.reads[otherCurPos]);
-					int thisRead = bpToIndex(this.reads[thisCurPos]);
-
-					// increment the counts of variants
-					this.neighborCounts[thisCurPos][otherRead]++;
-					other.neighborCounts[otherCurPos][thisRead]++;
-
-					if (otherRead != thisRead) {
-						this.variantsToThis[thisCurPos] = true;
-						other.variantsToThis[otherCurPos] = true;
-					}
-
-					// increment this position (otherCurPos is done in the for-loop)
-					thisCurPos++;
-				}
-			} else { // other.startPos < this.startPos
-				int lastPos = other.lastPos() < this.lastPos() ? other.lastPos() : this.lastPos();
-				int otherCurPos = this.startPos - other.startPos;
-
-				for (int thisCurPos = 0; thisCurPos < (lastPos - this.startPos); thisCurPos++) {
-					int thisRead = bpToIndex(this.reads[thisCurPos]);
-					int otherRead = bpToIndex(other.reads[otherCurPos]);
-
-					// increment the counts of variants
-					this.neighborCounts[thisCurPos][otherRead]++;
-					other.neighborCounts[otherCurPos][thisRead]++;
-
-					if (otherRead != thisRead) {
-						this.variantsToThis[thisCurPos] = true;
-						other.variantsToThis[otherCurPos] = true;
-					}
-
-					// increment other position (thisCurPos is done in the for-loop)
-					otherCurPos++;
-				}
-			}
+		try {
+			CountState.save(outputDirectory + CountState.FILE_NAME, actualReads, reference, baseCounts, readBreadth, cooccurCounts, 
+					partial ? null : variantCounts, shard, numShards);
+		} catch (IOException e) {
+			e.printStackTrace();
+			failed = true;
 		}
 	}
 	
-	char getReadAtAbsolutePos(int absPos) {
-		// convert to local coordinate frame
-		int curPos = absPos - this.startPos;
-		
-		// do some edge checking
-		if (curPos < 0 || curPos >= this.length) {
-			System.err.println("Error trying to access abs position (" + absPos + ") in read " + this.startPos + "--" + (this.startPos+this.length));
-			// throw new Exception("illegal read at position " + absPos);
-			return ' ';
+	// adds up the counts of every shard; returns: whether they could be read
+	boolean mergePartialCounts() {
+		readBreadth = new BandedIntMatrix(numPos, windowSize, 1);
+		cooccurCounts = new BandedIntMatrix(numPos, windowSize, 16);
+		baseCounts = new int[numPos][4];
+		
+		try {
+			CountState.addAll(partials, baseCounts, readBreadth, cooccurCounts);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
 		}
 		
-		// otherwise, return the read character
-		return this.reads[curPos];
-	}
-
-	void printNeighborCounts() {
-		for (int i = 0; i < this.length; i++) {
-			System.out.println("A = " + neighborCounts[i][0] + ", T = " + neighborCounts[i][1] + ", C = " + neighborCounts[i][2] + ", G = " + neighborCounts[i][3]);
-		} 
+		for (CountState partial : partials)
+			actualReads += partial.numReads;
+		findDepthExtent();
+		return true;
 	}
-
-	static int bpToIndex(char bp) {
-		int index = -1;
-
-		switch (bp) {
-		case 'A':
-		case 'a':
-			index = 0;
-			break;
-
-		case 'T':
-		case 't':
-			index = 1;
-			break;
-
-		case 'C':
-		case 'c':
-			index = 2;
-			break; 
-
-		case 'G':
-		case 'g':
-			index = 3;
-			break;
+	
+	// returns: the parser used (for its throughput statistics), or null if parsing failed
+	SamParser parseSAM() {
+		try {
+			// the parser hands back the reads sorted by their start position
+			SamParser parser = new SamParser(INPUT_SAM_FILE, contig);
+			parser.busy = busy();
+			reads = parser.parse(numThreads);
+			
+			report.readsParsed.addAndGet(parser.readsParsed);
+			report.bytesRead.addAndGet(parser.bytesRead);
+			return parser;
+		} catch (IOException e) {
+			e.printStackTrace();
+			failed = true;
+			return null;
 		}
-
-		return index;
 	}
 }
-
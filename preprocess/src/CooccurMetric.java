@@ -0,0 +1,204 @@
+/**
+ * The co-occurrence metrics that can be computed for every pair (i, j) within
+ * the window, each written to its own file.  Most of them only look at the
+ * 2x2 variant counts of the pair: mm, mv, vm, vv (modal or variant at i, then
+ * modal or variant at j); the mutual information uses the 4x4 base counts.
+ */
+enum CooccurMetric implements PairMetric {
+	// P(variant at j | variant at i)
+	CONJ_PROB("conjprob", "conjProb") {
+		public double evaluate(int[] variants, int v, int[] pairs, int p) {
+			double totalCounts = total(variants, v);
+			double probVariantsI = (variants[v + 2] + variants[v + 3]) / 1.0 / Math.max(1, totalCounts);
+			double probVariantsIJ = variants[v + 3] / 1.0 / Math.max(1, totalCounts);
+
+			return probVariantsI == 0.0 ? 0.0 : probVariantsIJ / probVariantsI;
+		}
+	},
+
+	// P(variant at j | variant at i) - P(variant at j | modal at i)
+	DIFF_FROM_EXPECTED("diff", "conjProbDiff") {
+		public double evaluate(int[] variants, int v, int[] pairs, int p) {
+			return diffFromExpected(variants, v);
+		}
+	},
+
+	// Mike's metric: log(P(vv) / (P(variant at i) * P(variant at j))), clamped to [-5, 5]
+	RATIO_OF_OBSERVED_TO_EXPECTED("ratio", "conjProbDiff-ratio") {
+		public double evaluate(int[] variants, int v, int[] pairs, int p) {
+			double totalCounts = total(variants, v);
+			double probVarIJ = variants[v + 3] / 1.0 / Math.max(1, totalCounts);
+			double probVarI = (variants[v + 3] + variants[v + 2]) / 1.0 / Math.max(1, totalCounts);
+			double probVarJ = (variants[v + 3] + variants[v + 1]) / 1.0 / Math.max(1, totalCounts);
+
+			if (probVarI * probVarJ <= 0.0)
+				return 0.0;
+
+			double val = Math.log(probVarIJ / (probVarI * probVarJ));
+			return Math.max(-5, Math.min(5, val));
+		}
+	},
+
+	// the row's average DIFF_FROM_EXPECTED minus each (non-zero) pair's own
+	OUTLIER_DIFF_FROM_EXPECTED("outliers", "conjProbDiff-outliers") {
+		public double evaluate(int[] variants, int v, int[] pairs, int p) {
+			return diffFromExpected(variants, v);
+		}
+
+		public void finishRow(double[] row, boolean[] defined) {
+			double sumVals = 0.0;
+			int numOverlaps = 0;
+			for (int d = 0; d < row.length; d++) {
+				if (!defined[d]) continue;
+
+				sumVals += row[d];
+				numOverlaps++;
+			}
+
+			// (the last pair of the window has always been left as is)
+			double avg = sumVals / (double)numOverlaps;
+			for (int d = 0; d < row.length - 1; d++) {
+				if (row[d] != 0.0)
+					row[d] = avg - row[d];
+			}
+		}
+	},
+
+	// DIFF_FROM_EXPECTED, but 0 where less than 5% of the reads vary at i
+	GATED_DIFF_FROM_EXPECTED("gated", "conjProbDiff-gated05", "conjProbDiff-gated10") {
+		public double evaluate(int[] variants, int v, int[] pairs, int p) {
+			double vari = variants[v + 2] + variants[v + 3];
+			if (vari / total(variants, v) < 0.05)
+				return 0.0;
+
+			return diffFromExpected(variants, v);
+		}
+	},
+
+	// mutual information (in bits) between the bases at i and j, from the 4x4 base counts
+	MUTUAL_INFORMATION("mi", "mutualInfo") {
+		public double evaluate(int[] variants, int v, int[] pairs, int p) {
+			return mutualInformation(pairs, p, false);
+		}
+	},
+
+	// mutual information divided by the geometric mean of the entropies at i and j (in [0, 1])
+	NORMALIZED_MUTUAL_INFORMATION("nmi", "mutualInfoNorm") {
+		public double evaluate(int[] variants, int v, int[] pairs, int p) {
+			return mutualInformation(pairs, p, true);
+		}
+	},
+
+	// linkage disequilibrium between the variants at i and j: r^2 = D^2 / (pi (1 - pi) pj (1 - pj)),
+	// with D = P(vv) - pi * pj; 0 where either position doesn't vary
+	R_SQUARED("r2", "linkageR2") {
+		public double evaluate(int[] variants, int v, int[] pairs, int p) {
+			double totalCounts = total(variants, v);
+			if (totalCounts == 0) return 0.0;
+
+			double pi = (variants[v + 2] + variants[v + 3]) / totalCounts;
+			double pj = (variants[v + 1] + variants[v + 3]) / totalCounts;
+			double denominator = pi * (1 - pi) * pj * (1 - pj);
+			if (denominator <= 0.0) return 0.0;
+
+			double d = variants[v + 3] / totalCounts - pi * pj;
+			return d * d / denominator;
+		}
+	},
+
+	// linkage disequilibrium D normalized by the largest D possible with the same frequencies
+	// at i and j, so it is in [-1, 1]; 0 where either position doesn't vary
+	D_PRIME("dprime", "linkageDPrime") {
+		public double evaluate(int[] variants, int v, int[] pairs, int p) {
+			double totalCounts = total(variants, v);
+			if (totalCounts == 0) return 0.0;
+
+			double pi = (variants[v + 2] + variants[v + 3]) / totalCounts;
+			double pj = (variants[v + 1] + variants[v + 3]) / totalCounts;
+			double d = variants[v + 3] / totalCounts - pi * pj;
+
+			double dMax = d > 0 ? Math.min(pi * (1 - pj), (1 - pi) * pj) : Math.min(pi * pj, (1 - pi) * (1 - pj));
+			return dMax <= 0.0 ? 0.0 : d / dMax;
+		}
+	};
+
+	final String cliName;    // as given to --metrics
+	final String fileName;   // output file (without extension)
+	final String csvName;    // output file of the CSV dump (without extension)
+
+	CooccurMetric(String cliName, String fileName) {
+		this(cliName, fileName, fileName);
+	}
+
+	CooccurMetric(String cliName, String fileName, String csvName) {
+		this.cliName = cliName;
+		this.fileName = fileName;
+		this.csvName = csvName;
+	}
+
+	public void finishRow(double[] row, boolean[] defined) {
+	}
+
+	// returns: the metric given to --metrics as name, or null if there is none
+	static CooccurMetric fromCliName(String name) {
+		for (CooccurMetric metric : values()) {
+			if (metric.cliName.equals(name)) return metric;
+		}
+
+		return null;
+	}
+
+	// returns: the names accepted by --metrics, as a list for the help sheet
+	static String cliNames() {
+		StringBuilder names = new StringBuilder();
+		for (CooccurMetric metric : values()) {
+			if (names.length() > 0) names.append(", ");
+			names.append(metric.cliName);
+		}
+
+		return names.toString();
+	}
+
+	private static double total(int[] variants, int v) {
+		return (double)variants[v] + variants[v + 1] + variants[v + 2] + variants[v + 3];
+	}
+
+	// returns: the mutual information of the 4x4 counts at pairs[p] (base_i << 2 | base_j), 
+	// I = H(i) + H(j) - H(i, j), optionally normalized by sqrt(H(i) H(j))
+	private static double mutualInformation(int[] pairs, int p, boolean normalized) {
+		int total = 0;
+		double jointTerms = 0.0, iTerms = 0.0, jTerms = 0.0;
+		for (int a = 0; a < 4; a++) {
+			int rowTotal = 0, colTotal = 0;
+			for (int b = 0; b < 4; b++) {
+				int n = pairs[p + (a << 2 | b)];
+				rowTotal += n;
+				colTotal += pairs[p + (b << 2 | a)];
+				jointTerms += NLogN.of(n);
+			}
+
+			total += rowTotal;
+			iTerms += NLogN.of(rowTotal);
+			jTerms += NLogN.of(colTotal);
+		}
+
+		if (total == 0) return 0.0;
+
+		double hi = NLogN.entropy(iTerms, total);
+		double hj = NLogN.entropy(jTerms, total);
+		double mi = Math.max(0.0, hi + hj - NLogN.entropy(jointTerms, total));
+		if (!normalized) return mi;
+
+		return hi <= 0.0 || hj <= 0.0 ? 0.0 : Math.min(1.0, mi / Math.sqrt(hi * hj));
+	}
+
+	private static double diffFromExpected(int[] variants, int v) {
+		double vari = variants[v + 2] + variants[v + 3];
+		double modali = variants[v] + variants[v + 1];
+
+		double prob_varj_cond_vari = vari == 0.0 ? 0.0 : variants[v + 3] / vari;
+		double prob_varj_cond_modali = modali == 0.0 ? 0.0 : variants[v + 1] / modali;
+
+		return prob_varj_cond_vari - prob_varj_cond_modali;
+	}
+}
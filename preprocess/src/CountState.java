@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The counts of a run kept on disk (counts.state in its output directory), so
+ * a later run can add the reads of a new SAM file to them (--append) instead
+ * of parsing everything again.  Every count is a sum over reads, so adding the
+ * stored counts to those of the new reads gives the counts of all of them.
+ *
+ * The counts of any number of runs over parts of the same input (--shard)
+ * add up the same way, so merging them (--merge) gives the counts of the
+ * whole input.  Such partial counts have no reference of their own (every
+ * shard would find a different consensus), so they are written without the
+ * reference and the variant counts (PARTIAL), and with the shard they are of,
+ * so a merge can tell whether it has every shard exactly once.
+ *
+ * The file holds HEADER_INTS ints (MAGIC, VERSION, numPos, windowSize, the
+ * number of reads counted, flags, the shard (0 to numShards - 1) and
+ * numShards, both 0 if the counts are of the whole input), then, as
+ * big-endian ints:
+ *
+ *   reference       numPos (the base at every position the counts were last
+ *                   evaluated against, -1 if unknown); not in PARTIAL files
+ *   baseCounts      numPos x 4
+ *   readBreadth     the band (spacing 1)
+ *   cooccurCounts   the band (spacing 16)
+ *   variantCounts   the band (spacing 4), relative to reference; not in
+ *                   PARTIAL files
+ *
+ * Sections are read and written through memory-mapped regions of at most
+ * MAP_INTS ints, so the file may be larger than one mapping (2 GB).
+ */
+class CountState {
+	static final int MAGIC = 0x43535431; // "CST1"
+	static final int VERSION = 2;
+	static final int HEADER_INTS = 8;
+	static final int MAP_INTS = 1 << 26;
+	static final int ADD_INTS = 1 << 16; // ints added from every file in turn when merging
+	static final int PARTIAL = 1;
+
+	static final String FILE_NAME = "counts.state";
+
+	final String fileName;
+	final int numPos;
+	final int windowSize;
+	final int numReads;
+	final boolean partial;
+	final int shard;     // the shard (0-based) of the input counted, if partial
+	final int numShards; // the number of shards the input was split into, or 0 if it wasn't
+
+	private CountState(String fileName, int numPos, int windowSize, int numReads, boolean partial, int shard, int numShards) {
+		this.fileName = fileName;
+		this.numPos = numPos;
+		this.windowSize = windowSize;
+		this.numReads = numReads;
+		this.partial = partial;
+		this.shard = shard;
+		this.numShards = numShards;
+	}
+
+	// returns: the header of the state in the given file
+	static CountState open(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			IntBuffer header = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER_INTS * 4).asIntBuffer();
+			if (header.get(0) != MAGIC)
+				throw new IOException(fileName + " is not a count state");
+			if (header.get(1) != VERSION)
+				throw new IOException(fileName + " is version " + header.get(1) + " of the count state; expected " + VERSION);
+
+			CountState state = new CountState(fileName, header.get(2), header.get(3), header.get(4), (header.get(5) & PARTIAL) != 0, 
+					header.get(6), header.get(7));
+			long expected = state.offsetOf(5, 0);
+			if (file.length() != expected)
+				throw new IOException(fileName + " is " + file.length() + " bytes; expected " + expected);
+
+			return state;
+		} finally {
+			file.close();
+		}
+	}
+
+	// adds the stored counts to the given ones (of the same numPos and windowSize)
+	void addTo(int[][] baseCounts, BandedIntMatrix readBreadth, BandedIntMatrix cooccurCounts) throws IOException {
+		addAll(Arrays.asList(this), baseCounts, readBreadth, cooccurCounts);
+	}
+
+	// adds the counts of every state (all of the same numPos and windowSize) to the given ones, a stretch of 
+	// every file at a time (a k-way merge), so each value of the counts is visited once
+	static void addAll(List<CountState> states, int[][] baseCounts, BandedIntMatrix readBreadth, BandedIntMatrix cooccurCounts) throws IOException {
+		List<RandomAccessFile> files = new ArrayList<RandomAccessFile>();
+		try {
+			FileChannel[] channels = new FileChannel[states.size()];
+			for (int k = 0; k < channels.length; k++) {
+				files.add(new RandomAccessFile(states.get(k).fileName, "r"));
+				channels[k] = files.get(k).getChannel();
+			}
+
+			int numPos = baseCounts.length;
+			int[] counts = new int[numPos * 4];
+			add(states, channels, 1, counts);
+			for (int i = 0; i < numPos; i++) {
+				for (int b = 0; b < 4; b++)
+					baseCounts[i][b] += counts[i * 4 + b];
+			}
+
+			add(states, channels, 2, readBreadth.data);
+			add(states, channels, 3, cooccurCounts.data);
+		} finally {
+			for (RandomAccessFile file : files)
+				file.close();
+		}
+	}
+
+	// adds the given section of every state to values
+	private static void add(List<CountState> states, FileChannel[] channels, int section, int[] values) throws IOException {
+		int[] chunk = new int[Math.min(values.length, ADD_INTS)];
+		IntBuffer[] mapped = new IntBuffer[channels.length];
+		for (int from = 0; from < values.length; from += MAP_INTS) {
+			int count = Math.min(MAP_INTS, values.length - from);
+			for (int k = 0; k < channels.length; k++)
+				mapped[k] = map(channels[k], FileChannel.MapMode.READ_ONLY, states.get(k).offsetOf(section, from), count);
+
+			for (int n = 0; n < count; n += chunk.length) {
+				int length = Math.min(chunk.length, count - n);
+				for (int k = 0; k < channels.length; k++) {
+					mapped[k].get(chunk, 0, length);
+					for (int m = 0; m < length; m++)
+						values[from + n + m] += chunk[m];
+				}
+			}
+		}
+	}
+
+	// returns: what keeps the given states from being the counts of every shard of one input exactly once, or 
+	// null if nothing does
+	static String checkShards(List<CountState> states) {
+		int numShards = states.get(0).numShards;
+		CountState[] found = new CountState[Math.max(0, numShards)];
+		for (CountState state : states) {
+			if (!state.partial || state.numShards < 1)
+				return state.fileName + " holds the counts of a whole input, not of a shard";
+			if (state.numShards != numShards)
+				return state.fileName + " is a shard of " + state.numShards + ", " + states.get(0).fileName + " one of " + numShards;
+			if (state.shard < 0 || state.shard >= numShards)
+				return state.fileName + " is shard " + (state.shard + 1) + " of " + numShards;
+			if (found[state.shard] != null)
+				return found[state.shard].fileName + " and " + state.fileName + " are both shard " + (state.shard + 1) + " of " + numShards;
+			found[state.shard] = state;
+		}
+
+		List<Integer> missing = new ArrayList<Integer>();
+		for (int k = 0; k < numShards; k++) {
+			if (found[k] == null) missing.add(k + 1);
+		}
+		if (!missing.isEmpty())
+			return "shard(s) " + missing.toString().replaceAll("[\\[\\]]", "") + " of " + numShards + " are missing";
+
+		return null;
+	}
+
+	// returns: the reference the stored variant counts are relative to
+	int[] reference() throws IOException {
+		if (partial)
+			throw new IOException(fileName + " holds partial counts, without a reference");
+
+		int[] reference = new int[numPos];
+		read(offsetOf(0, 0), reference);
+		return reference;
+	}
+
+	// returns: the stored variant counts
+	BandedIntMatrix variantCounts() throws IOException {
+		if (partial)
+			throw new IOException(fileName + " holds partial counts, without variant counts");
+
+		BandedIntMatrix variantCounts = new BandedIntMatrix(numPos, windowSize, 4);
+		read(offsetOf(4, 0), variantCounts.data);
+		return variantCounts;
+	}
+
+	// writes the state to fileName (through a temporary file, so a failed write leaves the old state as it was);
+	// without a reference (and variant counts), the state is PARTIAL: the counts of the given shard of numShards
+	static void save(String fileName, int numReads, int[] reference, int[][] baseCounts, BandedIntMatrix readBreadth,
+			BandedIntMatrix cooccurCounts, BandedIntMatrix variantCounts, int shard, int numShards) throws IOException {
+		int numPos = baseCounts.length;
+		CountState state = new CountState(fileName, numPos, readBreadth.windowSize, numReads, reference == null, shard, numShards);
+		String tempName = fileName + ".tmp";
+
+		RandomAccessFile file = new RandomAccessFile(tempName, "rw");
+		try {
+			file.setLength(state.offsetOf(5, 0));
+			FileChannel channel = file.getChannel();
+
+			map(channel, FileChannel.MapMode.READ_WRITE, 0, HEADER_INTS).put(new int[] {
+				MAGIC, VERSION, numPos, state.windowSize, numReads, state.partial ? PARTIAL : 0, shard, numShards
+			});
+			if (!state.partial)
+				transfer(channel, state.offsetOf(0, 0), reference, FileChannel.MapMode.READ_WRITE);
+
+			int[] counts = new int[numPos * 4];
+			for (int i = 0; i < numPos; i++)
+				System.arraycopy(baseCounts[i], 0, counts, i * 4, 4);
+			transfer(channel, state.offsetOf(1, 0), counts, FileChannel.MapMode.READ_WRITE);
+
+			transfer(channel, state.offsetOf(2, 0), readBreadth.data, FileChannel.MapMode.READ_WRITE);
+			transfer(channel, state.offsetOf(3, 0), cooccurCounts.data, FileChannel.MapMode.READ_WRITE);
+			if (!state.partial)
+				transfer(channel, state.offsetOf(4, 0), variantCounts.data, FileChannel.MapMode.READ_WRITE);
+		} finally {
+			file.close();
+		}
+
+		Files.move(Paths.get(tempName), Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	// returns: the byte offset of value n of the given section (0: reference ... 4: variantCounts; 5: the end)
+	private long offsetOf(int section, long n) {
+		long numWindow = 2 * windowSize + 1;
+		long[] sizes = { partial ? 0 : numPos, numPos * 4L, numPos * numWindow, numPos * numWindow * 16, partial ? 0 : numPos * numWindow * 4 };
+
+		long offset = HEADER_INTS;
+		for (int s = 0; s < section; s++)
+			offset += sizes[s];
+
+		return (offset + n) * 4;
+	}
+
+	private void read(long offset, int[] values) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			transfer(file.getChannel(), offset, values, FileChannel.MapMode.READ_ONLY);
+		} finally {
+			file.close();
+		}
+	}
+
+	// copies the ints between values and the file at offset (reading with READ_ONLY, writing with READ_WRITE)
+	private static void transfer(FileChannel channel, long offset, int[] values, FileChannel.MapMode mode) throws IOException {
+		for (int from = 0; from < values.length; from += MAP_INTS) {
+			int count = Math.min(MAP_INTS, values.length - from);
+			IntBuffer mapped = map(channel, mode, offset + from * 4L, count);
+			if (mode == FileChannel.MapMode.READ_ONLY)
+				mapped.get(values, from, count);
+			else
+				mapped.put(values, from, count);
+		}
+	}
+
+	private static IntBuffer map(FileChannel channel, FileChannel.MapMode mode, long offset, int count) throws IOException {
+		return channel.map(mode, offset, count * 4L).asIntBuffer();
+	}
+}
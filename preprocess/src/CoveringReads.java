@@ -0,0 +1,48 @@
+import java.util.Arrays;
+
+/**
+ * The reads of a (sorted) ReadStore that cover a position, split by their
+ * base there: categories[b][0, categorySize[b]) holds the indices of the
+ * reads with base b (0-3) at the position.  N and other ambiguous bases are
+ * left out.  Positions must be visited in increasing order; each instance
+ * is meant for one thread.
+ */
+class CoveringReads {
+	final ReadStore reads;
+	final int maxLength; // the longest read; no read starting more than this before i can cover i
+
+	final int[][] categories = new int[4][64];
+	final int[] categorySize = new int[4];
+
+	private int firstRead; // the first read that could still cover the current position
+
+	CoveringReads(ReadStore reads, int maxLength, int firstPos) {
+		this.reads = reads;
+		this.maxLength = maxLength;
+		this.firstRead = reads.firstReadStartingAt(firstPos - maxLength + 1);
+	}
+
+	// collects the reads covering position i
+	void moveTo(int i) {
+		while (firstRead < reads.size && reads.startPos[firstRead] + maxLength <= i)
+			firstRead++;
+
+		Arrays.fill(categorySize, 0);
+		for (int n = firstRead; n < reads.size && reads.startPos[n] <= i; n++) {
+			if (reads.lastPos(n) < i) continue;
+
+			int base = reads.baseAt(n, i);
+			if (base >= ReadStore.BASE_N) continue;
+
+			int count = categorySize[base]++;
+			if (count == categories[base].length)
+				categories[base] = Arrays.copyOf(categories[base], 2 * count);
+			categories[base][count] = n;
+		}
+	}
+
+	// returns: the number of reads (with a base) at the current position
+	int total() {
+		return categorySize[0] + categorySize[1] + categorySize[2] + categorySize[3];
+	}
+}
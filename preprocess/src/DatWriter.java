@@ -0,0 +1,121 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a binary .dat file: the three header ints (numWindow, numPos, and
+ * the flags of setHeaderFlags), then the body, big-endian just as
+ * DataOutputStream would write them.
+ *
+ * Values are gathered in a large direct buffer, whole rows at a time with one
+ * bulk put, and the buffer goes out through a FileChannel whenever it fills,
+ * instead of a system call for every value.
+ */
+class DatWriter {
+	static final int BUFFER_BYTES = 1 << 20;
+
+	private final FileOutputStream file;
+	private final FileChannel channel;
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+	long bytesWritten = 0; // gone out to the file so far (all of it, once closed)
+	long cells = 0;        // the cells (pairs, or positions) written, as counted by whoever writes them
+
+	DatWriter(String fileName, int numWindow, int numPos, int flags) throws IOException {
+		file = new FileOutputStream(fileName);
+		channel = file.getChannel();
+
+		writeInt(numWindow);
+		writeInt(numPos);
+		writeInt(flags);
+	}
+
+	void writeByte(int v) throws IOException {
+		room(1);
+		buf.put((byte)v);
+	}
+
+	void writeShort(int v) throws IOException {
+		room(2);
+		buf.putShort((short)v);
+	}
+
+	void writeInt(int v) throws IOException {
+		room(4);
+		buf.putInt(v);
+	}
+
+	void writeLong(long v) throws IOException {
+		room(8);
+		buf.putLong(v);
+	}
+
+	void writeFloat(float v) throws IOException {
+		room(4);
+		buf.putFloat(v);
+	}
+
+	// writes values[from, from + count)
+	void writeFloats(float[] values, int from, int count) throws IOException {
+		while (count > 0) {
+			int n = Math.min(count, buf.remaining() >>> 2);
+			if (n == 0) {
+				drain();
+				continue;
+			}
+
+			buf.asFloatBuffer().put(values, from, n);
+			buf.position(buf.position() + (n << 2));
+			from += n;
+			count -= n;
+		}
+	}
+
+	// writes values[from, from + count)
+	void writeInts(int[] values, int from, int count) throws IOException {
+		while (count > 0) {
+			int n = Math.min(count, buf.remaining() >>> 2);
+			if (n == 0) {
+				drain();
+				continue;
+			}
+
+			buf.asIntBuffer().put(values, from, n);
+			buf.position(buf.position() + (n << 2));
+			from += n;
+			count -= n;
+		}
+	}
+
+	void writeBytes(byte[] values) throws IOException {
+		int from = 0;
+		while (from < values.length) {
+			if (!buf.hasRemaining()) drain();
+
+			int n = Math.min(values.length - from, buf.remaining());
+			buf.put(values, from, n);
+			from += n;
+		}
+	}
+
+	void close() throws IOException {
+		try {
+			drain();
+		} finally {
+			file.close();
+		}
+	}
+
+	private void room(int bytes) throws IOException {
+		if (buf.remaining() < bytes) drain();
+	}
+
+	private void drain() throws IOException {
+		buf.flip();
+		bytesWritten += buf.remaining();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		buf.clear();
+	}
+}
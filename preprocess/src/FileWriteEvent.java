@@ -0,0 +1,25 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Marks the writing of one output file (see OutputStage) in a flight
+ * recording, like PhaseEvent marks the phases.
+ */
+@Name("cooccur.FileWrite")
+@Label("Output File Write")
+@Category("CooccurViewer")
+@Description("The writing of one .dat file")
+class FileWriteEvent extends jdk.jfr.Event {
+	@Label("File")
+	String file;
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+
+	@Label("Cells")
+	long cells;
+}
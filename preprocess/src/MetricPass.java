@@ -0,0 +1,117 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluates any number of metrics on the counts of every pair within the
+ * window in one pass: each cell's counts are read once and handed to every
+ * metric, and each metric fills its own band of values.  Rows are
+ * independent, so ranges of rows are evaluated in parallel.
+ *
+ * Pairs are only evaluated where the reference is known at both i and j and
+ * something covers i; everything else stays 0.
+ */
+class MetricPass {
+	static final int ROWS_PER_TASK = 64;
+
+	final PairMetric[] metrics;
+	final BandedDoubleMatrix[] values; // one band per metric
+
+	final int[] reference; // the base code at each position, or -1 if unknown
+	final int[][] baseCounts;
+	final BandedIntMatrix variantCounts;
+	final BandedIntMatrix cooccurCounts;
+
+	final int numPos;
+	final int windowSize;
+
+	final AtomicLong pairsEvaluated = new AtomicLong(); // the pairs the metrics were evaluated on so far
+	RunReport.Busy busy; // told how long every thread spends evaluating rows, if not null
+
+	MetricPass(PairMetric[] metrics, int[] reference, int[][] baseCounts, BandedIntMatrix variantCounts, BandedIntMatrix cooccurCounts) {
+		this.metrics = metrics;
+		this.reference = reference;
+		this.baseCounts = baseCounts;
+		this.variantCounts = variantCounts;
+		this.cooccurCounts = cooccurCounts;
+		this.numPos = variantCounts.numPos;
+		this.windowSize = variantCounts.windowSize;
+
+		values = new BandedDoubleMatrix[metrics.length];
+		for (int m = 0; m < metrics.length; m++)
+			values[m] = new BandedDoubleMatrix(numPos, windowSize);
+	}
+
+	// evaluates every metric on numThreads threads
+	void run(int numThreads) {
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			pool.invoke(new RowRange(0, numPos));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	class RowRange extends RecursiveAction {
+		final int lo, hi;
+
+		RowRange(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo > ROWS_PER_TASK) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new RowRange(lo, mid), new RowRange(mid, hi));
+				return;
+			}
+
+			long startTime = System.nanoTime();
+			evaluateRows(lo, hi);
+			if (busy != null) busy.add(System.nanoTime() - startTime);
+		}
+	}
+
+	// evaluates the rows [lo, hi)
+	void evaluateRows(int lo, int hi) {
+		int numWindow = 2 * windowSize + 1;
+		double[][] rows = new double[metrics.length][numWindow];
+		boolean[] defined = new boolean[numWindow];
+		long evaluated = 0;
+
+		for (int i = lo; i < hi; i++) {
+			// skip if no reads at this location
+			if (reference[i] == -1 || baseCounts[i][0] + baseCounts[i][1] + baseCounts[i][2] + baseCounts[i][3] == 0) continue;
+
+			int minJ = Math.max(0, i - windowSize);
+			int maxJ = Math.min(numPos - 1, i + windowSize);
+			for (int j = minJ; j <= maxJ; j++)
+				defined[j - i + windowSize] = reference[j] != -1;
+
+			for (int d = 0; d < numWindow; d++) {
+				if (!defined[d]) {
+					for (int m = 0; m < metrics.length; m++)
+						rows[m][d] = 0.0;
+					continue;
+				}
+
+				int j = i + d - windowSize;
+				int v = variantCounts.index(i, j), p = cooccurCounts.index(i, j);
+				for (int m = 0; m < metrics.length; m++)
+					rows[m][d] = metrics[m].evaluate(variantCounts.data, v, cooccurCounts.data, p);
+				evaluated++;
+			}
+
+			for (int m = 0; m < metrics.length; m++) {
+				metrics[m].finishRow(rows[m], defined);
+				System.arraycopy(rows[m], 0, values[m].data, values[m].index(i, i - windowSize), numWindow);
+			}
+
+			for (int j = minJ; j <= maxJ; j++)
+				defined[j - i + windowSize] = false;
+		}
+
+		pairsEvaluated.addAndGet(evaluated);
+	}
+}
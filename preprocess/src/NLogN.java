@@ -0,0 +1,25 @@
+/**
+ * n * log2(n) for counts, looked up from a table for small n (where most
+ * counts fall) so entropies of count tables need no Math.log per count.
+ */
+class NLogN {
+	static final int TABLE_SIZE = 1 << 16;
+
+	private static final double[] TABLE = new double[TABLE_SIZE];
+	private static final double LN_2 = Math.log(2);
+	static {
+		for (int n = 1; n < TABLE_SIZE; n++)
+			TABLE[n] = n * Math.log(n) / LN_2;
+	}
+
+	// returns: n log2 n (0 for n = 0)
+	static double of(int n) {
+		return n < TABLE_SIZE ? TABLE[n] : n * Math.log(n) / LN_2;
+	}
+
+	// returns: the Shannon entropy (in bits) of the given counts, from their n log n terms
+	// (sumNLogN = the sum of of(count) over the counts, total = the sum of the counts)
+	static double entropy(double sumNLogN, int total) {
+		return total == 0 ? 0.0 : (of(total) - sumNLogN) / total;
+	}
+}
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the .dat files of a run in the background: every file is written
+ * by its own task (see DatWriter), in parallel with the other files and with
+ * whatever the run computes next.  The data handed over must not change
+ * until finish() returns.
+ *
+ * The files are one phase of the run's report ("write", from the start of the
+ * stage until finish() returns), and every file is timed on its own.
+ */
+class OutputStage {
+	// the body of a file, after its header
+	interface Body {
+		void write(DatWriter out) throws IOException;
+	}
+
+	private final ExecutorService pool;
+	private final List<Future<?>> pending = new ArrayList<Future<?>>();
+	private final List<String> written = new ArrayList<String>(); // (the file of every pending task, in order)
+	private final List<String> encodings = Collections.synchronizedList(new ArrayList<String>()); // of the bands written
+	private final RunReport report;
+	private final RunReport.Phase writing;
+
+	OutputStage(int numThreads, RunReport report) {
+		pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		this.report = report;
+		writing = report.begin("write");
+	}
+
+	// starts writing the file with the given header and body
+	void write(final String fileName, final int numWindow, final int numPos, final int flags, final Body body) {
+		System.out.println("writing to " + fileName + " ...");
+		written.add(fileName);
+		pending.add(pool.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				RunReport.FileWrite timed = report.beginFile(fileName);
+				DatWriter out = new DatWriter(fileName, numWindow, numPos, flags);
+				try {
+					body.write(out);
+				} finally {
+					out.close();
+				}
+
+				timed.end(out);
+				writing.busy.add(timed.nanos);
+				return null;
+			}
+		}));
+	}
+
+	// starts writing the band, in the encoding BandEncoding chooses from its values (counts are kept exact,
+	// other values take precisionBytes)
+	void writeBand(final String fileName, final int numWindow, final int numPos, final BandEncoding.Rows rows, final boolean counts, final int precisionBytes) {
+		System.out.println("writing to " + fileName + " ...");
+		written.add(fileName);
+		pending.add(pool.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				RunReport.FileWrite timed = report.beginFile(fileName);
+				BandEncoding encoding = BandEncoding.choose(rows, numPos, numWindow, counts, precisionBytes);
+				DatWriter out = new DatWriter(fileName, numWindow, numPos, encoding.headerFlags());
+				try {
+					encoding.write(out, rows);
+				} finally {
+					out.close();
+				}
+
+				timed.end(out);
+				writing.busy.add(timed.nanos);
+				encodings.add(fileName + " as " + encoding);
+				return null;
+			}
+		}));
+	}
+
+	// prints the encoding of every band written (once finish() returned, so it doesn't cut into other output)
+	void printEncodings() {
+		synchronized (encodings) {
+			for (String encoding : encodings)
+				System.out.println("\twrote " + encoding);
+		}
+	}
+
+	// returns: the name of every file started so far, but those finish() found failed
+	List<String> written() {
+		return new ArrayList<String>(written);
+	}
+
+	// waits until every file is written (reporting those that failed), then stops the threads; returns: whether
+	// every file was written
+	boolean finish() {
+		List<String> failed = new ArrayList<String>();
+		try {
+			for (int f = 0; f < pending.size(); f++) {
+				try {
+					pending.get(f).get();
+				} catch (ExecutionException e) {
+					System.err.println("couldn't write " + written.get(f) + ":");
+					e.getCause().printStackTrace();
+					failed.add(written.get(f));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			pending.clear();
+			pool.shutdown();
+			writing.end();
+			written.removeAll(failed);
+		}
+
+		return failed.isEmpty();
+	}
+}
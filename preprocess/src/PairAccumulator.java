@@ -0,0 +1,93 @@
+/**
+ * Adds reads, one at a time, into the banded count stores: the pair coverage
+ * (readBreadth, unless it is null), the per-position base counts and the 4x4
+ * co-occurrence counts of every pair (i, j) within the window.
+ *
+ * Both pair stores are symmetric, so only the upper half of the band (j >= i)
+ * is counted; once every read is in, BandedIntMatrix.mirrorUpperHalf() fills
+ * in the rest.
+ *
+ * Rows are owned in blocks of 2^ROW_BLOCK_SHIFT positions, round-robin across
+ * numParts accumulators; each accumulator only writes the rows it owns, so
+ * several of them can be fed the same reads concurrently without locking.
+ */
+class PairAccumulator {
+	static final int ROW_BLOCK_SHIFT = 4;
+
+	final BandedIntMatrix readBreadth;
+	final BandedIntMatrix cooccurCounts;
+	final int[][] baseCounts;
+
+	final int numPos;
+	final int windowSize;
+	final int part;
+	final int numParts;
+
+	long readsAdded = 0;
+	long busyNanos = 0;
+
+	private int[] codes = new int[512];
+
+	PairAccumulator(BandedIntMatrix readBreadth, BandedIntMatrix cooccurCounts, int[][] baseCounts, int part, int numParts) {
+		this.readBreadth = readBreadth;
+		this.cooccurCounts = cooccurCounts;
+		this.baseCounts = baseCounts;
+		this.numPos = cooccurCounts.numPos;
+		this.windowSize = cooccurCounts.windowSize;
+		this.part = part;
+		this.numParts = numParts;
+	}
+
+	// returns: if this accumulator writes row i
+	boolean owns(int i) {
+		return (i >> ROW_BLOCK_SHIFT) % numParts == part;
+	}
+
+	// adds read r of the given store
+	void add(ReadStore reads, int r) {
+		int start = reads.startPos[r];
+		int last = Math.min(reads.lastPos(r), numPos - 1);
+		if (start > last) return;
+
+		codes = reads.getCodes(r, codes);
+
+		int[] breadth = readBreadth == null ? null : readBreadth.data;
+		int[] pairs = cooccurCounts.data;
+
+		int k = start;
+		while (k <= last) {
+			int block = k >> ROW_BLOCK_SHIFT;
+			int blockEnd = Math.min(last, ((block + 1) << ROW_BLOCK_SHIFT) - 1);
+
+			// skip over the rows another accumulator is responsible for
+			if (block % numParts != part) {
+				k = blockEnd + 1;
+				continue;
+			}
+
+			for (; k <= blockEnd; k++) {
+				int maxN = Math.min(last, k + windowSize);
+
+				if (breadth != null) {
+					int offset = readBreadth.index(k, k);
+					for (int n = k; n <= maxN; n++)
+						breadth[offset++]++;
+				}
+
+				// bases other than A, T, C, G aren't counted
+				int bi = codes[k - start];
+				if (bi >= ReadStore.BASE_N) continue;
+
+				baseCounts[k][bi]++;
+
+				int pairOffset = cooccurCounts.index(k, k) + (bi << 2);
+				for (int n = k; n <= maxN; n++, pairOffset += 16) {
+					int bj = codes[n - start];
+					if (bj < ReadStore.BASE_N) pairs[pairOffset + bj]++;
+				}
+			}
+		}
+
+		readsAdded++;
+	}
+}
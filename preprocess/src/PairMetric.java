@@ -0,0 +1,15 @@
+/**
+ * A co-occurrence metric of a pair of positions (i, j), evaluated from the
+ * counts of that pair alone: its 2x2 variant counts (modal/variant at i by
+ * modal/variant at j) and its 4x4 base counts.  Every metric is evaluated in
+ * the same pass over the counts (see MetricPass).
+ */
+interface PairMetric {
+	// returns: the value of the metric for the pair whose 2x2 counts (mm, mv, vm, vv) start at
+	// variants[v], and whose 4x4 counts (base_i << 2 | base_j) start at pairs[p]
+	double evaluate(int[] variants, int v, int[] pairs, int p);
+
+	// adjusts the values of a row once every pair in it has been evaluated; row is indexed by
+	// j - i + windowSize, and defined marks the pairs that were evaluated (the rest are 0)
+	void finishRow(double[] row, boolean[] defined);
+}
@@ -0,0 +1,306 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parses a SAM file and accumulates its counts at the same time, so the
+ * reads never have to be held in memory all at once.
+ *
+ * Parser threads each take a newline-aligned range of the file and hand
+ * batches of reads to every accumulator through a bounded queue (so a slow
+ * accumulator throttles the parsers instead of letting batches pile up).
+ * Each accumulator thread owns an interleaved subset of the rows (see
+ * PairAccumulator), so the counts are exact regardless of thread timing.
+ *
+ * A gzipped SAM or BAM file can't be split into ranges; it is read by a
+ * single producer, which inflates it on the parser threads instead.
+ */
+class ParsePipeline {
+	static final int BATCH_SIZE = 2048;   // reads handed over at once
+	static final int QUEUE_BATCHES = 8;   // batches that may wait for each accumulator
+
+	// marks the end of the input on each accumulator queue
+	private static final ReadStore END_OF_INPUT = new ReadStore(1, 1);
+
+	final String fileName;
+	final SamParser.Contig contig; // the only contig to parse, or null for the whole file
+	final int numParsers;
+	final int numAccumulators;
+
+	final BandedIntMatrix readBreadth;
+	final BandedIntMatrix cooccurCounts;
+	final int[][] baseCounts;
+
+	// only shard of numShards of the input is counted: that stretch of the lines of a SAM file, or every
+	// numShards-th read (from the shard-th on) of a compressed one
+	int shard = 0;
+	int numShards = 1;
+
+	RunReport.Busy busy; // told how long every parser (waits for full queues included) and accumulator works, if not null
+
+	long bytesRead = 0;
+	int readsParsed = 0;
+	int readsProjected = 0;
+	int readsUnmapped = 0;
+	int readsSkipped = 0; // those of other shards
+	long elapsedNanos = 0;
+	long accumulateNanos = 0;
+
+	private final List<BlockingQueue<ReadStore>> queues = new ArrayList<BlockingQueue<ReadStore>>();
+
+	ParsePipeline(String fileName, SamParser.Contig contig, int numThreads, BandedIntMatrix readBreadth, BandedIntMatrix cooccurCounts, int[][] baseCounts) {
+		this.fileName = fileName;
+		this.contig = contig;
+
+		// accumulating a read costs O(length * window) against O(length) to parse it,
+		// so most of the threads go to the accumulators
+		this.numParsers = Math.max(1, numThreads / 4);
+		this.numAccumulators = Math.max(1, numThreads - numParsers);
+
+		this.readBreadth = readBreadth;
+		this.cooccurCounts = cooccurCounts;
+		this.baseCounts = baseCounts;
+	}
+
+	void run() throws IOException {
+		long startTime = System.nanoTime();
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		ExecutorService accumulatorPool = Executors.newFixedThreadPool(numAccumulators);
+		ExecutorService parserPool = Executors.newFixedThreadPool(numParsers);
+
+		try {
+			final FileChannel channel = file.getChannel();
+
+			// start the consumers first
+			final PairAccumulator[] accumulators = new PairAccumulator[numAccumulators];
+			List<Future<?>> accumulated = new ArrayList<Future<?>>();
+			for (int n = 0; n < numAccumulators; n++) {
+				final BlockingQueue<ReadStore> queue = new ArrayBlockingQueue<ReadStore>(QUEUE_BATCHES);
+				final PairAccumulator accumulator = new PairAccumulator(readBreadth, cooccurCounts, baseCounts, n, numAccumulators);
+				queues.add(queue);
+				accumulators[n] = accumulator;
+
+				accumulated.add(accumulatorPool.submit(new Runnable() {
+					public void run() {
+						accumulate(queue, accumulator);
+					}
+				}));
+			}
+
+			// then the producers, one per byte range (a compressed file has a single one)
+			final SamParser range = new SamParser(fileName, contig);
+			final SamParser[] parsers;
+			List<Future<?>> parsed = new ArrayList<Future<?>>();
+			if (range.format != SamParser.FORMAT_SAM) {
+				parsers = new SamParser[] { range };
+				parsed.add(parserPool.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						long startTime = System.nanoTime();
+						BatchingSink sink = new BatchingSink(numShards, shard);
+						range.parseStream(sink, numParsers);
+						sink.flush();
+						readsSkipped += sink.skipped;
+						if (busy != null) busy.add(System.nanoTime() - startTime);
+						return null;
+					}
+				}));
+			} else {
+				long[] lines = SamParser.getShardBounds(channel, range.rangeStart(), range.rangeEnd(file), shard, numShards);
+				final long[] bounds = SamParser.getChunkBounds(channel, lines[0], lines[1], numParsers);
+				parsers = new SamParser[bounds.length - 1];
+				for (int n = 0; n < parsers.length; n++) {
+					final int chunk = n;
+					parsers[n] = new SamParser(fileName, contig);
+					parsed.add(parserPool.submit(new Callable<Void>() {
+						public Void call() throws IOException {
+							long startTime = System.nanoTime();
+							BatchingSink sink = new BatchingSink(1, 0);
+							parsers[chunk].parse(channel, bounds[chunk], bounds[chunk + 1], sink);
+							sink.flush();
+							if (busy != null) busy.add(System.nanoTime() - startTime);
+							return null;
+						}
+					}));
+				}
+			}
+
+			try {
+				Throwable failure = null;
+				for (Future<?> f : parsed) {
+					try {
+						f.get();
+					} catch (ExecutionException e) {
+						if (failure == null) failure = e.getCause();
+					}
+				}
+
+				// let the accumulators drain their queues and stop
+				for (BlockingQueue<ReadStore> queue : queues)
+					queue.put(END_OF_INPUT);
+
+				for (Future<?> f : accumulated) {
+					try {
+						f.get();
+					} catch (ExecutionException e) {
+						if (failure == null) failure = e.getCause();
+					}
+				}
+
+				if (failure instanceof IOException)
+					throw (IOException)failure;
+				else if (failure != null)
+					throw new RuntimeException(failure);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while parsing " + fileName);
+			}
+
+			// the accumulators only count the upper half of the band
+			readBreadth.mirrorUpperHalf();
+			cooccurCounts.mirrorUpperHalf();
+
+			for (SamParser parser : parsers) {
+				bytesRead += parser.bytesRead;
+				readsParsed += parser.readsParsed;
+				readsProjected += parser.readsProjected;
+				readsUnmapped += parser.readsUnmapped;
+			}
+			readsParsed -= readsSkipped;
+
+			for (PairAccumulator accumulator : accumulators)
+				accumulateNanos += accumulator.busyNanos;
+		} finally {
+			parserPool.shutdownNow();
+			accumulatorPool.shutdownNow();
+			file.close();
+		}
+
+		elapsedNanos = System.nanoTime() - startTime;
+	}
+
+	// pulls batches off the queue until the end of the input; after a failure the queue
+	// is still drained so the parsers never block on it
+	private void accumulate(BlockingQueue<ReadStore> queue, PairAccumulator accumulator) {
+		RuntimeException failure = null;
+		try {
+			while (true) {
+				ReadStore batch = queue.take();
+				if (batch == END_OF_INPUT) break;
+				if (failure != null) continue;
+
+				long startTime = System.nanoTime();
+				try {
+					for (int r = 0; r < batch.size; r++)
+						accumulator.add(batch, r);
+				} catch (RuntimeException e) {
+					failure = e;
+				}
+				long busyNanos = System.nanoTime() - startTime;
+				accumulator.busyNanos += busyNanos;
+				if (busy != null) busy.add(busyNanos);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (failure != null) throw failure;
+	}
+
+	// collects parsed reads (every stride-th, from the offset-th on) into batches and hands each full batch 
+	// to every accumulator
+	private class BatchingSink implements SamParser.ReadSink {
+		private ReadStore batch = newBatch();
+		private final int stride;
+		private int next; // reads to skip until the next one to keep
+		int skipped = 0;
+
+		BatchingSink(int stride, int offset) {
+			this.stride = stride;
+			this.next = offset;
+		}
+
+		public void add(int pos, ByteBuffer buf, int seqStart, int seqLength) {
+			if (skip()) return;
+
+			batch.add(pos, buf, seqStart, seqLength);
+			if (batch.size == BATCH_SIZE) {
+				publish(batch);
+				batch = newBatch();
+			}
+		}
+
+		public void addProjected(int pos, ByteBuffer buf, int seqStart, SamParser.Cigar cigar) {
+			if (skip()) return;
+
+			batch.addProjected(pos, buf, seqStart, cigar);
+			if (batch.size == BATCH_SIZE) {
+				publish(batch);
+				batch = newBatch();
+			}
+		}
+
+		public void addPacked(int pos, byte[] data, int seqStart, int seqLength, SamParser.Cigar cigar) {
+			if (skip()) return;
+
+			batch.addPacked(pos, data, seqStart, seqLength, cigar);
+			if (batch.size == BATCH_SIZE) {
+				publish(batch);
+				batch = newBatch();
+			}
+		}
+
+		void flush() {
+			if (batch.size > 0) publish(batch);
+		}
+
+		// returns: if the read just parsed belongs to another shard
+		private boolean skip() {
+			if (next-- > 0) {
+				skipped++;
+				return true;
+			}
+
+			next = stride - 1;
+			return false;
+		}
+
+		private ReadStore newBatch() {
+			return new ReadStore(BATCH_SIZE, BATCH_SIZE * 8);
+		}
+
+		private void publish(ReadStore reads) {
+			try {
+				for (BlockingQueue<ReadStore> queue : queues)
+					queue.put(reads);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("interrupted while handing off reads", e);
+			}
+		}
+	}
+
+	void printThroughput() {
+		DecimalFormat df = new DecimalFormat("0.00");
+		double seconds = elapsedNanos / 1e9;
+		System.out.println("\tparsed and accumulated " + readsParsed + " reads from " + df.format(bytesRead / 1048576.0) + " MB (" +
+				df.format(bytesRead / 1048576.0 / seconds) + " MB/s, " + df.format(readsParsed / seconds) + " reads/s) on " +
+				numParsers + " parser(s) and " + numAccumulators + " accumulator(s), " +
+				df.format(100.0 * accumulateNanos / numAccumulators / elapsedNanos) + "% accumulator utilization");
+		if (readsProjected > 0)
+			System.out.println("\t" + readsProjected + " reads projected onto the reference through their CIGAR (clips and insertions dropped, deletions marked)");
+		if (readsUnmapped > 0)
+			System.out.println("\tskipped " + readsUnmapped + " unmapped reads");
+	}
+}
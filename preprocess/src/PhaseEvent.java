@@ -0,0 +1,21 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Marks a phase of a run (see RunReport) in a flight recording, e.g. one
+ * taken with java -XX:StartFlightRecording=filename=run.jfr ...; the events
+ * cost next to nothing when nothing is recording.
+ */
+@Name("cooccur.Phase")
+@Label("Preprocessing Phase")
+@Category("CooccurViewer")
+@Description("A phase of preprocessing a dataset")
+class PhaseEvent extends jdk.jfr.Event {
+	@Label("Dataset")
+	String dataset;
+
+	@Label("Phase")
+	String phase;
+}
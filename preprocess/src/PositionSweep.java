@@ -0,0 +1,179 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fills the 4x4 co-occurrence counts and the 2x2 variant counts of every pair
+ * (i, j) within the window, one row i at a time: the reads covering i are
+ * split by their base at i, and each group is then walked for every j.
+ *
+ * Every row only reads the (sorted) reads and the reference and only writes
+ * its own band rows, so rows are counted in parallel on a fork/join pool.
+ * The cost of a row grows with its coverage, so row ranges are split by the
+ * summed coverage (from baseCounts) rather than by the number of rows; the
+ * pool's work stealing evens out whatever imbalance is left.  The counts do
+ * not depend on the number of threads.
+ *
+ * When the rows are checkpointed (see Checkpoint), they are counted in about
+ * CHECKPOINTS ranges of equal coverage, one after the other, and every range
+ * is handed over once all of its rows are counted.
+ */
+class PositionSweep {
+	// split ranges until each holds about 1 / TASKS_PER_THREAD of a thread's share of the coverage
+	static final int TASKS_PER_THREAD = 16;
+	static final int CHECKPOINTS = 64;
+
+	// told about every range of rows once it is counted
+	interface RowsDone {
+		void rowsDone(int lo, int hi);
+	}
+
+	final ReadStore reads;
+	final int[] reference; // the base code at each position, or -1 if unknown
+	final int[][] baseCounts;
+	final BandedIntMatrix cooccurCounts;
+	final BandedIntMatrix variantCounts;
+
+	final int numPos;
+	final int windowSize;
+	final int maxLength; // the longest read; no read starting more than this before i can cover i
+
+	RunReport.Busy busy; // told how long every thread spends counting rows, if not null
+
+	private final long[] cost; // cost[i] = summed coverage of rows [0, i)
+	private long grain;
+
+	PositionSweep(ReadStore reads, int[] reference, int[][] baseCounts, BandedIntMatrix cooccurCounts, BandedIntMatrix variantCounts) {
+		this.reads = reads;
+		this.reference = reference;
+		this.baseCounts = baseCounts;
+		this.cooccurCounts = cooccurCounts;
+		this.variantCounts = variantCounts;
+		this.numPos = cooccurCounts.numPos;
+		this.windowSize = cooccurCounts.windowSize;
+
+		this.maxLength = reads.maxLength();
+
+		// every row costs at least a little, even if nothing covers it
+		cost = new long[numPos + 1];
+		for (int i = 0; i < numPos; i++)
+			cost[i + 1] = cost[i] + 1 + baseCounts[i][0] + baseCounts[i][1] + baseCounts[i][2] + baseCounts[i][3];
+	}
+
+	// counts every row on numThreads threads
+	void run(int numThreads) {
+		run(numThreads, 0, null);
+	}
+
+	// counts the rows [from, numPos) on numThreads threads (those before from are already counted); if done 
+	// isn't null, in ranges of about 1 / CHECKPOINTS of the coverage, each handed to done once counted
+	void run(int numThreads, int from, RowsDone done) {
+		long step = done == null ? cost[numPos] : Math.max(1, cost[numPos] / CHECKPOINTS);
+
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			for (int lo = from; lo < numPos; ) {
+				int hi = Arrays.binarySearch(cost, lo + 1, numPos + 1, cost[lo] + step);
+				if (hi < 0) hi = Math.min(-hi - 1, numPos);
+
+				grain = Math.max(1, (cost[hi] - cost[lo]) / ((long)numThreads * TASKS_PER_THREAD));
+				pool.invoke(new RowRange(lo, hi));
+
+				if (done != null) done.rowsDone(lo, hi);
+				lo = hi;
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	class RowRange extends RecursiveAction {
+		final int lo, hi;
+
+		RowRange(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo > 1 && cost[hi] - cost[lo] > grain) {
+				// split where half of the coverage of the range lies on either side
+				long half = (cost[lo] + cost[hi]) >>> 1;
+				int mid = Arrays.binarySearch(cost, lo + 1, hi, half);
+				if (mid < 0) mid = -mid - 1;
+				mid = Math.min(Math.max(mid, lo + 1), hi - 1);
+
+				invokeAll(new RowRange(lo, mid), new RowRange(mid, hi));
+				return;
+			}
+
+			long startTime = System.nanoTime();
+			countRows(lo, hi);
+			if (busy != null) busy.add(System.nanoTime() - startTime);
+		}
+	}
+
+	// counts the rows [lo, hi)
+	void countRows(int lo, int hi) {
+		CoveringReads covering = new CoveringReads(reads, maxLength, lo);
+		for (int i = lo; i < hi; i++) {
+			covering.moveTo(i);
+			countRow(i, covering);
+		}
+	}
+
+	// counts row i from the reads covering i, grouped by their base at i
+	private void countRow(int i, CoveringReads covering) {
+		int modalRead = reference[i];
+		int[][] categories = covering.categories;
+		int[] categorySize = covering.categorySize;
+
+		// skip if no reads at this location
+		if (covering.total() == 0) return;
+
+		int[] pairs = cooccurCounts.data;
+		int[] variants = variantCounts.data;
+
+		// now go through every other read j that spans around this i
+		for (int j = Math.max(0, i - windowSize); j <= Math.min(numPos - 1, i + windowSize); j++) {
+			// the 4x4 counts don't depend on the reference, but the 2x2 counts need one at both i and j
+			int modalReadJ = reference[j];
+			boolean hasReference = modalRead != -1 && modalReadJ != -1;
+
+			int pairIndex = cooccurCounts.index(i, j);
+
+			// iterate through each i-category, counting reads that span j by the modality of i and j
+			int vari_varj = 0, vari_modalj = 0, modali_varj = 0, modali_modalj = 0;
+			for (int i_base = 0; i_base < 4; i_base++) {
+				boolean modalI = i_base == modalRead;
+				int[] category = categories[i_base];
+
+				for (int k = 0; k < categorySize[i_base]; k++) {
+					int n = category[k];
+
+					// skip those that don't span j
+					if (!reads.overlaps(n, j)) continue;
+
+					int j_base = reads.baseAt(n, j);
+					if (j_base >= ReadStore.BASE_N) continue;
+
+					pairs[pairIndex + (i_base << 2 | j_base)]++;
+					if (j_base == modalReadJ) {
+						if (modalI) modali_modalj++; else vari_modalj++;
+					} else {
+						if (modalI) modali_varj++; else vari_varj++;
+					}
+				}
+			}
+
+			if (!hasReference) continue;
+
+			// add some counts for the 2x2 conjunction matrix
+			int countsIndex = variantCounts.index(i, j);
+			variants[countsIndex] = modali_modalj;
+			variants[countsIndex + 1] = modali_varj;
+			variants[countsIndex + 2] = vari_modalj;
+			variants[countsIndex + 3] = vari_varj;
+		}
+	}
+}
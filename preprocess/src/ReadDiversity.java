@@ -0,0 +1,154 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
+
+/**
+ * A 1D read diversity metric: for every position i, the reads covering i are
+ * split by their base there, and for every j in the window the bases of each
+ * group at j are tested (chi-square goodness of fit) against the bases of all
+ * reads at j.  The metric at i is the fraction of those tests that are
+ * significant, i.e. how often the base at i predicts something about j.
+ *
+ * The statistic is the same as ChiSquareTest.chiSquareTest(expected, observed)
+ * (bases never seen at j are left out, one fewer degree of freedom each), but
+ * computed inline; the p-value is never needed, only whether it falls below
+ * SIGNIFICANCE, so the statistic is compared against the chi-square critical
+ * values, computed once per degree of freedom.  Rows are independent and are
+ * computed in parallel.
+ */
+class ReadDiversity {
+	static final double SIGNIFICANCE = 0.05;
+	static final int ROWS_PER_TASK = 16;
+
+	// CRITICAL_VALUES[df]: the statistic at and above which p <= SIGNIFICANCE (df = 1..3)
+	static final double[] CRITICAL_VALUES = new double[4];
+	static {
+		for (int df = 1; df < CRITICAL_VALUES.length; df++)
+			CRITICAL_VALUES[df] = new ChiSquaredDistribution(df).inverseCumulativeProbability(1.0 - SIGNIFICANCE);
+	}
+
+	final ReadStore reads;
+	final int[][] baseCounts; // the bases of all reads at each position
+	final int numPos;
+	final int windowSize;
+	final int maxLength;
+
+	final double[] diversity; // the metric at each position (0 where nothing covers it)
+
+	RunReport.Busy busy; // told how long every thread spends computing rows, if not null
+
+	ReadDiversity(ReadStore reads, int[][] baseCounts, int numPos, int windowSize) {
+		this.reads = reads;
+		this.baseCounts = baseCounts;
+		this.numPos = numPos;
+		this.windowSize = windowSize;
+		this.maxLength = reads.maxLength();
+		this.diversity = new double[numPos];
+	}
+
+	// computes every position on numThreads threads
+	void run(int numThreads) {
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			pool.invoke(new RowRange(0, numPos));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	class RowRange extends RecursiveAction {
+		final int lo, hi;
+
+		RowRange(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo > ROWS_PER_TASK) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new RowRange(lo, mid), new RowRange(mid, hi));
+				return;
+			}
+
+			long startTime = System.nanoTime();
+			CoveringReads covering = new CoveringReads(reads, maxLength, lo);
+			for (int i = lo; i < hi; i++) {
+				covering.moveTo(i);
+				diversity[i] = getDiversity(i, covering);
+			}
+			if (busy != null) busy.add(System.nanoTime() - startTime);
+		}
+	}
+
+	// returns: the fraction of (j, base at i) groups at position i whose bases at j differ significantly
+	// from those of all reads at j
+	double getDiversity(int i, CoveringReads covering) {
+		if (covering.total() == 0) return 0.0;
+
+		int numSamples = 0, numSignificant = 0;
+		int[] sample = new int[4];
+
+		for (int j = Math.max(0, i - windowSize); j <= Math.min(numPos - 1, i + windowSize); j++) {
+			for (int b = 0; b < 4; b++) {
+				int[] category = covering.categories[b];
+				int size = covering.categorySize[b];
+				if (size == 0) continue;
+
+				sample[0] = sample[1] = sample[2] = sample[3] = 0;
+				int coverage = 0;
+				for (int k = 0; k < size; k++) {
+					int n = category[k];
+					if (!reads.overlaps(n, j)) continue;
+
+					int jBase = reads.baseAt(n, j);
+					if (jBase >= ReadStore.BASE_N) continue;
+
+					sample[jBase]++;
+					coverage++;
+				}
+
+				// if there is no overlap between the reads at i and j, continue
+				if (coverage == 0) continue;
+
+				numSamples++;
+				if (isSignificant(baseCounts[j], sample))
+					numSignificant++;
+			}
+		}
+
+		return numSamples == 0 ? 0.0 : numSignificant / (double)numSamples;
+	}
+
+	// returns: if the observed counts differ significantly from the distribution of the expected counts
+	static boolean isSignificant(int[] expected, int[] observed) {
+		// bases never seen at all are dropped (they can't be observed either)
+		double sumExpected = 0.0, sumObserved = 0.0;
+		int numCategories = 0;
+		for (int b = 0; b < 4; b++) {
+			if (expected[b] == 0) continue;
+
+			sumExpected += expected[b];
+			sumObserved += observed[b];
+			numCategories++;
+		}
+
+		// if only one base is ever seen at this position, a chi-square test doesn't make sense
+		if (numCategories < 2) return false;
+
+		// scale the expected counts to the number of observations (as ChiSquareTest does)
+		double ratio = Math.abs(sumExpected - sumObserved) > 10E-6 ? sumObserved / sumExpected : 1.0;
+
+		double statistic = 0.0;
+		for (int b = 0; b < 4; b++) {
+			if (expected[b] == 0) continue;
+
+			double e = ratio * expected[b];
+			double dev = observed[b] - e;
+			statistic += dev * dev / e;
+		}
+
+		return statistic >= CRITICAL_VALUES[numCategories - 1];
+	}
+}
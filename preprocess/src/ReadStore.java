@@ -0,0 +1,353 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A struct-of-arrays store of aligned reads.  The start position and length
+ * of every read are kept in int arrays, and the bases are packed 2 bits each
+ * (A = 0, T = 1, C = 2, G = 3; the same order as bpToIndex()) into long words,
+ * 32 bases to a word.  Anything that isn't one of the four bases is flagged
+ * in a side mask (1 bit per base); under the mask, the 2 bits tell an N
+ * (BASE_N) from a deleted position (BASE_DELETION).  Neither is a base, so
+ * counters skip both with a single code >= BASE_N test.
+ *
+ * Every read starts on a fresh word, so reads can be copied between stores
+ * word by word (and in parallel) without any bit shifting.
+ */
+class ReadStore implements SamParser.ReadSink {
+	static final int BASE_N = 4;        // code for an N (or any other ambiguous) base
+	static final int BASE_DELETION = 5; // code for a reference position deleted from the read ('-')
+
+	// the code of every input byte; anything unrecognized is an N
+	static final byte[] CODES = new byte[256];
+	static {
+		Arrays.fill(CODES, (byte)BASE_N);
+		CODES['A'] = CODES['a'] = 0;
+		CODES['T'] = CODES['t'] = 1;
+		CODES['C'] = CODES['c'] = 2;
+		CODES['G'] = CODES['g'] = 3;
+		CODES['-'] = BASE_DELETION;
+	}
+
+	// the code of every 4-bit base of a BAM SEQ ("=ACMGRSVTWYHKDBN"); anything but A, C, G, T is an N
+	static final byte[] NIBBLE_CODES = new byte[16];
+	static {
+		Arrays.fill(NIBBLE_CODES, (byte)BASE_N);
+		NIBBLE_CODES[1] = 0;
+		NIBBLE_CODES[8] = 1;
+		NIBBLE_CODES[2] = 2;
+		NIBBLE_CODES[4] = 3;
+	}
+
+	int size = 0;
+	int[] startPos;   // 0-based position of the first base of every read
+	int[] length;     // number of bases of every read
+	int[] wordOffset; // index into words/nMask of the first base of every read
+
+	long[] words;     // 2-bit packed bases
+	int[] nMask;      // bit set for every base that is an N (parallel to words)
+	int numWords = 0;
+
+	ReadStore() {
+		this(1024, 1024 * 8);
+	}
+
+	ReadStore(int readCapacity, int wordCapacity) {
+		readCapacity = Math.max(1, readCapacity);
+		wordCapacity = Math.max(1, wordCapacity);
+
+		startPos = new int[readCapacity];
+		length = new int[readCapacity];
+		wordOffset = new int[readCapacity];
+		words = new long[wordCapacity];
+		nMask = new int[wordCapacity];
+	}
+
+	// returns: the number of words needed for a read of the given length
+	static int wordsFor(int length) {
+		return (length + 31) >>> 5;
+	}
+
+	// adds the read at SAM position pos (1-based) whose sequence is the given bytes
+	public void add(int pos, ByteBuffer buf, int from, int seqLength) {
+		if (pos <= 0) {
+			System.err.println("got 0 for 1-based start index: " + pos);
+			pos = 1;
+		}
+
+		// convert 1-based SAM POS to 0-based
+		int r = reserveRead(pos - 1, seqLength);
+
+		int w = wordOffset[r];
+		for (int k = 0; k < seqLength; k += 32, w++) {
+			int end = Math.min(32, seqLength - k);
+			long word = 0;
+			int mask = 0;
+			for (int b = 0; b < end; b++) {
+				int code = CODES[buf.get(from + k + b) & 0xff];
+				if (code >= BASE_N) {
+					mask |= 1 << b;
+					code -= BASE_N;
+				}
+				word |= (long)code << (b << 1);
+			}
+
+			words[w] = word;
+			nMask[w] = mask;
+		}
+	}
+
+	// adds the read at SAM position pos (1-based) whose SEQ starts at seqStart, laid out on the reference
+	// by its CIGAR: soft-clipped and inserted bases are left out, deleted positions are BASE_DELETION
+	public void addProjected(int pos, ByteBuffer buf, int seqStart, SamParser.Cigar cigar) {
+		if (pos <= 0) {
+			System.err.println("got 0 for 1-based start index: " + pos);
+			pos = 1;
+		}
+
+		int r = reserveRead(pos - 1, cigar.refLength);
+
+		int w = wordOffset[r], b = 0, q = seqStart;
+		long word = 0;
+		int mask = 0;
+		for (int op = 0; op < cigar.numOps; op++) {
+			byte type = cigar.ops[op];
+			boolean aligned = type == 'M' || type == '=' || type == 'X';
+			if (!aligned && type != 'D' && type != 'N') {
+				// soft clips and insertions aren't on the reference (hard clips and padding aren't in SEQ)
+				if (type == 'I' || type == 'S') q += cigar.lengths[op];
+				continue;
+			}
+
+			// fill the current word as far as the operation goes, then move on to the next word
+			for (int n = cigar.lengths[op]; n > 0; ) {
+				int take = Math.min(n, 32 - b);
+				int end = b + take;
+				if (aligned) {
+					for (; b < end; b++) {
+						int code = CODES[buf.get(q++) & 0xff];
+						if (code >= BASE_N) {
+							mask |= 1 << b;
+							code -= BASE_N;
+						}
+						word |= (long)code << (b << 1);
+					}
+				} else {
+					for (; b < end; b++) {
+						mask |= 1 << b;
+						word |= (long)(BASE_DELETION - BASE_N) << (b << 1);
+					}
+				}
+
+				n -= take;
+				if (b == 32) {
+					words[w] = word;
+					nMask[w++] = mask;
+					word = 0;
+					mask = 0;
+					b = 0;
+				}
+			}
+		}
+
+		if (b > 0) {
+			words[w] = word;
+			nMask[w] = mask;
+		}
+	}
+
+	// adds the read at SAM position pos (1-based) whose SEQ is packed 4 bits to a base (high nibble first, as in
+	// BAM) from data[seqStart]; laid out on the reference by the CIGAR as in addProjected, unless it is null
+	public void addPacked(int pos, byte[] data, int seqStart, int seqLength, SamParser.Cigar cigar) {
+		if (pos <= 0) {
+			System.err.println("got 0 for 1-based start index: " + pos);
+			pos = 1;
+		}
+
+		int numOps = cigar == null ? 1 : cigar.numOps;
+		int r = reserveRead(pos - 1, cigar == null ? seqLength : cigar.refLength);
+
+		int w = wordOffset[r], b = 0, q = 0;
+		long word = 0;
+		int mask = 0;
+		for (int op = 0; op < numOps; op++) {
+			byte type = cigar == null ? (byte)'M' : cigar.ops[op];
+			int length = cigar == null ? seqLength : cigar.lengths[op];
+			boolean aligned = type == 'M' || type == '=' || type == 'X';
+			if (!aligned && type != 'D' && type != 'N') {
+				if (type == 'I' || type == 'S') q += length;
+				continue;
+			}
+
+			for (int n = length; n > 0; ) {
+				int take = Math.min(n, 32 - b);
+				int end = b + take;
+				if (aligned) {
+					for (; b < end; b++, q++) {
+						int code = NIBBLE_CODES[data[seqStart + (q >>> 1)] >>> ((~q & 1) << 2) & 0xf];
+						if (code >= BASE_N) {
+							mask |= 1 << b;
+							code -= BASE_N;
+						}
+						word |= (long)code << (b << 1);
+					}
+				} else {
+					for (; b < end; b++) {
+						mask |= 1 << b;
+						word |= (long)(BASE_DELETION - BASE_N) << (b << 1);
+					}
+				}
+
+				n -= take;
+				if (b == 32) {
+					words[w] = word;
+					nMask[w++] = mask;
+					word = 0;
+					mask = 0;
+					b = 0;
+				}
+			}
+		}
+
+		if (b > 0) {
+			words[w] = word;
+			nMask[w] = mask;
+		}
+	}
+
+	// adds a read given as a String of bases (e.g. "ATCGN"); see add() above
+	void add(int pos, String seq) {
+		byte[] bytes = new byte[seq.length()];
+		for (int n = 0; n < bytes.length; n++)
+			bytes[n] = (byte)seq.charAt(n);
+
+		add(pos, ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+
+	// appends a read of seqLength bases at the given 0-based position without filling in its bases
+	// returns: the index of the read
+	int reserveRead(int start, int seqLength) {
+		ensureReadCapacity(size + 1);
+		ensureWordCapacity((long)numWords + wordsFor(seqLength));
+
+		int r = size++;
+		startPos[r] = start;
+		length[r] = seqLength;
+		wordOffset[r] = numWords;
+		numWords += wordsFor(seqLength);
+		return r;
+	}
+
+	private void ensureReadCapacity(int capacity) {
+		if (capacity <= startPos.length) return;
+
+		int newCapacity = Math.max(capacity, startPos.length + (startPos.length >> 1));
+		startPos = Arrays.copyOf(startPos, newCapacity);
+		length = Arrays.copyOf(length, newCapacity);
+		wordOffset = Arrays.copyOf(wordOffset, newCapacity);
+	}
+
+	private void ensureWordCapacity(long capacity) {
+		if (capacity <= words.length) return;
+		if (capacity > Integer.MAX_VALUE - 8)
+			throw new IllegalStateException("too many bases to store in one ReadStore");
+
+		int newCapacity = (int)Math.min(Integer.MAX_VALUE - 8, Math.max(capacity, words.length + (long)(words.length >> 1)));
+		words = Arrays.copyOf(words, newCapacity);
+		nMask = Arrays.copyOf(nMask, newCapacity);
+	}
+
+	// returns: the position of the last base of read r
+	int lastPos(int r) {
+		return startPos[r] + length[r] - 1;
+	}
+
+	// returns: if read r covers the given absolute position
+	boolean overlaps(int r, int absPos) {
+		return startPos[r] <= absPos && absPos < startPos[r] + length[r];
+	}
+
+	// returns: the code (0-3, BASE_N or BASE_DELETION) of read r at the given absolute position; assumes overlaps(r, absPos)
+	int baseAt(int r, int absPos) {
+		int k = absPos - startPos[r];
+		int w = wordOffset[r] + (k >>> 5);
+		int bit = k & 31;
+
+		int code = (int)(words[w] >>> (bit << 1)) & 3;
+		return (nMask[w] >>> bit & 1) != 0 ? BASE_N + code : code;
+	}
+
+	// unpacks the codes of read r into out[0, length); returns: out (grown if needed)
+	int[] getCodes(int r, int[] out) {
+		int len = length[r];
+		if (out.length < len)
+			out = new int[Math.max(len, 2 * out.length)];
+
+		int w = wordOffset[r];
+		for (int k = 0; k < len; k += 32, w++) {
+			long word = words[w];
+			int mask = nMask[w];
+			int end = Math.min(32, len - k);
+			for (int b = 0; b < end; b++) {
+				int code = (int)(word >>> (b << 1)) & 3;
+				out[k + b] = (mask >>> b & 1) != 0 ? BASE_N + code : code;
+			}
+		}
+
+		return out;
+	}
+
+	// returns: the length of the longest read
+	int maxLength() {
+		int longest = 0;
+		for (int r = 0; r < size; r++)
+			longest = Math.max(longest, length[r]);
+
+		return longest;
+	}
+
+	// returns: one past the last position covered by any read
+	int endPos() {
+		int end = 0;
+		for (int r = 0; r < size; r++)
+			end = Math.max(end, startPos[r] + length[r]);
+
+		return end;
+	}
+
+	// returns: the index of the first read with a start position of at least pos; assumes isSorted()
+	int firstReadStartingAt(int pos) {
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (startPos[mid] < pos)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		return lo;
+	}
+
+	// returns: if the reads are ordered by start position
+	boolean isSorted() {
+		for (int r = 1; r < size; r++) {
+			if (startPos[r] < startPos[r - 1]) return false;
+		}
+
+		return true;
+	}
+
+	// copies the bases of read r of the other store into read into of this one (word for word); 
+	// read into must have been reserved with the same length
+	void copyBases(ReadStore other, int r, int into) {
+		int numReadWords = wordsFor(other.length[r]);
+		System.arraycopy(other.words, other.wordOffset[r], words, wordOffset[into], numReadWords);
+		System.arraycopy(other.nMask, other.wordOffset[r], nMask, wordOffset[into], numReadWords);
+	}
+
+	// returns: the index (0-3) of the given base, or -1 if it isn't one of A, T, C, G
+	static int bpToIndex(char bp) {
+		int code = bp < 256 ? CODES[bp] : BASE_N;
+		return code >= BASE_N ? -1 : code;
+	}
+}
@@ -0,0 +1,263 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What one run (of CoOccurLibrary.setup) did and what it cost, phase by
+ * phase, written as run-report.json next to its .dat files so the cost of
+ * preprocessing a dataset can be followed from one run to the next.
+ *
+ * Every phase is timed and marked by a PhaseEvent in a flight recording (if
+ * one is taken), and so is every output file (FileWriteEvent).  Whatever runs
+ * a phase on other threads adds the time each of them spends working to the
+ * Busy of the phase; the counters add up over the whole run.  The heap
+ * high-water mark (the peaks of the heap pools, added up) is that of the
+ * whole process, since the first report was started: the peaks are reset only
+ * once, so contigs processed at once (--contigs) all report the same one.  The
+ * GC time is that of the JVM since the report was started, so they share it.
+ */
+class RunReport {
+	static final String FILE_NAME = "run-report.json";
+
+	// the time every thread spends working on something
+	static class Busy {
+		private final ConcurrentMap<String, AtomicLong> nanos = new ConcurrentHashMap<String, AtomicLong>();
+
+		// adds busyNanos to the time of the calling thread
+		void add(long busyNanos) {
+			String thread = Thread.currentThread().getName();
+			AtomicLong total = nanos.get(thread);
+			if (total == null) {
+				nanos.putIfAbsent(thread, new AtomicLong());
+				total = nanos.get(thread);
+			}
+
+			total.addAndGet(busyNanos);
+		}
+	}
+
+	class Phase {
+		final String name;
+		final Busy busy = new Busy();
+		private final boolean printed;
+		private final boolean waiting; // the thread that runs it only waits for others
+		private final long startTime = System.nanoTime();
+		private final PhaseEvent event = new PhaseEvent();
+		long nanos = -1;     // until it ends
+		long heapUsed = -1;  // when it ended
+
+		Phase(String name, boolean printed, boolean waiting) {
+			this.name = name;
+			this.printed = printed;
+			this.waiting = waiting;
+
+			event.dataset = dataset;
+			event.phase = name;
+			event.begin();
+		}
+
+		// ends the phase, printing how long it took if it printed what it is
+		void end() {
+			nanos = System.nanoTime() - startTime;
+			event.commit();
+
+			// nothing ran it on other threads, so the thread that ran it was busy all along
+			if (busy.nanos.isEmpty() && !waiting)
+				busy.add(nanos);
+
+			heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			if (printed)
+				System.out.println(new DecimalFormat("0.00").format(nanos / 1e9) + " seconds");
+		}
+	}
+
+	// the writing of one output file
+	class FileWrite {
+		final String fileName;
+		private final long startTime = System.nanoTime();
+		private final FileWriteEvent event = new FileWriteEvent();
+		long nanos, bytes, cells;
+
+		FileWrite(String fileName) {
+			this.fileName = fileName;
+			event.file = fileName;
+			event.begin();
+		}
+
+		// ends the write of the file (out is closed)
+		void end(DatWriter out) {
+			nanos = System.nanoTime() - startTime;
+			bytes = out.bytesWritten;
+			cells = out.cells;
+
+			event.bytes = bytes;
+			event.cells = cells;
+			event.commit();
+
+			bytesWritten.addAndGet(bytes);
+			cellsWritten.addAndGet(cells);
+			files.add(this);
+		}
+	}
+
+	final String dataset;
+	private final long startMillis = System.currentTimeMillis();
+	private final long startTime = System.nanoTime();
+	private final long gcStartMillis, gcStartCount;
+
+	private final List<Phase> phases = new ArrayList<Phase>();
+	private final List<FileWrite> files = Collections.synchronizedList(new ArrayList<FileWrite>());
+
+	final AtomicLong readsParsed = new AtomicLong();
+	final AtomicLong bytesRead = new AtomicLong();
+	final AtomicLong pairsEvaluated = new AtomicLong();
+	final AtomicLong cellsWritten = new AtomicLong();
+	final AtomicLong bytesWritten = new AtomicLong();
+
+	// (once per process; a report started later mustn't erase the peaks of those still running)
+	static {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid())
+				pool.resetPeakUsage();
+		}
+	}
+
+	RunReport(String dataset) {
+		this.dataset = dataset;
+
+		long gcMillis = 0, gcCount = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcMillis += Math.max(0, gc.getCollectionTime());
+			gcCount += Math.max(0, gc.getCollectionCount());
+		}
+		gcStartMillis = gcMillis;
+		gcStartCount = gcCount;
+	}
+
+	// starts timing a phase (on the thread that runs the run)
+	Phase begin(String name) {
+		Phase phase = new Phase(name, false, false);
+		phases.add(phase);
+		return phase;
+	}
+
+	// the same, printing "<what> took ... " first (and the seconds once it ends)
+	Phase begin(String name, String what) {
+		System.out.print(what + " took ... ");
+		Phase phase = new Phase(name, true, false);
+		phases.add(phase);
+		return phase;
+	}
+
+	// the same, for a phase in which the thread that runs the run only waits for other threads
+	Phase beginWaiting(String name, String what) {
+		System.out.print(what + " took ... ");
+		Phase phase = new Phase(name, true, true);
+		phases.add(phase);
+		return phase;
+	}
+
+	// starts timing the write of a file (on the thread that writes it)
+	FileWrite beginFile(String fileName) {
+		return new FileWrite(fileName);
+	}
+
+	// writes the report of the phases ended so far (with the positions and window of the run) to fileName
+	void write(String fileName, int numThreads, int numPos, int windowSize) {
+		long nanos = System.nanoTime() - startTime;
+
+		long heapPeak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid() && pool.getPeakUsage() != null)
+				heapPeak += pool.getPeakUsage().getUsed();
+		}
+
+		long gcMillis = 0, gcCount = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcMillis += Math.max(0, gc.getCollectionTime());
+			gcCount += Math.max(0, gc.getCollectionCount());
+		}
+
+		SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+		iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		System.out.println("writing to " + fileName + " ...");
+		try {
+			PrintWriter writer = new PrintWriter(fileName);
+			writer.println("{");
+			writer.println("  \"dataset\": " + CoOccurLibrary.toJson(dataset) + ",");
+			writer.println("  \"started\": " + CoOccurLibrary.toJson(iso.format(new Date(startMillis))) + ",");
+			writer.println("  \"seconds\": " + seconds(nanos) + ",");
+			writer.println("  \"threads\": " + numThreads + ",");
+			writer.println("  \"numPos\": " + numPos + ",");
+			writer.println("  \"windowSize\": " + windowSize + ",");
+			writer.println("  \"readsParsed\": " + readsParsed + ",");
+			writer.println("  \"bytesRead\": " + bytesRead + ",");
+			writer.println("  \"pairsEvaluated\": " + pairsEvaluated + ",");
+			writer.println("  \"cellsWritten\": " + cellsWritten + ",");
+			writer.println("  \"bytesWritten\": " + bytesWritten + ",");
+			writer.println("  \"heapPeakBytes\": " + heapPeak + ",");
+			writer.println("  \"heapMaxBytes\": " + Runtime.getRuntime().maxMemory() + ",");
+			writer.println("  \"gcSeconds\": " + seconds((gcMillis - gcStartMillis) * 1000000L) + ",");
+			writer.println("  \"gcCount\": " + (gcCount - gcStartCount) + ",");
+
+			writer.println("  \"phases\": [");
+			List<Phase> ended = new ArrayList<Phase>();
+			for (Phase phase : phases) {
+				if (phase.nanos >= 0) ended.add(phase);
+			}
+			for (int p = 0; p < ended.size(); p++) {
+				Phase phase = ended.get(p);
+
+				// by thread name, so the threads of a pool come out in order
+				Map<String, AtomicLong> busy = new TreeMap<String, AtomicLong>(phase.busy.nanos);
+				StringBuilder threads = new StringBuilder();
+				for (Map.Entry<String, AtomicLong> thread : busy.entrySet()) {
+					if (threads.length() > 0) threads.append(", ");
+					threads.append(CoOccurLibrary.toJson(thread.getKey()) + ": " + seconds(thread.getValue().get()));
+				}
+
+				writer.println("    { \"name\": " + CoOccurLibrary.toJson(phase.name) + ", \"seconds\": " + seconds(phase.nanos) +
+						", \"heapUsedBytes\": " + phase.heapUsed + ", \"busySeconds\": {" + threads + "} }" + (p < ended.size() - 1 ? "," : ""));
+			}
+			writer.println("  ],");
+
+			writer.println("  \"files\": [");
+			synchronized (files) {
+				for (int f = 0; f < files.size(); f++) {
+					FileWrite file = files.get(f);
+					writer.println("    { \"name\": " + CoOccurLibrary.toJson(new File(file.fileName).getName()) + ", \"seconds\": " + seconds(file.nanos) +
+							", \"bytes\": " + file.bytes + ", \"cells\": " + file.cells + " }" + (f < files.size() - 1 ? "," : ""));
+				}
+			}
+			writer.println("  ]");
+			writer.println("}");
+
+			writer.flush();
+			writer.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e9);
+	}
+}
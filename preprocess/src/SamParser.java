@@ -0,0 +1,975 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Parses the alignment lines of a SAM file straight from a memory-mapped view
+ * of the file.  Fields are located by byte offset (no String.split()), POS is
+ * parsed in place, and the SEQ bytes are packed straight into a ReadStore;
+ * nothing is allocated per line.
+ *
+ * Every read is projected onto the reference by its CIGAR (decoded in place):
+ * soft-clipped and inserted bases are dropped, and deleted (or skipped)
+ * reference positions become ReadStore.BASE_DELETION.  Reads aligned without
+ * indels or clips (a single M, or no CIGAR) are passed on as is; the others
+ * are packed straight from the file by their CIGAR (see addProjected).
+ *
+ * With more than one thread, the file is split into newline-aligned byte
+ * ranges that are parsed into their own stores, and the reads are merged by
+ * start position (in parallel) into one store.
+ *
+ * A parser can be limited to one contig (reference sequence) of the file: it
+ * then only reads the byte range where that contig's lines lie and skips the
+ * lines of any other RNAME (see findContigs).
+ *
+ * Gzipped SAM and BAM files (recognized by their first bytes) can't be split
+ * into ranges; they are read from start to end as a stream instead: gzipped
+ * SAM is inflated on a thread of its own while the lines are parsed, and BAM
+ * is read by a BamReader.
+ */
+class SamParser {
+	// how much of the file to map at once; lines that straddle the end of a window
+	// are re-read from the start of the next window
+	static final int MAP_WINDOW = 1 << 28;
+
+	// don't bother splitting the file into ranges smaller than this
+	static final int MIN_CHUNK_BYTES = 1 << 20;
+
+	// below this many reads, merge sequentially
+	static final int MIN_PARALLEL_MERGE = 1 << 14;
+
+	// the formats of input file
+	static final int FORMAT_SAM = 0;
+	static final int FORMAT_GZIPPED_SAM = 1;
+	static final int FORMAT_BAM = 2;
+
+	// how much of a gzipped SAM file to inflate at once, and how many inflated chunks may wait to be parsed
+	static final int GZIP_CHUNK_BYTES = 1 << 22;
+	static final int GZIP_QUEUE_CHUNKS = 4;
+
+	// marks the end of a gzipped file on the queue of inflated chunks
+	private static final byte[] END_OF_CHUNKS = new byte[0];
+
+	final String fileName;
+	final int format;        // FORMAT_SAM, FORMAT_GZIPPED_SAM or FORMAT_BAM
+	final Contig contig;     // the only contig to parse, or null for every line
+	final int contigIndex;   // its RNAME index, or -1
+
+	long bytesRead = 0;
+	int readsParsed = 0;
+	int readsProjected = 0; // reads laid out on the reference through their CIGAR
+	int readsUnmapped = 0;  // BAM records without a reference sequence or position, skipped
+	long parseNanos = 0;
+	RunReport.Busy busy; // told how long every thread parsing a range of the file works, if not null
+
+	// the last RNAME seen (and its index), so a String is only made when the name changes
+	private byte[] lastName = new byte[256];
+	private int lastNameLength = -1;
+	private int lastNameIndex = -1;
+
+	// the CIGAR of the current line
+	private final Cigar cigar = new Cigar();
+
+	// while finding contigs: where the current mapping window starts, and every contig seen so far by RNAME index
+	private long windowStart;
+	Map<Integer, Contig> contigsSeen;
+
+	SamParser(String fileName) {
+		this(fileName, null);
+	}
+
+	SamParser(String fileName, Contig contig) {
+		this.fileName = fileName;
+		this.format = detectFormat(fileName);
+		this.contig = contig;
+		this.contigIndex = contig == null ? -1 : CoOccurLibrary.getHashIndex(contig.name);
+	}
+
+	// a reference sequence of the file, as found by findContigs
+	static class Contig {
+		final String name;
+		long from = Long.MAX_VALUE, to = 0; // the byte range holding every one of its alignment lines
+		int numReads = 0;
+		int endPos = 0;                     // one past the last (0-based) position covered by its reads
+
+		Contig(String name) {
+			this.name = name;
+		}
+
+		void merge(Contig other) {
+			from = Math.min(from, other.from);
+			to = Math.max(to, other.to);
+			numReads += other.numReads;
+			endPos = Math.max(endPos, other.endPos);
+		}
+	}
+
+	// receives each read as soon as it is parsed: its 1-based POS and the bytes of its SEQ
+	interface ReadSink {
+		void add(int pos, ByteBuffer buf, int seqStart, int seqLength);
+
+		// the same, for a read to be laid out on the reference by its (decoded) CIGAR first
+		void addProjected(int pos, ByteBuffer buf, int seqStart, Cigar cigar);
+
+		// the same, for a SEQ packed 4 bits to a base (as in BAM), laid out by the CIGAR unless it is null
+		void addPacked(int pos, byte[] data, int seqStart, int seqLength, Cigar cigar);
+	}
+
+	// returns: the format of the given file, from its first bytes (gzip's magic number, then BAM's once inflated)
+	static int detectFormat(String fileName) {
+		try {
+			InputStream in = new FileInputStream(fileName);
+			try {
+				if (in.read() != 0x1f || in.read() != 0x8b)
+					return FORMAT_SAM;
+			} finally {
+				in.close();
+			}
+
+			DataInputStream inflated = new DataInputStream(new GZIPInputStream(new FileInputStream(fileName)));
+			try {
+				byte[] magic = new byte[4];
+				inflated.readFully(magic);
+				return magic[0] == 'B' && magic[1] == 'A' && magic[2] == 'M' && magic[3] == 1 ? FORMAT_BAM : FORMAT_GZIPPED_SAM;
+			} catch (EOFException e) {
+				return FORMAT_GZIPPED_SAM;
+			} finally {
+				inflated.close();
+			}
+		} catch (IOException e) {
+			// (opening the file to parse it reports the problem)
+			return FORMAT_SAM;
+		}
+	}
+
+	// a CIGAR decoded into its operations (op bytes and lengths); reused from line to line
+	static class Cigar {
+		byte[] ops = new byte[64];
+		int[] lengths = new int[64];
+		int numOps = 0;
+		int refLength = 0; // the number of reference positions covered
+
+		void clear() {
+			numOps = 0;
+		}
+
+		void add(byte op, int length) {
+			if (numOps == ops.length) {
+				ops = Arrays.copyOf(ops, 2 * numOps);
+				lengths = Arrays.copyOf(lengths, 2 * numOps);
+			}
+
+			ops[numOps] = op;
+			lengths[numOps] = length;
+			numOps++;
+		}
+
+		// decodes the CIGAR at [start, end) of buf
+		// returns: false if it is malformed (numOps is 0 for '*' or a missing CIGAR)
+		boolean decode(ByteBuffer buf, int start, int end) {
+			numOps = 0;
+			if (start == -1 || end <= start || (end - start == 1 && buf.get(start) == '*'))
+				return true;
+
+			int n = 0;
+			boolean haveDigits = false;
+			for (int p = start; p < end; p++) {
+				byte b = buf.get(p);
+				if (b >= '0' && b <= '9') {
+					n = n * 10 + (b - '0');
+					haveDigits = true;
+					continue;
+				}
+
+				if (!haveDigits) return false;
+
+				add(b, n);
+				n = 0;
+				haveDigits = false;
+			}
+
+			return !haveDigits;
+		}
+
+		// returns: if the read has to be projected, i.e. it isn't a single M covering all seqLength bases
+		boolean needsProjection(int seqLength) {
+			return numOps > 0 && !(numOps == 1 && ops[0] == 'M' && lengths[0] == seqLength);
+		}
+
+		// sets refLength
+		// returns: false if the CIGAR doesn't consume exactly seqLength bases of SEQ (or has an unknown operation)
+		boolean project(int seqLength) {
+			int queryLength = 0;
+			refLength = 0;
+			for (int op = 0; op < numOps; op++) {
+				switch (ops[op]) {
+				case 'M': case '=': case 'X':
+					refLength += lengths[op];
+					queryLength += lengths[op];
+					break;
+				case 'I': case 'S':
+					queryLength += lengths[op];
+					break;
+				case 'D': case 'N':
+					refLength += lengths[op];
+					break;
+				case 'H': case 'P':
+					break;
+				default:
+					return false;
+				}
+			}
+
+			return queryLength == seqLength;
+		}
+	}
+
+	// returns: where the lines to parse start and end in the file
+	long rangeStart() {
+		return contig == null ? 0 : contig.from;
+	}
+
+	long rangeEnd(RandomAccessFile file) throws IOException {
+		return contig == null ? file.length() : Math.min(contig.to, file.length());
+	}
+
+	// parses every alignment line of the file into reads
+	void parse(ReadStore reads) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			parse(file.getChannel(), rangeStart(), rangeEnd(file), reads);
+		} finally {
+			file.close();
+		}
+	}
+
+	// parses every alignment line of the file on up to numThreads threads
+	// returns: the reads ordered by their start position (reads with the same start keep file order)
+	ReadStore parse(int numThreads) throws IOException {
+		if (format != FORMAT_SAM) {
+			ReadStore reads = new ReadStore();
+			parseStream(reads, numThreads);
+
+			ForkJoinPool pool = new ForkJoinPool(numThreads);
+			try {
+				return sortByStart(new ReadStore[] { reads }, pool);
+			} finally {
+				pool.shutdown();
+			}
+		}
+
+		long startTime = System.nanoTime();
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+
+		try {
+			final FileChannel channel = file.getChannel();
+			final long[] bounds = getChunkBounds(channel, rangeStart(), rangeEnd(file), numThreads);
+			int numChunks = bounds.length - 1;
+
+			// each range gets its own parser (and RNAME cache) and its own store
+			final SamParser[] parsers = new SamParser[numChunks];
+			final ReadStore[] chunks = new ReadStore[numChunks];
+			List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+			for (int n = 0; n < numChunks; n++) {
+				final int chunk = n;
+				parsers[n] = new SamParser(fileName, contig);
+				chunks[n] = new ReadStore();
+				tasks.add(pool.submit(new RecursiveAction() {
+					protected void compute() {
+						long startTime = System.nanoTime();
+						try {
+							parsers[chunk].parse(channel, bounds[chunk], bounds[chunk + 1], chunks[chunk]);
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+						if (busy != null) busy.add(System.nanoTime() - startTime);
+					}
+				}));
+			}
+
+			for (int n = 0; n < numChunks; n++) {
+				try {
+					tasks.get(n).join();
+				} catch (RuntimeException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException)e.getCause();
+					throw e;
+				}
+
+				bytesRead += parsers[n].bytesRead;
+				readsParsed += parsers[n].readsParsed;
+				readsProjected += parsers[n].readsProjected;
+				readsUnmapped += parsers[n].readsUnmapped;
+			}
+
+			return sortByStart(chunks, pool);
+		} finally {
+			pool.shutdown();
+			file.close();
+			parseNanos += System.nanoTime() - startTime;
+		}
+	}
+
+	// returns: the reads of every chunk (in chunk order) ordered by their start position, merged (in parallel) 
+	// into one store; reads with the same start keep their order
+	static ReadStore sortByStart(final ReadStore[] chunks, ForkJoinPool pool) {
+		int numChunks = chunks.length;
+
+		// where each chunk's reads start in file order
+		final int[] firstRead = new int[numChunks + 1];
+		int numWords = 0;
+		for (int n = 0; n < numChunks; n++) {
+			firstRead[n + 1] = firstRead[n] + chunks[n].size;
+			numWords += chunks[n].numWords;
+		}
+
+		// a coordinate-sorted file parsed as one range needs no reordering at all
+		if (numChunks == 1 && chunks[0].isSorted())
+			return chunks[0];
+
+		// sort keys: the start position above the index of the read in file order
+		final long[][] keys = new long[numChunks][];
+		List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+		for (int n = 0; n < numChunks; n++) {
+			final int chunk = n;
+			tasks.add(pool.submit(new RecursiveAction() {
+				protected void compute() {
+					ReadStore reads = chunks[chunk];
+					long[] chunkKeys = new long[reads.size];
+					for (int r = 0; r < reads.size; r++)
+						chunkKeys[r] = (long)reads.startPos[r] << 32 | (firstRead[chunk] + r);
+
+					// usually already sorted (coordinate-sorted SAM)
+					if (!reads.isSorted())
+						Arrays.sort(chunkKeys);
+					keys[chunk] = chunkKeys;
+				}
+			}));
+		}
+		for (ForkJoinTask<?> task : tasks)
+			task.join();
+
+		final long[] order = pool.invoke(new MergeChunks(keys, 0, numChunks));
+
+		// lay out the merged store sequentially, then copy the bases over in parallel
+		final ReadStore reads = new ReadStore(order.length, numWords);
+		for (int r = 0; r < order.length; r++) {
+			int read = (int)order[r];
+			int chunk = chunkOf(firstRead, read);
+			reads.reserveRead((int)(order[r] >>> 32), chunks[chunk].length[read - firstRead[chunk]]);
+		}
+
+		pool.invoke(new CopyBases(chunks, firstRead, order, reads, 0, order.length));
+		return reads;
+	}
+
+	// returns: the chunk holding the read with the given index in file order
+	private static int chunkOf(int[] firstRead, int read) {
+		int lo = 0, hi = firstRead.length - 2;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (firstRead[mid] <= read)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+
+		return lo;
+	}
+
+	// copies the bases of the reads at [lo, hi) of the merged order into the merged store
+	static class CopyBases extends RecursiveAction {
+		final ReadStore[] chunks;
+		final int[] firstRead;
+		final long[] order;
+		final ReadStore into;
+		final int lo, hi;
+
+		CopyBases(ReadStore[] chunks, int[] firstRead, long[] order, ReadStore into, int lo, int hi) {
+			this.chunks = chunks;
+			this.firstRead = firstRead;
+			this.order = order;
+			this.into = into;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo > MIN_PARALLEL_MERGE) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new CopyBases(chunks, firstRead, order, into, lo, mid),
+						new CopyBases(chunks, firstRead, order, into, mid, hi));
+				return;
+			}
+
+			for (int r = lo; r < hi; r++) {
+				int read = (int)order[r];
+				int chunk = chunkOf(firstRead, read);
+				into.copyBases(chunks[chunk], read - firstRead[chunk], r);
+			}
+		}
+	}
+
+	// parses every alignment of a gzipped SAM or BAM file from start to end (inflating on up to numThreads threads)
+	void parseStream(ReadSink reads, int numThreads) throws IOException {
+		if (format == FORMAT_BAM) {
+			long startTime = System.nanoTime();
+			try {
+				new BamReader(this, numThreads).read(reads);
+			} finally {
+				parseNanos += System.nanoTime() - startTime;
+			}
+		} else {
+			parseGzipped(reads);
+		}
+	}
+
+	// parses every alignment line of a gzipped SAM file; the file is inflated on a thread of its own, a chunk 
+	// at a time, while this thread parses the lines of the chunks already inflated
+	void parseGzipped(ReadSink reads) throws IOException {
+		long startTime = System.nanoTime();
+		final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(GZIP_QUEUE_CHUNKS);
+		final IOException[] failure = new IOException[1];
+
+		Thread inflater = new Thread(new Runnable() {
+			public void run() {
+				try {
+					InputStream in = new GZIPInputStream(new FileInputStream(fileName), 1 << 16);
+					try {
+						while (true) {
+							byte[] chunk = new byte[GZIP_CHUNK_BYTES];
+							int got = 0, n;
+							while (got < chunk.length && (n = in.read(chunk, got, chunk.length - got)) > 0)
+								got += n;
+
+							if (got == 0) break;
+							chunks.put(got == chunk.length ? chunk : Arrays.copyOf(chunk, got));
+						}
+					} finally {
+						in.close();
+					}
+				} catch (IOException e) {
+					failure[0] = e;
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				try {
+					chunks.put(END_OF_CHUNKS);
+				} catch (InterruptedException e) {
+					// the parser has given up already
+				}
+			}
+		}, "inflate " + fileName);
+		inflater.setDaemon(true);
+		inflater.start();
+
+		try {
+			// the line left unfinished by the last chunk is carried over to the front of the next one
+			byte[] work = new byte[0];
+			int carried = 0;
+			windowStart = 0;
+
+			byte[] chunk;
+			while ((chunk = chunks.take()) != END_OF_CHUNKS) {
+				if (carried + chunk.length > work.length)
+					work = Arrays.copyOf(work, carried + chunk.length);
+				System.arraycopy(chunk, 0, work, carried, chunk.length);
+
+				int length = carried + chunk.length;
+				ByteBuffer buf = ByteBuffer.wrap(work);
+				int lineStart = 0;
+				for (int p = 0; p < length; p++) {
+					if (work[p] != '\n') continue;
+
+					parseLine(buf, lineStart, p, reads);
+					lineStart = p + 1;
+				}
+
+				carried = length - lineStart;
+				System.arraycopy(work, lineStart, work, 0, carried);
+				bytesRead += chunk.length;
+			}
+
+			if (failure[0] != null)
+				throw failure[0];
+
+			if (carried > 0)
+				parseLine(ByteBuffer.wrap(work), 0, carried, reads);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while parsing " + fileName);
+		} finally {
+			inflater.interrupt();
+			parseNanos += System.nanoTime() - startTime;
+		}
+	}
+
+	// returns: the length (LN) of every reference sequence (SN) named in the @SQ header lines, in the order given
+	static Map<String, Integer> readSequenceLengths(String fileName) throws IOException {
+		int format = detectFormat(fileName);
+		if (format == FORMAT_BAM)
+			return BamReader.readSequenceLengths(fileName);
+
+		Map<String, Integer> lengths = new LinkedHashMap<String, Integer>();
+		BufferedReader reader = new BufferedReader(format == FORMAT_GZIPPED_SAM ? 
+				new InputStreamReader(new GZIPInputStream(new FileInputStream(fileName))) : new FileReader(fileName));
+
+		try {
+			String line;
+			while ((line = reader.readLine()) != null && line.startsWith("@")) {
+				if (!line.startsWith("@SQ\t")) continue;
+
+				String name = null;
+				int length = -1;
+				for (String field : line.split("\t")) {
+					if (field.startsWith("SN:"))
+						name = field.substring(3);
+					else if (field.startsWith("LN:")) {
+						try {
+							length = Integer.parseInt(field.substring(3));
+						} catch (NumberFormatException e) {
+							System.err.println("ignoring malformed @SQ length: " + field);
+						}
+					}
+				}
+
+				if (name != null && length > 0)
+					lengths.put(name, length);
+			}
+		} finally {
+			reader.close();
+		}
+
+		return lengths;
+	}
+
+	// reads through every alignment line only to find where the last read ends
+	// returns: one past the last (0-based) position covered by any read
+	int scanLength() throws IOException {
+		final int[] end = new int[1];
+		ReadSink scan = new ReadSink() {
+			public void add(int pos, ByteBuffer buf, int seqStart, int seqLength) {
+				end[0] = Math.max(end[0], Math.max(pos, 1) - 1 + seqLength);
+			}
+
+			public void addProjected(int pos, ByteBuffer buf, int seqStart, Cigar cigar) {
+				end[0] = Math.max(end[0], Math.max(pos, 1) - 1 + cigar.refLength);
+			}
+
+			public void addPacked(int pos, byte[] data, int seqStart, int seqLength, Cigar cigar) {
+				end[0] = Math.max(end[0], Math.max(pos, 1) - 1 + (cigar == null ? seqLength : cigar.refLength));
+			}
+		};
+
+		if (format != FORMAT_SAM) {
+			parseStream(scan, Runtime.getRuntime().availableProcessors());
+			return end[0];
+		}
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			parse(file.getChannel(), rangeStart(), rangeEnd(file), scan);
+		} finally {
+			file.close();
+		}
+
+		return end[0];
+	}
+
+	// reads through every alignment line (on up to numThreads threads) only to find the contigs of the file
+	// returns: every RNAME with a stored sequence, in the order its first line appears (unmapped reads included as '*')
+	static List<Contig> findContigs(String fileName, int numThreads) throws IOException {
+		if (detectFormat(fileName) != FORMAT_SAM) {
+			// a compressed file has to be read whole for every contig
+			SamParser parser = new SamParser(fileName);
+			parser.contigsSeen = new LinkedHashMap<Integer, Contig>();
+			parser.parseStream(null, numThreads);
+
+			List<Contig> contigs = new ArrayList<Contig>(parser.contigsSeen.values());
+			for (Contig contig : contigs) {
+				contig.from = 0;
+				contig.to = Long.MAX_VALUE;
+			}
+
+			return contigs;
+		}
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+
+		try {
+			final FileChannel channel = file.getChannel();
+			final long[] bounds = getChunkBounds(channel, 0, file.length(), numThreads);
+			final SamParser[] parsers = new SamParser[bounds.length - 1];
+
+			List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+			for (int n = 0; n < parsers.length; n++) {
+				final int chunk = n;
+				parsers[n] = new SamParser(fileName);
+				parsers[n].contigsSeen = new LinkedHashMap<Integer, Contig>();
+				tasks.add(pool.submit(new RecursiveAction() {
+					protected void compute() {
+						try {
+							parsers[chunk].parse(channel, bounds[chunk], bounds[chunk + 1], null);
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}));
+			}
+
+			Map<String, Contig> contigs = new LinkedHashMap<String, Contig>();
+			for (int n = 0; n < parsers.length; n++) {
+				try {
+					tasks.get(n).join();
+				} catch (RuntimeException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException)e.getCause();
+					throw e;
+				}
+
+				for (Contig found : parsers[n].contigsSeen.values()) {
+					Contig contig = contigs.get(found.name);
+					if (contig == null)
+						contigs.put(found.name, found);
+					else
+						contig.merge(found);
+				}
+			}
+
+			List<Contig> ordered = new ArrayList<Contig>(contigs.values());
+			Collections.sort(ordered, new Comparator<Contig>() {
+				public int compare(Contig a, Contig b) {
+					return Long.compare(a.from, b.from);
+				}
+			});
+
+			return ordered;
+		} finally {
+			pool.shutdown();
+			file.close();
+		}
+	}
+
+	// returns: byte offsets splitting [from, to) of the file into (at most) numChunks ranges, each starting 
+	// at a new line; from must be the start of a line
+	static long[] getChunkBounds(FileChannel channel, long from, long to, int numChunks) throws IOException {
+		long length = to - from;
+		numChunks = (int)Math.max(1, Math.min(numChunks, length / MIN_CHUNK_BYTES));
+
+		long[] bounds = new long[numChunks + 1];
+		bounds[0] = from;
+		bounds[numChunks] = to;
+
+		for (int n = 1; n < numChunks; n++) {
+			// move each split point forward to just past the next newline
+			bounds[n] = nextLineStart(channel, Math.max(bounds[n - 1], from + length * n / numChunks), to);
+		}
+
+		return bounds;
+	}
+
+	// returns: the byte range of lines [start, end) of shard k of numShards of [from, to): the range is cut into 
+	// numShards stretches of about the same length, each moved forward to the start of a line
+	static long[] getShardBounds(FileChannel channel, long from, long to, int k, int numShards) throws IOException {
+		long length = to - from;
+		long start = k == 0 ? from : nextLineStart(channel, from + length * k / numShards, to);
+		long end = k == numShards - 1 ? to : nextLineStart(channel, from + length * (k + 1) / numShards, to);
+		return new long[] { start, Math.max(start, end) };
+	}
+
+	// returns: the position just past the first newline at or after pos (or to, if there is none before it)
+	static long nextLineStart(FileChannel channel, long pos, long to) throws IOException {
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+		while (pos < to) {
+			probe.clear();
+			int got = channel.read(probe, pos);
+			if (got <= 0) break;
+
+			for (int k = 0; k < got; k++) {
+				if (probe.get(k) == '\n')
+					return Math.min(pos + k + 1, to);
+			}
+
+			pos += got;
+		}
+
+		return Math.min(pos, to);
+	}
+
+	// merges the (sorted) key runs [lo, hi) into one sorted array
+	static class MergeChunks extends RecursiveTask<long[]> {
+		final long[][] chunks;
+		final int lo, hi;
+
+		MergeChunks(long[][] chunks, int lo, int hi) {
+			this.chunks = chunks;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected long[] compute() {
+			if (hi - lo == 1)
+				return chunks[lo];
+
+			int mid = (lo + hi) >>> 1;
+			MergeChunks left = new MergeChunks(chunks, lo, mid);
+			left.fork();
+			long[] b = new MergeChunks(chunks, mid, hi).compute();
+			long[] a = left.join();
+
+			long[] out = new long[a.length + b.length];
+			new MergeRange(a, 0, a.length, b, 0, b.length, out, 0).compute();
+			return out;
+		}
+	}
+
+	// merges a[aLo, aHi) and b[bLo, bHi) into out starting at outLo by splitting both runs 
+	// around the median of the larger one; keys are unique, so there are no ties to order
+	static class MergeRange extends RecursiveAction {
+		final long[] a, b, out;
+		final int aLo, aHi, bLo, bHi, outLo;
+
+		MergeRange(long[] a, int aLo, int aHi, long[] b, int bLo, int bHi, long[] out, int outLo) {
+			this.a = a; this.aLo = aLo; this.aHi = aHi;
+			this.b = b; this.bLo = bLo; this.bHi = bHi;
+			this.out = out; this.outLo = outLo;
+		}
+
+		protected void compute() {
+			int aLength = aHi - aLo, bLength = bHi - bLo;
+			if (aLength + bLength <= MIN_PARALLEL_MERGE) {
+				mergeSequential();
+				return;
+			}
+
+			int aSplit, bSplit;
+			if (aLength >= bLength) {
+				aSplit = (aLo + aHi) >>> 1;
+				bSplit = firstIndexOf(b, bLo, bHi, a[aSplit]);
+			} else {
+				bSplit = (bLo + bHi) >>> 1;
+				aSplit = firstIndexOf(a, aLo, aHi, b[bSplit]);
+			}
+
+			int outSplit = outLo + (aSplit - aLo) + (bSplit - bLo);
+			invokeAll(new MergeRange(a, aLo, aSplit, b, bLo, bSplit, out, outLo),
+					new MergeRange(a, aSplit, aHi, b, bSplit, bHi, out, outSplit));
+		}
+
+		private void mergeSequential() {
+			int i = aLo, j = bLo, k = outLo;
+			while (i < aHi && j < bHi)
+				out[k++] = b[j] < a[i] ? b[j++] : a[i++];
+
+			while (i < aHi) out[k++] = a[i++];
+			while (j < bHi) out[k++] = b[j++];
+		}
+
+		// returns: the first index in [lo, hi) whose key is >= key
+		private static int firstIndexOf(long[] keys, int lo, int hi, long key) {
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (keys[mid] < key)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+
+			return lo;
+		}
+	}
+
+	// parses the lines that start in [from, to) of the given channel into reads;
+	// from must be the start of a line
+	void parse(FileChannel channel, long from, long to, ReadSink reads) throws IOException {
+		long startTime = System.nanoTime();
+		long fileLength = channel.size();
+		windowStart = from;
+
+		while (windowStart < to) {
+			int windowLength = (int)Math.min(MAP_WINDOW, fileLength - windowStart);
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+			boolean lastWindow = windowStart + windowLength >= fileLength;
+
+			int lineStart = 0;
+			while (lineStart < windowLength && windowStart + lineStart < to) {
+				int lineEnd = lineStart;
+				while (lineEnd < windowLength && buf.get(lineEnd) != '\n')
+					lineEnd++;
+
+				// if the line runs past the window, map the next window starting from this line
+				if (lineEnd == windowLength && !lastWindow) {
+					if (lineStart == 0)
+						throw new IOException("line at byte " + windowStart + " is longer than the mapping window");
+					break;
+				}
+
+				parseLine(buf, lineStart, lineEnd, reads);
+				lineStart = lineEnd + 1;
+			}
+
+			windowStart += Math.min(lineStart, windowLength);
+		}
+
+		bytesRead += Math.max(0, Math.min(to, fileLength) - from);
+		parseNanos += System.nanoTime() - startTime;
+	}
+
+	private void parseLine(ByteBuffer buf, int lineStart, int lineEnd, ReadSink reads) {
+		// ignore (a trailing carriage return and) empty lines and headers
+		if (lineEnd > lineStart && buf.get(lineEnd - 1) == '\r')
+			lineEnd--;
+
+		if (lineEnd == lineStart || buf.get(lineStart) == '@')
+			return;
+
+		// find the byte offsets of the fields we need
+		int rnameStart = -1, posStart = -1, cigarStart = -1, cigarEnd = -1, seqStart = -1, seqEnd = lineEnd;
+		int field = 0;
+		for (int p = lineStart; p < lineEnd; p++) {
+			if (buf.get(p) != '\t') continue;
+
+			field++;
+			if (field == CoOccurLibrary.RNAME)
+				rnameStart = p + 1;
+			else if (field == CoOccurLibrary.POS)
+				posStart = p + 1;
+			else if (field == CoOccurLibrary.CIGAR)
+				cigarStart = p + 1;
+			else if (field == CoOccurLibrary.RNEXT)
+				cigarEnd = p;
+			else if (field == CoOccurLibrary.SEQ)
+				seqStart = p + 1;
+			else if (field == CoOccurLibrary.SEQ + 1) {
+				seqEnd = p;
+				break;
+			}
+		}
+
+		// skip malformed lines and those without a stored sequence
+		if (seqStart == -1) {
+			System.err.println("skipping malformed SAM line at byte offset " + lineStart);
+			return;
+		}
+
+		int seqLength = seqEnd - seqStart;
+		if (seqLength <= 0 || (seqLength == 1 && buf.get(seqStart) == '*'))
+			return;
+
+		int nameIndex = getNameIndex(buf, rnameStart, posStart - 1);
+		if (contigIndex != -1 && nameIndex != contigIndex)
+			return;
+
+		int startPos = 0;
+		for (int p = posStart; p < seqStart; p++) {
+			byte b = buf.get(p);
+			if (b < '0' || b > '9') break;
+			startPos = startPos * 10 + (b - '0');
+		}
+
+		// the number of reference positions the read covers
+		int refLength = seqLength;
+		if (!cigar.decode(buf, cigarStart, cigarEnd)) {
+			System.err.println("skipping SAM line with a malformed CIGAR at byte offset " + lineStart);
+			return;
+		}
+
+		boolean project = cigar.needsProjection(seqLength);
+		if (project) {
+			if (!cigar.project(seqLength)) {
+				System.err.println("skipping SAM line whose CIGAR doesn't match its SEQ at byte offset " + lineStart);
+				return;
+			}
+
+			refLength = cigar.refLength;
+			if (refLength == 0) return;
+		}
+
+		if (contigsSeen != null) {
+			addToContig(nameIndex, null, windowStart + lineStart, windowStart + lineEnd + 1, Math.max(startPos, 1) - 1 + refLength);
+			return;
+		}
+
+		if (project) {
+			reads.addProjected(startPos, buf, seqStart, cigar);
+			readsProjected++;
+		} else {
+			reads.add(startPos, buf, seqStart, seqLength);
+		}
+		readsParsed++;
+	}
+
+	// notes a line of the contig with the given RNAME index (and name, or null for the last RNAME parsed) at 
+	// [from, to) of the file
+	void addToContig(int nameIndex, String name, long from, long to, int endPos) {
+		Contig contig = contigsSeen.get(nameIndex);
+		if (contig == null) {
+			contig = new Contig(name != null ? name : new String(lastName, 0, lastNameLength));
+			contigsSeen.put(nameIndex, contig);
+		}
+
+		contig.from = Math.min(contig.from, from);
+		contig.to = Math.max(contig.to, to);
+		contig.numReads++;
+		contig.endPos = Math.max(contig.endPos, endPos);
+		readsParsed++;
+	}
+
+	// returns: the index of the RNAME at [start, end), only building a String when the name changes
+	private int getNameIndex(ByteBuffer buf, int start, int end) {
+		int length = end - start;
+		boolean same = length == lastNameLength;
+		for (int n = 0; same && n < length; n++)
+			same = lastName[n] == buf.get(start + n);
+
+		if (same) return lastNameIndex;
+
+		if (length > lastName.length)
+			lastName = new byte[length];
+
+		for (int n = 0; n < length; n++)
+			lastName[n] = buf.get(start + n);
+
+		lastNameLength = length;
+		lastNameIndex = CoOccurLibrary.getHashIndex(new String(lastName, 0, length));
+		return lastNameIndex;
+	}
+
+	void printThroughput() {
+		DecimalFormat df = new DecimalFormat("0.00");
+		double seconds = parseNanos / 1e9;
+		System.out.println("\tparsed " + readsParsed + " reads from " + df.format(bytesRead / 1048576.0) + " MB (" +
+				df.format(bytesRead / 1048576.0 / seconds) + " MB/s, " + df.format(readsParsed / seconds) + " reads/s)");
+		if (readsProjected > 0)
+			System.out.println("\t" + readsProjected + " reads projected onto the reference through their CIGAR (clips and insertions dropped, deletions marked)");
+		if (readsUnmapped > 0)
+			System.out.println("\tskipped " + readsUnmapped + " unmapped reads");
+	}
+}
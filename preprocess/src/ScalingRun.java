@@ -0,0 +1,303 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.cli.*;
+
+/**
+ * Times the preprocessor end to end on synthetic data (see SyntheticData)
+ * of every given genome length, with every given number of threads, and
+ * appends a row per run to a CSV file: the wall time of the whole run, its
+ * peak resident set size and the bytes of its output files.
+ *
+ * Every run is a JVM of its own (this class again, with CHILD first), which
+ * runs CoOccurLibrary and then reports its own peak RSS (VmHWM, from
+ * /proc/self/status; left empty where there is none).  Options after "--"
+ * are handed to every run, e.g. -- -w 100 -m diff,r2 --pipeline.
+ */
+class ScalingRun {
+	static final String CHILD = "--child";
+	static final String PEAK_RSS = "peak RSS kB: ";
+	static final String CSV_HEADER = "positions,reads,read_length,depth,threads,run,wall_seconds,peak_rss_kb,output_bytes,exit_code,options";
+
+	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals(CHILD)) {
+			CoOccurLibrary.main(Arrays.copyOfRange(args, 1, args.length));
+			long peak = peakRssKb();
+			if (peak >= 0)
+				System.out.println(PEAK_RSS + peak);
+			return;
+		}
+
+		Options options = new Options();
+		options.addOption(OptionBuilder.withLongOpt("help")
+					.withDescription("Prints this help sheet")
+					.create('h'));
+		options.addOption(OptionBuilder.withLongOpt("sizes")
+					.withDescription("The genome lengths to generate data for, separated by commas (default 10000,100000)")
+					.hasArg()
+					.withArgName("positions,...")
+					.create());
+		options.addOption(OptionBuilder.withLongOpt("threads")
+					.withDescription("The numbers of threads to run with, separated by commas (default: 1 and every power of two up to the number of available processors)")
+					.hasArg()
+					.withArgName("threads,...")
+					.create());
+		options.addOption(OptionBuilder.withLongOpt("readLength")
+					.withDescription("The mean length of the reads, and how far it varies (default 150,0)")
+					.hasArg()
+					.withArgName("mean[,sd]")
+					.create());
+		options.addOption(OptionBuilder.withLongOpt("depth")
+					.withDescription("The mean depth of the reads (default 100)")
+					.hasArg()
+					.withArgName("depth")
+					.create());
+		options.addOption(OptionBuilder.withLongOpt("amplicons")
+					.withDescription("Covers the genome with amplicons of the given length instead of uniformly")
+					.hasArg()
+					.withArgName("length")
+					.create());
+		options.addOption(OptionBuilder.withLongOpt("seed")
+					.withDescription("The seed of the generated data (default 1)")
+					.hasArg()
+					.withArgName("seed")
+					.create());
+		options.addOption(OptionBuilder.withLongOpt("runs")
+					.withDescription("The number of times to run every size and number of threads (default 1)")
+					.hasArg()
+					.withArgName("runs")
+					.create());
+		options.addOption(OptionBuilder.withLongOpt("heap")
+					.withDescription("The maximum heap of every run, as given to -Xmx (default: the JVM's)")
+					.hasArg()
+					.withArgName("size")
+					.create());
+		options.addOption(OptionBuilder.withLongOpt("dir")
+					.withDescription("Where the data and the outputs go (default scaling/)")
+					.hasArg()
+					.withArgName("dir")
+					.create('d'));
+		options.addOption(OptionBuilder.withLongOpt("csv")
+					.withDescription("The CSV file to append a row per run to (default: scaling.csv in --dir)")
+					.hasArg()
+					.withArgName("file.csv")
+					.create());
+
+		List<Integer> sizes = Arrays.asList(10000, 100000);
+		List<Integer> threads = new ArrayList<Integer>();
+		for (int t = 1; t <= Runtime.getRuntime().availableProcessors(); t *= 2)
+			threads.add(t);
+		int runs = 1;
+		String heap = null;
+		String dir = "scaling/";
+		String csv = null;
+		List<String> toolArgs = new ArrayList<String>();
+		SyntheticData data = new SyntheticData();
+		try {
+			CommandLine cl = new BasicParser().parse(options, args);
+			if (cl.hasOption('h')) {
+				new HelpFormatter().printHelp("ScalingRun [options] [-- CoOccurLibrary options]",
+						"\nTimes the preprocessor on synthetic data of every size with every number of threads.\n", options, "", false);
+				return;
+			}
+
+			if (cl.hasOption("sizes")) sizes = parseInts(cl, "sizes");
+			if (cl.hasOption("threads")) threads = parseInts(cl, "threads");
+			if (cl.hasOption("readLength")) {
+				String[] values = cl.getOptionValue("readLength").split(",");
+				data.readLength = parseInts("readLength", values[0]).get(0);
+				if (values.length > 1) data.readLengthSd = parseInts("readLength", values[1]).get(0);
+			}
+			if (cl.hasOption("depth")) data.depth = parseInts(cl, "depth").get(0);
+			if (cl.hasOption("amplicons")) data.ampliconLength = parseInts(cl, "amplicons").get(0);
+			if (cl.hasOption("seed")) data.seed = parseInts(cl, "seed").get(0);
+			if (cl.hasOption("runs")) runs = parseInts(cl, "runs").get(0);
+			heap = cl.getOptionValue("heap");
+			if (cl.hasOption('d')) dir = cl.getOptionValue('d').endsWith("/") ? cl.getOptionValue('d') : cl.getOptionValue('d') + "/";
+			csv = cl.hasOption("csv") ? cl.getOptionValue("csv") : dir + "scaling.csv";
+			for (Object arg : cl.getArgList())
+				toolArgs.add((String)arg);
+
+			if (data.readLength < SyntheticData.MIN_READ_LENGTH)
+				throw new ParseException("--readLength needs at least " + SyntheticData.MIN_READ_LENGTH + ": " + data.readLength);
+			for (String arg : toolArgs) {
+				if (arg.equals("-f") || arg.equals("-d") || arg.equals("-r") || arg.equals("-t"))
+					throw new ParseException(arg + " is set for every run; don't pass it after --");
+			}
+		} catch (ParseException exp) {
+			System.err.println("Argument parsing failed. " + exp.getMessage());
+			new HelpFormatter().printHelp("ScalingRun [options] [-- CoOccurLibrary options]", options, false);
+			System.exit(-1);
+			return;
+		}
+
+		try {
+			new File(dir).mkdirs();
+			boolean newFile = !new File(csv).exists();
+			PrintWriter out = new PrintWriter(new FileWriter(csv, true));
+			try {
+				if (newFile) out.println(CSV_HEADER);
+
+				for (int size : sizes) {
+					String sizeDir = dir + "size" + size + "/";
+					new File(sizeDir).mkdirs();
+
+					data.length = size;
+					System.out.print("generating " + size + " positions ... ");
+					long numReads = data.write(sizeDir + "data");
+					System.out.println(numReads + " reads");
+
+					for (int numThreads : threads) {
+						for (int run = 1; run <= runs; run++) {
+							String row = runOnce(sizeDir, numThreads, heap, toolArgs);
+							out.println(size + "," + numReads + "," + data.readLength + "," + (int)data.depth + "," + numThreads + "," + run + "," +
+									row + "," + csvField(join(toolArgs)));
+							out.flush();
+							System.out.println("\t" + numThreads + " thread(s), run " + run + ": " + row + " (seconds, peak RSS kB, output bytes, exit code)");
+						}
+					}
+				}
+			} finally {
+				out.close();
+			}
+
+			System.out.println("appended the runs to " + csv);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	// runs the preprocessor on sizeDir/data.sam into sizeDir/t<threads>/ (emptied first), keeping what it printed
+	// in sizeDir/t<threads>.log
+	// returns: the wall seconds, peak RSS, output bytes and exit code of the run, as CSV fields
+	static String runOnce(String sizeDir, int numThreads, String heap, List<String> toolArgs) throws IOException {
+		File outputDir = new File(sizeDir + "t" + numThreads);
+		deleteContents(outputDir);
+		outputDir.mkdirs();
+
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		if (heap != null) command.add("-Xmx" + heap);
+		command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "ScalingRun", CHILD,
+				"-f", sizeDir + "data.sam", "-r", sizeDir + "data.fa", "-d", outputDir.getPath() + "/", "-t", String.valueOf(numThreads)));
+		command.addAll(toolArgs);
+
+		File log = new File(sizeDir + "t" + numThreads + ".log");
+		long peak = -1;
+		int exitCode;
+		long startTime = System.nanoTime();
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		PrintWriter logOut = new PrintWriter(new FileWriter(log));
+		try {
+			BufferedReader lines = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			String line;
+			while ((line = lines.readLine()) != null) {
+				logOut.println(line);
+				if (line.startsWith(PEAK_RSS))
+					peak = Long.parseLong(line.substring(PEAK_RSS.length()).trim());
+			}
+
+			exitCode = process.waitFor();
+		} catch (InterruptedException e) {
+			process.destroy();
+			throw new IOException("interrupted while waiting for the run in " + outputDir, e);
+		} finally {
+			logOut.close();
+		}
+		long endTime = System.nanoTime();
+
+		return String.format(Locale.ROOT, "%.3f", (endTime - startTime) / 1e9) + "," + (peak < 0 ? "" : String.valueOf(peak)) + "," +
+				sizeOf(outputDir) + "," + exitCode;
+	}
+
+	// returns: the peak resident set size of this process in kB, or -1 if the system doesn't tell
+	static long peakRssKb() {
+		File status = new File("/proc/self/status");
+		if (!status.exists()) return -1;
+
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(status));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					// e.g. "VmHWM:	  123456 kB"
+					if (line.startsWith("VmHWM:"))
+						return Long.parseLong(line.substring(6).replace("kB", "").trim());
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (NumberFormatException e) {
+			e.printStackTrace();
+		}
+
+		return -1;
+	}
+
+	// returns: the bytes of every file in dir (and its subdirectories, as runs per contig leave them)
+	static long sizeOf(File dir) {
+		long size = 0;
+		File[] files = dir.listFiles();
+		if (files == null) return 0;
+
+		for (File file : files)
+			size += file.isDirectory() ? sizeOf(file) : file.length();
+		return size;
+	}
+
+	static void deleteContents(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+
+		for (File file : files) {
+			if (file.isDirectory()) deleteContents(file);
+			file.delete();
+		}
+	}
+
+	private static List<Integer> parseInts(CommandLine cl, String option) throws ParseException {
+		return parseInts(option, cl.getOptionValue(option));
+	}
+
+	// returns: the positive ints of a list separated by commas
+	private static List<Integer> parseInts(String option, String values) throws ParseException {
+		List<Integer> ints = new ArrayList<Integer>();
+		for (String value : values.split(",")) {
+			try {
+				ints.add(Integer.parseInt(value.trim()));
+			} catch (NumberFormatException e) {
+				throw new ParseException("--" + option + " was passed a non-integer value: " + value);
+			}
+
+			if (ints.get(ints.size() - 1) <= 0)
+				throw new ParseException("--" + option + " needs values of at least 1: " + value);
+		}
+
+		return ints;
+	}
+
+	private static String join(List<String> values) {
+		StringBuilder joined = new StringBuilder();
+		for (String value : values)
+			joined.append(joined.length() == 0 ? "" : " ").append(value);
+		return joined.toString();
+	}
+
+	// returns: the value quoted for CSV if it needs to be
+	private static String csvField(String value) {
+		if (value.indexOf(',') == -1 && value.indexOf('"') == -1) return value;
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+}
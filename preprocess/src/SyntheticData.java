@@ -0,0 +1,364 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.commons.cli.*;
+
+/**
+ * Generates a reference (prefix.fa) and reads aligned to it (prefix.sam,
+ * sorted by position), so runs can be timed and checked without real data.
+ * Every value is drawn from one Random of the given seed, in a fixed order,
+ * so the same settings and seed always give the same files.
+ *
+ * Read lengths are normal around readLength (readLengthSd wide, at least
+ * MIN_READ_LENGTH).  Coverage is either uniform (a read starts anywhere) or,
+ * with ampliconLength, amplicon-style: the genome is tiled by amplicons
+ * overlapping by a quarter of their length, every read is read from either
+ * end of one amplicon, and the amplicons' shares of the reads vary
+ * log-normally (AMPLICON_SPREAD), as the yields of a multiplexed PCR do.
+ *
+ * About variantRate of the positions carry a second base in a share of the
+ * reads (drawn for each read on its own), and linkedPairs pairs of positions
+ * at most linkDistance apart carry theirs together: a read covering both has
+ * either both second bases or neither.  Any base is misread errorRate of the
+ * time.  Every planted variant is listed in prefix.variants.tsv.
+ */
+class SyntheticData {
+	static final String CONTIG = "synthetic";
+	static final int MIN_READ_LENGTH = 20;
+	static final int FASTA_LINE = 60;
+	static final double AMPLICON_SPREAD = 0.5; // sigma of the log of an amplicon's share of the reads
+
+	int length = 10000;
+	int readLength = 150;
+	int readLengthSd = 0;
+	double depth = 100;
+	int ampliconLength = 0; // 0 for uniform coverage
+	double variantRate = 0.01;
+	int linkedPairs = 10;
+	int linkDistance = 100;
+	double errorRate = 0.001;
+	long seed = 1;
+
+	private Random random;
+	private byte[] reference;
+	private byte[] variant;       // the second base at every position, or 0
+	private double[] frequency;   // the share of the reads with the second base
+	private int[] partner;        // the position a variant is linked to, or -1
+
+	public static void main(String[] args) {
+		Options options = new Options();
+		options.addOption(OptionBuilder.withLongOpt("help")
+					.withDescription("Prints this help sheet")
+					.create('h'));
+		options.addOption(OptionBuilder.withLongOpt("output")
+					.withDescription("Writes prefix.fa, prefix.sam and prefix.variants.tsv (required)")
+					.hasArg()
+					.withArgName("prefix")
+					.create('o'));
+		options.addOption(OptionBuilder.withLongOpt("length")
+					.withDescription("The number of positions of the genome (default 10000)")
+					.hasArg()
+					.withArgName("positions")
+					.create('p'));
+		options.addOption(OptionBuilder.withLongOpt("readLength")
+					.withDescription("The mean length of the reads, and how far it varies (default 150,0)")
+					.hasArg()
+					.withArgName("mean[,sd]")
+					.create());
+		options.addOption(OptionBuilder.withLongOpt("depth")
+					.withDescription("The mean depth of the reads (default 100)")
+					.hasArg()
+					.withArgName("depth")
+					.create());
+		options.addOption(OptionBuilder.withLongOpt("amplicons")
+					.withDescription("Covers the genome with amplicons of the given length instead of uniformly")
+					.hasArg()
+					.withArgName("length")
+					.create());
+		options.addOption(OptionBuilder.withLongOpt("variants")
+					.withDescription("The share of positions with a second base (default 0.01)")
+					.hasArg()
+					.withArgName("rate")
+					.create());
+		options.addOption(OptionBuilder.withLongOpt("linked")
+					.withDescription("The number of pairs of positions whose second bases are always read together, and how far apart they are at most (default 10,100)")
+					.hasArg()
+					.withArgName("pairs[,distance]")
+					.create());
+		options.addOption(OptionBuilder.withLongOpt("errors")
+					.withDescription("The share of bases misread (default 0.001)")
+					.hasArg()
+					.withArgName("rate")
+					.create());
+		options.addOption(OptionBuilder.withLongOpt("seed")
+					.withDescription("The seed of the random numbers (default 1)")
+					.hasArg()
+					.withArgName("seed")
+					.create());
+
+		SyntheticData data = new SyntheticData();
+		String prefix = null;
+		try {
+			CommandLine cl = new BasicParser().parse(options, args);
+			if (cl.hasOption('h')) {
+				new HelpFormatter().printHelp("SyntheticData", "\nGenerates a reference and reads aligned to it, for timing and testing the preprocessor.\n", options, "", true);
+				return;
+			}
+
+			if (!cl.hasOption('o'))
+				throw new ParseException("Missing required option: o");
+			prefix = cl.getOptionValue('o');
+
+			if (cl.hasOption('p')) data.length = parseInt(cl, "length", 1);
+			if (cl.hasOption("readLength")) {
+				String[] values = cl.getOptionValue("readLength").split(",");
+				data.readLength = parseInt("--readLength", values[0], MIN_READ_LENGTH);
+				if (values.length > 1) data.readLengthSd = parseInt("--readLength", values[1], 0);
+			}
+			if (cl.hasOption("depth")) data.depth = parseDouble(cl, "depth");
+			if (cl.hasOption("amplicons")) data.ampliconLength = parseInt(cl, "amplicons", MIN_READ_LENGTH);
+			if (cl.hasOption("variants")) data.variantRate = parseDouble(cl, "variants");
+			if (cl.hasOption("linked")) {
+				String[] values = cl.getOptionValue("linked").split(",");
+				data.linkedPairs = parseInt("--linked", values[0], 0);
+				if (values.length > 1) data.linkDistance = parseInt("--linked", values[1], 1);
+			}
+			if (cl.hasOption("errors")) data.errorRate = parseDouble(cl, "errors");
+			if (cl.hasOption("seed")) {
+				try {
+					data.seed = Long.parseLong(cl.getOptionValue("seed"));
+				} catch (NumberFormatException e) {
+					throw new ParseException("--seed was passed a non-integer value: " + cl.getOptionValue("seed"));
+				}
+			}
+
+			if (data.variantRate > 1 || data.errorRate > 1)
+				throw new ParseException("--variants and --errors are shares of the positions, at most 1");
+		} catch (ParseException exp) {
+			System.err.println("Argument parsing failed. " + exp.getMessage());
+			new HelpFormatter().printHelp("SyntheticData", options, true);
+			System.exit(-1);
+		}
+
+		try {
+			long numReads = data.write(prefix);
+			System.out.println("wrote " + numReads + " reads of " + data.length + " positions to " + prefix + ".sam");
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	private static int parseInt(CommandLine cl, String option, int min) throws ParseException {
+		return parseInt("--" + option, cl.getOptionValue(option), min);
+	}
+
+	private static int parseInt(String option, String value, int min) throws ParseException {
+		int n;
+		try {
+			n = Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ParseException(option + " was passed a non-integer value: " + value);
+		}
+
+		if (n < min)
+			throw new ParseException(option + " needs at least " + min + ": " + n);
+		return n;
+	}
+
+	private static double parseDouble(CommandLine cl, String option) throws ParseException {
+		double value;
+		try {
+			value = Double.parseDouble(cl.getOptionValue(option));
+		} catch (NumberFormatException e) {
+			throw new ParseException("--" + option + " was passed a non-numeric value: " + cl.getOptionValue(option));
+		}
+
+		if (!(value >= 0))
+			throw new ParseException("--" + option + " can't be negative: " + value);
+		return value;
+	}
+
+	// writes prefix.fa, prefix.sam and prefix.variants.tsv
+	// returns: the number of reads written
+	long write(String prefix) throws IOException {
+		random = new Random(seed);
+		plantVariants();
+		writeReference(prefix + ".fa");
+		writeVariants(prefix + ".variants.tsv");
+
+		long[] reads = layOutReads();
+		writeReads(prefix + ".sam", reads);
+		return reads.length;
+	}
+
+	// draws the reference, the variant sites and the linked pairs
+	private void plantVariants() {
+		reference = new byte[length];
+		variant = new byte[length];
+		frequency = new double[length];
+		partner = new int[length];
+		Arrays.fill(partner, -1);
+
+		for (int i = 0; i < length; i++) {
+			reference[i] = (byte)CoOccurLibrary.bases[random.nextInt(4)];
+			if (random.nextDouble() < variantRate) {
+				variant[i] = otherBase(reference[i]);
+				frequency[i] = 0.02 + 0.48 * random.nextDouble();
+			}
+		}
+
+		// (give up on pairs that don't fit, e.g. when the genome is tiny)
+		int planted = 0;
+		for (int attempt = 0; planted < linkedPairs && attempt < 100 * linkedPairs; attempt++) {
+			int i = random.nextInt(length);
+			int j = i + 1 + random.nextInt(linkDistance);
+			if (j >= length || partner[i] != -1 || partner[j] != -1) continue;
+
+			double share = 0.1 + 0.4 * random.nextDouble();
+			for (int k : new int[] { i, j }) {
+				if (variant[k] == 0) variant[k] = otherBase(reference[k]);
+				frequency[k] = share;
+			}
+			partner[i] = j;
+			partner[j] = i;
+			planted++;
+		}
+	}
+
+	// returns: one of the three bases other than the given one
+	private byte otherBase(byte base) {
+		return (byte)CoOccurLibrary.bases[(ReadStore.bpToIndex((char)base) + 1 + random.nextInt(3)) % 4];
+	}
+
+	private void writeReference(String fileName) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName));
+		try {
+			out.write((">" + CONTIG + "\n").getBytes("US-ASCII"));
+			for (int i = 0; i < length; i += FASTA_LINE) {
+				out.write(reference, i, Math.min(FASTA_LINE, length - i));
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeVariants(String fileName) throws IOException {
+		PrintWriter out = new PrintWriter(fileName, "US-ASCII");
+		try {
+			out.println("position\treference\tvariant\tfrequency\tlinked");
+			for (int i = 0; i < length; i++) {
+				if (variant[i] == 0) continue;
+				out.println((i + 1) + "\t" + (char)reference[i] + "\t" + (char)variant[i] + "\t" +
+						String.format(Locale.ROOT, "%.4f", frequency[i]) + "\t" + (partner[i] == -1 ? "" : String.valueOf(partner[i] + 1)));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	// returns: the 0-based start (high int), the length and the strand (low int: length << 1 | reverse) of
+	// every read, sorted
+	private long[] layOutReads() {
+		int numReads = (int)Math.max(1, Math.round(length * depth / readLength));
+		long[] reads = new long[numReads];
+
+		// the amplicons, and the running total of their shares of the reads
+		int step = Math.max(1, ampliconLength * 3 / 4);
+		int numAmplicons = ampliconLength == 0 ? 0 : Math.max(1, (length - ampliconLength + step - 1) / step + 1);
+		double[] share = new double[numAmplicons];
+		for (int a = 0; a < numAmplicons; a++)
+			share[a] = (a == 0 ? 0 : share[a - 1]) + Math.exp(AMPLICON_SPREAD * random.nextGaussian());
+
+		for (int n = 0; n < numReads; n++) {
+			int readLength = (int)Math.round(this.readLength + readLengthSd * random.nextGaussian());
+			readLength = Math.min(Math.max(readLength, MIN_READ_LENGTH), length);
+
+			int start;
+			boolean reverse = random.nextBoolean();
+			if (numAmplicons == 0) {
+				start = random.nextInt(length - readLength + 1);
+			} else {
+				int a = Arrays.binarySearch(share, random.nextDouble() * share[numAmplicons - 1]);
+				a = Math.min(a < 0 ? -a - 1 : a, numAmplicons - 1);
+
+				int from = Math.min(a * step, Math.max(0, length - ampliconLength));
+				int to = Math.min(from + ampliconLength, length);
+				readLength = Math.min(readLength, to - from);
+				start = reverse ? to - readLength : from;
+			}
+
+			reads[n] = (long)start << 32 | readLength << 1 | (reverse ? 1 : 0);
+		}
+
+		Arrays.sort(reads);
+		return reads;
+	}
+
+	private void writeReads(String fileName, long[] reads) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16);
+
+		// the draw of the read being written for each linked pair (by its first position), so both
+		// positions of the pair agree
+		double[] pairDraw = new double[length];
+		int[] drawnFor = new int[length];
+		Arrays.fill(drawnFor, -1);
+
+		try {
+			out.write(("@HD\tVN:1.6\tSO:coordinate\n@SQ\tSN:" + CONTIG + "\tLN:" + length + "\n" +
+					"@PG\tID:SyntheticData\tPN:SyntheticData\tCL:seed=" + seed + "\n").getBytes("US-ASCII"));
+
+			byte[] seq = new byte[0];
+			byte[] qual = new byte[0];
+			for (int n = 0; n < reads.length; n++) {
+				int start = (int)(reads[n] >>> 32), readLength = (int)reads[n] >>> 1;
+				boolean reverse = (reads[n] & 1) != 0;
+				if (seq.length < readLength) {
+					seq = new byte[readLength];
+					qual = new byte[readLength];
+					Arrays.fill(qual, (byte)'I');
+				}
+
+				for (int k = 0; k < readLength; k++) {
+					int i = start + k;
+					byte base = reference[i];
+					if (variant[i] != 0) {
+						double draw;
+						if (partner[i] == -1) {
+							draw = random.nextDouble();
+						} else {
+							int first = Math.min(i, partner[i]);
+							if (drawnFor[first] != n) {
+								drawnFor[first] = n;
+								pairDraw[first] = random.nextDouble();
+							}
+							draw = pairDraw[first];
+						}
+
+						if (draw < frequency[i]) base = variant[i];
+					}
+
+					if (errorRate > 0 && random.nextDouble() < errorRate)
+						base = otherBase(base);
+					seq[k] = base;
+				}
+
+				out.write(("read" + n + "\t" + (reverse ? 16 : 0) + "\t" + CONTIG + "\t" + (start + 1) + "\t60\t" +
+						readLength + "M\t*\t0\t0\t").getBytes("US-ASCII"));
+				out.write(seq, 0, readLength);
+				out.write('\t');
+				out.write(qual, 0, readLength);
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,302 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A tiled container for a .dat file, so any range of positions can be loaded
+ * with one range read instead of the whole file.  The body of the .dat file
+ * is cut into tiles of tileSize positions, each compressed on its own (raw
+ * deflate, as DecompressionStream("deflate-raw") reads it), and an index of
+ * the tiles is written after them.  All big-endian, like the .dat files:
+ *
+ *   MAGIC, VERSION
+ *   numWindow, numPos, flags   (the header of the .dat file)
+ *   tileSize
+ *   the tiles, in position order
+ *   for every tile: long offset, int compressed length, int inflated length
+ *   int numTiles, long offset of the index, MAGIC
+ *
+ * An inflated tile holds exactly the bytes of the .dat body for its
+ * positions: whole rows of a dense file, the records (still with their
+ * absolute indices) of a sparse one, or for reference.dat, the bytes of
+ * four bases each (so tileSize is a multiple of 4).
+ *
+ * Run on its own, converts existing .dat files: TiledDat <positions per tile>
+ * <file.dat>... writes file.tiled next to each.
+ */
+class TiledDat {
+	static final int MAGIC = 0x43544c31; // "CTL1"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 24;
+	static final int TRAILER_BYTES = 16;
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("usage: TiledDat <positions per tile> <file.dat>...");
+			System.exit(-1);
+		}
+
+		int tileSize = Integer.parseInt(args[0]);
+		List<String> files = Arrays.asList(args).subList(1, args.length);
+		if (!convertAll(files, tileSize, Runtime.getRuntime().availableProcessors(), null))
+			System.exit(-1);
+	}
+
+	// returns: the name of the tiled container of the given .dat file
+	static String tiledName(String datFile) {
+		return (datFile.endsWith(".dat") ? datFile.substring(0, datFile.length() - 4) : datFile) + ".tiled";
+	}
+
+	// converts every file (reporting those that fail), compressing tiles on numThreads threads (each telling busy,
+	// if not null, how long it works)
+	// returns: whether every file was converted
+	static boolean convertAll(List<String> datFiles, int tileSize, int numThreads, RunReport.Busy busy) {
+		boolean converted = true;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		try {
+			for (String datFile : datFiles) {
+				try {
+					convert(datFile, tiledName(datFile), tileSize, pool, busy);
+					System.out.println("\twrote " + tiledName(datFile));
+				} catch (IOException e) {
+					e.printStackTrace();
+					converted = false;
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		return converted;
+	}
+
+	// writes the tiled container of datFile to tiledFile, compressing the tiles on the pool
+	static void convert(String datFile, String tiledFile, int tileSize, ExecutorService pool, final RunReport.Busy busy) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(datFile, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(datFile + " is too large to tile (over 2 GB)");
+
+			final MappedByteBuffer dat = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int numWindow = dat.getInt(0), numPos = dat.getInt(4), flags = dat.getInt(8);
+
+			boolean reference = new File(datFile).getName().equals("reference.dat");
+			if (reference) tileSize = (tileSize + 3) & ~3;
+			if (tileSize <= 0)
+				throw new IOException("tiles need at least one position: " + tileSize);
+
+			// where every tile's bytes start in the .dat file (and where the last one ends)
+			final int[] bounds = tileBounds(dat, new File(datFile).getName(), numWindow, numPos, flags, tileSize);
+			int numTiles = bounds.length - 1;
+
+			List<Future<byte[]>> tiles = new ArrayList<Future<byte[]>>();
+			for (int t = 0; t < numTiles; t++) {
+				final int tile = t;
+				tiles.add(pool.submit(new Callable<byte[]>() {
+					public byte[] call() {
+						long startTime = System.nanoTime();
+						ByteBuffer slice = dat.duplicate();
+						slice.limit(bounds[tile + 1]).position(bounds[tile]);
+						byte[] raw = new byte[slice.remaining()];
+						slice.get(raw);
+						byte[] compressed = deflate(raw);
+
+						if (busy != null) busy.add(System.nanoTime() - startTime);
+						return compressed;
+					}
+				}));
+			}
+
+			DatWriter out = new DatWriter(tiledFile, MAGIC, VERSION, numWindow);
+			try {
+				out.writeInt(numPos);
+				out.writeInt(flags);
+				out.writeInt(tileSize);
+
+				long offset = HEADER_BYTES;
+				long[] tileOffset = new long[numTiles];
+				int[] tileLength = new int[numTiles];
+				for (int t = 0; t < numTiles; t++) {
+					byte[] compressed = tiles.get(t).get();
+					out.writeBytes(compressed);
+					tileOffset[t] = offset;
+					tileLength[t] = compressed.length;
+					offset += compressed.length;
+				}
+
+				for (int t = 0; t < numTiles; t++) {
+					out.writeLong(tileOffset[t]);
+					out.writeInt(tileLength[t]);
+					out.writeInt(bounds[t + 1] - bounds[t]);
+				}
+
+				out.writeInt(numTiles);
+				out.writeLong(offset);
+				out.writeInt(MAGIC);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while tiling " + datFile);
+			} catch (ExecutionException e) {
+				throw new IOException("couldn't compress a tile of " + datFile, e.getCause());
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// returns: the offset in the .dat file of the first byte of every tile, then the end of the body
+	static int[] tileBounds(ByteBuffer dat, String name, int numWindow, int numPos, int flags, int tileSize) throws IOException {
+		int numTiles = Math.max(1, (numPos + tileSize - 1) / tileSize);
+		int[] bounds = new int[numTiles + 1];
+		int end = dat.limit();
+
+		boolean isSparse = (flags & 32) != 0;
+		boolean isInt = (flags & 16) != 0;
+		int precision = isInt ? ((flags >> 2) & 3) + 1 : 4;
+		int spacing = (flags & 3) + 1;
+
+		if (name.equals("reference.dat")) {
+			// four bases to a byte
+			for (int t = 0; t < numTiles; t++)
+				bounds[t] = Math.min(end, 12 + t * (tileSize / 4));
+		} else if (!isSparse) {
+			long rowBytes = (long)numWindow * spacing * precision;
+			for (int t = 0; t < numTiles; t++)
+				bounds[t] = (int)Math.min(end, 12 + t * tileSize * rowBytes);
+		} else {
+			// records of an int index (numWindow to a position), then either spacing values or, for fullCounts.dat,
+			// a byte count of entries of a byte and an int each; baseCounts.dat holds 4 ints to a record, whatever
+			// its spacing says
+			boolean fullCounts = name.equals("fullCounts.dat");
+			if (name.equals("baseCounts.dat")) {
+				spacing = 4;
+				precision = 4;
+			}
+			int tile = 0;
+			int p = 12;
+			while (p < end) {
+				int pos = dat.getInt(p) / numWindow;
+				while (tile < numTiles && pos >= tile * tileSize)
+					bounds[tile++] = p;
+
+				p += fullCounts ? 5 + 5 * (dat.get(p + 4) & 0xff) : 4 + spacing * precision;
+			}
+
+			if (p != end)
+				throw new IOException(name + " ends in the middle of a record");
+
+			while (tile < numTiles)
+				bounds[tile++] = end;
+		}
+
+		bounds[numTiles] = end;
+		return bounds;
+	}
+
+	static byte[] deflate(byte[] raw) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+
+			byte[] out = new byte[Math.max(64, raw.length / 2)];
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == out.length) out = Arrays.copyOf(out, 2 * out.length);
+				length += deflater.deflate(out, length, out.length - length);
+			}
+
+			return Arrays.copyOf(out, length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	// returns: the .dat header of the container followed by the inflated tiles covering positions [from, to),
+	// read with a single range read (the first position of the first tile is returned in firstPos[0])
+	static ByteBuffer readRange(String tiledFile, int from, int to, int[] firstPos) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(tiledFile, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer header = read(channel, 0, HEADER_BYTES);
+			ByteBuffer trailer = read(channel, channel.size() - TRAILER_BYTES, TRAILER_BYTES);
+			if (header.getInt(0) != MAGIC || trailer.getInt(12) != MAGIC)
+				throw new IOException(tiledFile + " is not a tiled .dat container");
+
+			int tileSize = header.getInt(20);
+			int numTiles = trailer.getInt(0);
+			ByteBuffer index = read(channel, trailer.getLong(4), numTiles * 16);
+
+			int first = Math.max(0, Math.min(numTiles - 1, from / tileSize));
+			int last = Math.max(first, Math.min(numTiles - 1, (to - 1) / tileSize));
+			long start = index.getLong(first * 16);
+			long end = index.getLong(last * 16) + index.getInt(last * 16 + 8);
+			ByteBuffer tiles = read(channel, start, (int)(end - start));
+
+			int inflatedLength = 0;
+			for (int t = first; t <= last; t++)
+				inflatedLength += index.getInt(t * 16 + 12);
+
+			byte[] out = new byte[12 + inflatedLength];
+			header.position(8);
+			header.get(out, 0, 12);
+
+			Inflater inflater = new Inflater(true);
+			try {
+				int at = 12;
+				for (int t = first; t <= last; t++) {
+					inflater.reset();
+					inflater.setInput(tiles.array(), (int)(index.getLong(t * 16) - start), index.getInt(t * 16 + 8));
+					int length = index.getInt(t * 16 + 12);
+					int got = 0;
+					while (got < length) {
+						int n = inflater.inflate(out, at + got, length - got);
+						if (n == 0 && (inflater.finished() || inflater.needsInput())) break;
+						got += n;
+					}
+
+					if (got != length)
+						throw new IOException("tile " + t + " of " + tiledFile + " is truncated");
+					at += length;
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("corrupt tile in " + tiledFile + ": " + e.getMessage());
+			} finally {
+				inflater.end();
+			}
+
+			if (firstPos != null) firstPos[0] = first * tileSize;
+			return ByteBuffer.wrap(out);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0)
+				throw new IOException("unexpected end of file");
+		}
+
+		buf.flip();
+		return buf;
+	}
+}